@@ -36,11 +36,25 @@ public class BLEU extends EvaluationMetric
   protected int maxGramLength;
   protected EffectiveLengthMethod effLengthMethod;
     // 1: closest, 2: shortest, 3: average
-//  protected HashMap[][] maxNgramCounts;
-  protected HashMap<String,Integer>[] maxNgramCounts;
+  protected NgramIndex maxNgramCounts;
+    // the maximum count of each n-gram of the i'th sentence's references in any
+    // one of them
+  protected Vocabulary vocab;
+    // the tokens of the references; candidates' tokens are looked up in it,
+    // so that n-grams are handled as int ids rather than as Strings
   protected int[][] refWordCount;
   protected double[] weights;
 
+  // suffStats is called by several threads at once, so each thread has its own
+  // buffers for a candidate's token ids and for counting its n-grams
+  private static final class Scratch
+  {
+    int[] ids = new int[64];
+    int[] seenPos = new int[256];
+    int[] seenCounts = new int[256];
+  }
+  private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
   public BLEU()
   {
     this(4,"closest");
@@ -103,40 +117,23 @@ public class BLEU extends EvaluationMetric
 
   protected void set_maxNgramCounts()
   {
-    @SuppressWarnings("unchecked")
-    HashMap<String,Integer>[] temp_HMA = new HashMap[numSentences];
-    maxNgramCounts = temp_HMA;
-
-    String gram = "";
-    int oldCount = 0, nextCount = 0;
-
-      for (int i = 0; i < numSentences; ++i) {
-        maxNgramCounts[i] = getNgramCountsAll(refSentences[i][0]);
-          // initialize to ngramCounts[n] of the first reference translation...
-
-        // ...and update as necessary from the other reference translations
-        for (int r = 1; r < refsPerSen; ++r) {
-          HashMap<String,Integer> nextNgramCounts = getNgramCountsAll(refSentences[i][r]);
-          Iterator<String> it = (nextNgramCounts.keySet()).iterator();
-
-          while (it.hasNext()) {
-            gram = it.next();
-            nextCount = nextNgramCounts.get(gram);
-
-            if (maxNgramCounts[i].containsKey(gram)) { // update if necessary
-              oldCount = maxNgramCounts[i].get(gram);
-              if (nextCount > oldCount) {
-                maxNgramCounts[i].put(gram,nextCount);
-              }
-            } else { // add it
-              maxNgramCounts[i].put(gram,nextCount);
-            }
-
-          }
-
-        } // for (r)
+    // The references are all tokenized first, so that the n-gram index can be
+    // given exactly the room its tables take.  (The vocabulary cannot be sized
+    // before the references are read, so it starts small and grows.)
+    vocab = new Vocabulary(1024);
+    int[][][] refIds = new int[numSentences][refsPerSen][];
+    int totalSlots = 0;
+    for (int i = 0; i < numSentences; ++i) {
+      for (int r = 0; r < refsPerSen; ++r) {
+        refIds[i][r] = refIds(refSentences[i][r]);
+      }
+      totalSlots += NgramIndex.tableSize(refIds[i],maxGramLength);
+    }
 
-      } // for (i)
+    maxNgramCounts = new NgramIndex(numSentences, verifyHashes, totalSlots);
+    for (int i = 0; i < numSentences; ++i) {
+      maxNgramCounts.addSentence(i,refIds[i],maxGramLength);
+    }
 
     // For efficiency, calculate the reference lenghts, which will be used in effLength...
 
@@ -157,56 +154,86 @@ public class BLEU extends EvaluationMetric
 //int wordCount = words.length;
 //for (int j = 0; j < wordCount; ++j) { words[j] = words[j].intern(); }
 
+    Scratch s = scratch.get();
+    int len = 0;
     if (!cand_str.equals("")) {
-      String[] words = cand_str.split("\\s+");
-      set_prec_suffStats(stats,words,i);
-      stats[suffStatsCount-2] = words.length;
-      stats[suffStatsCount-1] = effLength(words.length,i);
-    } else {
-      String[] words = new String[0];
-      set_prec_suffStats(stats,words,i);
-      stats[suffStatsCount-2] = 0;
-      stats[suffStatsCount-1] = effLength(0,i);
+      int maxLen = Vocabulary.maxTokens(cand_str.length());
+      if (s.ids.length < maxLen) s.ids = new int[Math.max(maxLen,2*s.ids.length)];
+      len = vocab.lookup(cand_str,s.ids);
     }
+    set_prec_suffStats(stats,s.ids,len,i);
+    stats[suffStatsCount-2] = len;
+    stats[suffStatsCount-1] = effLength(len,i);
 
     return stats;
   }
 
   public void set_prec_suffStats(int[] stats, String[] words, int i)
   {
-    HashMap<String,Integer>[] candCountsArray = getNgramCountsArray(words);
+    int[] ids = new int[words.length];
+    for (int w = 0; w < words.length; ++w) {
+      ids[w] = vocab.id(words[w],0,words[w].length());
+    }
+    set_prec_suffStats(stats,ids,ids.length,i);
+  }
+
+  // ids[0..len) are the candidate's token ids in vocab (0 for tokens not in any
+  // reference)
+  public void set_prec_suffStats(int[] stats, int[] ids, int len, int i)
+  {
+    // Each occurrence of an n-gram is correct if fewer occurrences of it than its
+    // maximum reference count have been seen so far, which adds up to the clipped
+    // count min(candGramCount,maxRefGramCount) of every n-gram type.  Only n-grams
+    // that occur in the references need to be counted, in a small table keyed by
+    // their positions in maxNgramCounts.
+
+    int capacity = 16;
+    while (capacity < 2*len*maxGramLength) capacity <<= 1;
+    Scratch s = scratch.get();
+    if (s.seenCounts.length < capacity) {
+      s.seenPos = new int[capacity];
+      s.seenCounts = new int[capacity];
+    } else {
+      Arrays.fill(s.seenCounts,0,capacity,0);
+    }
+    int[] seenPos = s.seenPos;
+    int[] seenCounts = s.seenCounts; // 0 marks an empty slot
+    int mask = capacity - 1;
 
     for (int n = 1; n <= maxGramLength; ++n) {
+      stats[2*(n-1)] = 0;
+      stats[2*(n-1)+1] = Math.max(len-(n-1),0); // total gram count
+    }
 
-      int correctGramCount = 0;
-      String gram = "";
-      int candGramCount = 0, maxRefGramCount = 0, clippedCount = 0;
+    for (int st = 0; st < len; ++st) {
+      long key = 0;
+      for (int n = 1; n <= maxGramLength && st+n <= len; ++n) {
+        if (ids[st+n-1] == 0) break; // not in any reference
+        key = NgramIndex.gramKey(key,ids[st+n-1]);
 
-      Iterator<String> it = (candCountsArray[n].keySet()).iterator();
+        int pos = maxNgramCounts.find(i,key,ids,st,n);
+        if (pos < 0) break; // neither are the longer n-grams starting at st
 
-      while (it.hasNext()) {
-      // for each n-gram type in the candidate
-        gram = it.next();
-        candGramCount = candCountsArray[n].get(gram);
-//        if (maxNgramCounts[i][n].containsKey(gram)) {
-//          maxRefGramCount = maxNgramCounts[i][n].get(gram);
-        if (maxNgramCounts[i].containsKey(gram)) {
-          maxRefGramCount = maxNgramCounts[i].get(gram);
-        } else {
-          maxRefGramCount = 0;
+        int slot = ((pos * 0x9E3779B9) >>> 7) & mask;
+        while (seenCounts[slot] != 0 && seenPos[slot] != pos) slot = (slot + 1) & mask;
+        seenPos[slot] = pos;
+        if (seenCounts[slot] < maxNgramCounts.count(pos)) {
+          stats[2*(n-1)] += 1;
         }
-
-        clippedCount = Math.min(candGramCount,maxRefGramCount);
-
-        correctGramCount += clippedCount;
-
+        ++seenCounts[slot];
       }
+    }
 
-      stats[2*(n-1)] = correctGramCount;
-      stats[2*(n-1)+1] = Math.max(words.length-(n-1),0); // total gram count
-
-    } // for (n)
+  }
 
+  // ids of the tokens of a reference, adding them to vocab
+  private int[] refIds(String ref_str)
+  {
+    if (!ref_str.equals("")) {
+      return vocab.addAll(ref_str);
+    } else {
+      return new int[0];
+    }
   }
 
   public int effLength(int candLength, int i)
@@ -264,21 +291,26 @@ else { // average
 
   public double score(int[] stats)
   {
-    if (stats.length != suffStatsCount) {
-      logger.severe("Mismatch between stats.length and suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in BLEU.score(int[])");
+    if (stats.length < suffStatsCount) {
+      logger.severe("stats.length is less than suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in BLEU.score(int[])");
       System.exit(2);
     }
 
+    return score(stats,0,null);
+  }
+
+  public double score(int[] stats, int offset, int[] scratch)
+  {
     double BLEUsum = 0.0;
     double smooth_addition = 1.0; // following bleu-1.04.pl
-    double c_len = stats[suffStatsCount-2];
-    double r_len = stats[suffStatsCount-1];
+    double c_len = stats[offset+suffStatsCount-2];
+    double r_len = stats[offset+suffStatsCount-1];
 
     double correctGramCount, totalGramCount;
 
     for (int n = 1; n <= maxGramLength; ++n) {
-      correctGramCount = stats[2*(n-1)];
-      totalGramCount = stats[2*(n-1)+1];
+      correctGramCount = stats[offset+2*(n-1)];
+      totalGramCount = stats[offset+2*(n-1)+1];
 
       double prec_n;
       if (totalGramCount > 0) {
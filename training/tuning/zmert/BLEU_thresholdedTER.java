@@ -93,20 +93,20 @@ public class BLEU_thresholdedTER extends TERMinusBLEU
 
   public double score(int[] stats)
   {
-    if (stats.length != suffStatsCount) {
-      System.out.println("Mismatch between stats.length and suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in BLEU_thresholdedTER.score(int[])");
+    if (stats.length < suffStatsCount) {
+      System.out.println("stats.length is less than suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in BLEU_thresholdedTER.score(int[])");
       System.exit(1);
     }
 
-    double sc = 0.0;
+    return score(stats,0,null);
+  }
 
-    int[] stats_TER = new int[suffStatsCount_TER];
-    int[] stats_BLEU = new int[suffStatsCount_BLEU];
-    for (int s = 0; s < suffStatsCount_TER; ++s) { stats_TER[s] = stats[s]; }
-    for (int s = 0; s < suffStatsCount_BLEU; ++s) { stats_BLEU[s] = stats[s+suffStatsCount_TER]; }
+  public double score(int[] stats, int offset, int[] scratch)
+  {
+    double sc = 0.0;
 
-    double sc_T = myTER.score(stats_TER);
-    double sc_B = myBLEU.score(stats_BLEU);
+    double sc_T = myTER.score(stats,offset,scratch);
+    double sc_B = myBLEU.score(stats,offset+suffStatsCount_TER,scratch);
 
 // the only place where BLEU_TER-th differs from TER-BLEU /* ~~~ */
 /* ~~~ */
@@ -0,0 +1,502 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+public class CandidatePool
+{
+  /*
+     Append-only pool of all the distinct candidates seen so far, across
+     iterations.  It consists of three files (fileNamePrefix + suffix):
+
+       pool.data:   one fixed-size record per candidate (native byte order):
+                      int sentence, int firstIt, long textOffset, int textLength,
+                      int padding, long fingerprint, double[numFeats] feats,
+                      int[statsCount] stats
+                    (record size rounded up to a multiple of 8 bytes)
+       pool.sents:  the (UTF-8) candidate strings, back to back
+       pool.index:  header, then for each sentence the list of its entries,
+                    in the order they were added, as (recordId, firstSeen,
+                    lastSeen, nextEntry) quadruples, where firstSeen/lastSeen
+                    are the first and last iterations covered by the entry
+
+     A candidate that is produced again, by a later iteration, with different
+     feature values gets a new entry (a segment), with a record of its own
+     (sharing the text and stats of the first one); nextEntry links each
+     entry of a candidate to its next segment (-1 for the last one).  The
+     segments of a candidate cover consecutive ranges of iterations, so the
+     feature values a candidate had in the first iteration (from some
+     iteration on) that produced it are those of the first of its segments
+     whose lastSeen is not before that iteration.
+
+     The data and sents files are only ever appended to; the index is
+     rewritten (atomically) by commit(), after each iteration.  Records
+     appended after the last commit() are ignored by open(), so an
+     interrupted iteration leaves the pool in its previous state.
+
+     The fingerprints (see FingerprintSet) of each sentence's candidates are
+     kept in memory, so find() can tell whether a candidate is in the pool
+     without comparing strings (unless collisions are to be ruled out).
+
+     A pool created with createInMemory keeps the data and sents in heap
+     buffers instead (same layout), has no index file, and cannot be
+     reopened; commit() then only makes the appended records readable.
+  */
+
+  private final static int MAGIC = 0x5A4D4350; // "ZMCP"
+  private final static int RECORD_HEADER_SIZE = 32;
+  private final static int SEG_BITS = 30;
+    // the data file is mapped in segments of 2^SEG_BITS bytes (see CandidateStore)
+  private final static long SEG_MASK = (1L << SEG_BITS) - 1;
+
+  private String fileNamePrefix; // null for an in-memory pool
+  private int numSentences;
+  private int numFeats;
+  private int statsCount;
+  private int recordSize;
+
+  private int numRecords;      // number of committed records
+  private long sentsSize;      // size of the committed part of the sents file
+
+  private int[] candCount;     // candCount[i]: number of candidates of the i'th sentence
+  private int[][] recordId;    // recordId[i][n]: record of the n'th candidate of the i'th sentence
+  private int[][] firstSeen;
+  private int[][] lastSeen;
+  private int[][] nextEntry;
+  private FingerprintSet[] fingerprints;
+    // fingerprints[i] maps to positions n as above (of first segments only)
+  private int numCollisions;
+
+  private FileChannel dataChannel;
+  private FileChannel sentsChannel;
+  private ByteBuffer[] dataSeg;
+  private ByteBuffer sentsBuf;
+
+  private ByteBuffer pendingData;  // records appended since the last commit()
+  private ByteBuffer pendingSents;
+  private int pendingRecords;
+
+  private CandidatePool(String in_fileNamePrefix, int in_numSentences, int in_numFeats, int in_statsCount)
+  {
+    fileNamePrefix = in_fileNamePrefix;
+    numSentences = in_numSentences;
+    numFeats = in_numFeats;
+    statsCount = in_statsCount;
+    recordSize = (int)align8(RECORD_HEADER_SIZE + 8L * numFeats + 4L * statsCount);
+
+    candCount = new int[numSentences];
+    recordId = new int[numSentences][];
+    firstSeen = new int[numSentences][];
+    lastSeen = new int[numSentences][];
+    nextEntry = new int[numSentences][];
+    fingerprints = new FingerprintSet[numSentences];
+    for (int i = 0; i < numSentences; ++i) {
+      recordId[i] = new int[0];
+      firstSeen[i] = new int[0];
+      lastSeen[i] = new int[0];
+      nextEntry[i] = new int[0];
+      fingerprints[i] = new FingerprintSet(0);
+    }
+
+    pendingData = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+    pendingSents = ByteBuffer.allocate(1 << 16);
+  }
+
+  // creates an empty pool, discarding any existing pool files with that prefix
+  public static CandidatePool create(String fileNamePrefix, int numSentences, int numFeats, int statsCount)
+    throws IOException
+  {
+    CandidatePool pool = new CandidatePool(fileNamePrefix, numSentences, numFeats, statsCount);
+    pool.openChannels(true);
+    pool.commit();
+    return pool;
+  }
+
+  // creates an empty pool that is kept in memory
+  public static CandidatePool createInMemory(int numSentences, int numFeats, int statsCount)
+  {
+    CandidatePool pool = new CandidatePool(null, numSentences, numFeats, statsCount);
+    pool.dataSeg = new ByteBuffer[0];
+    pool.sentsBuf = ByteBuffer.allocate(1 << 16);
+    return pool;
+  }
+
+  // opens the pool last committed with that prefix
+  public static CandidatePool open(String fileNamePrefix) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                           new FileInputStream(fileNamePrefix + "pool.index")));
+
+    if (in.readInt() != MAGIC) {
+      in.close();
+      throw new IOException("Not a candidate pool index file: " + fileNamePrefix + "pool.index");
+    }
+
+    CandidatePool pool = new CandidatePool(fileNamePrefix, in.readInt(), in.readInt(), in.readInt());
+    pool.numRecords = in.readInt();
+    pool.sentsSize = in.readLong();
+
+    for (int i = 0; i < pool.numSentences; ++i) {
+      int count = in.readInt();
+      pool.candCount[i] = count;
+      pool.recordId[i] = new int[count];
+      pool.firstSeen[i] = new int[count];
+      pool.lastSeen[i] = new int[count];
+      pool.nextEntry[i] = new int[count];
+      for (int n = 0; n < count; ++n) {
+        pool.recordId[i][n] = in.readInt();
+        pool.firstSeen[i][n] = in.readInt();
+        pool.lastSeen[i][n] = in.readInt();
+        pool.nextEntry[i][n] = in.readInt();
+      }
+    }
+
+    in.close();
+
+    pool.openChannels(false);
+    pool.remap();
+
+    for (int i = 0; i < pool.numSentences; ++i) {
+      boolean[] isNext = new boolean[pool.candCount[i]];
+      for (int n = 0; n < pool.candCount[i]; ++n) {
+        if (pool.nextEntry[i][n] >= 0) isNext[pool.nextEntry[i][n]] = true;
+      }
+      for (int n = 0; n < pool.candCount[i]; ++n) {
+        if (!isNext[n]) pool.fingerprints[i].add(pool.getLong((long)pool.recordId[i][n] * pool.recordSize + 24),n);
+      }
+    }
+
+    return pool;
+  }
+
+  public int get_numRecords() { return numRecords + pendingRecords; }
+
+  public int candCount(int i) { return candCount[i]; }
+  public int recordId(int i, int n) { return recordId[i][n]; }
+  public int firstSeen(int i, int n) { return firstSeen[i][n]; }
+  public int lastSeen(int i, int n) { return lastSeen[i][n]; }
+  public void setLastSeen(int i, int n, int it) { lastSeen[i][n] = it; }
+
+  // position of the next segment of the candidate of entry n, or -1 if none
+  public int nextEntry(int i, int n) { return nextEntry[i][n]; }
+
+  // position of the last segment of the candidate of entry n
+  public int lastEntry(int i, int n)
+  {
+    while (nextEntry[i][n] >= 0) n = nextEntry[i][n];
+    return n;
+  }
+
+  // number of fingerprint collisions detected by find()
+  public int get_numCollisions() { return numCollisions; }
+
+  // position (in the i'th sentence's list) of the first segment of the candidate
+  // with fingerprint fp, or -1 if it is not in the pool.  If text is not null, the strings themselves
+  // are compared as well, to rule out fingerprint collisions.
+  public int find(int i, long fp, String text)
+  {
+    FingerprintSet set = fingerprints[i];
+    for (int slot = set.firstSlot(fp); slot >= 0; slot = set.nextSlot(fp,slot)) {
+      int n = set.valueAt(slot);
+      if (text == null || getText(recordId[i][n]).equals(text)) return n;
+      ++numCollisions;
+    }
+    return -1;
+  }
+
+  // the following read committed records only
+
+  public String getText(int rec)
+  {
+    long pos = (long)rec * recordSize;
+    long offset = getLong(pos + 8);
+    int length = getInt(pos + 16);
+    byte[] bytes = new byte[length];
+    ByteBuffer buf = sentsBuf.duplicate(); // so concurrent readers don't share a position
+    buf.position((int)offset);
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // stores the feature values of record rec in featVal[1..numFeats]
+  public void getFeats(int rec, double[] featVal)
+  {
+    long pos = (long)rec * recordSize + RECORD_HEADER_SIZE;
+    for (int c = 1; c <= numFeats; ++c) {
+      featVal[c] = getDouble(pos);
+      pos += 8;
+    }
+  }
+
+  // stores the sufficient statistics of record rec in stats[0..statsCount-1]
+  public void getStats(int rec, int[] stats)
+  {
+    long pos = (long)rec * recordSize + RECORD_HEADER_SIZE + 8L * numFeats;
+    for (int s = 0; s < statsCount; ++s) {
+      stats[s] = getInt(pos);
+      pos += 4;
+    }
+  }
+
+  // adds a new candidate for the i'th sentence, first seen in iteration it,
+  // and returns its record id.  featVal is 1-indexed.
+  public int append(int i, int it, String text, long fp, double[] featVal, int[] stats, int statsOffset)
+  {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    pendingSents = ensureCapacity(pendingSents, bytes.length);
+    long textOffset = sentsSize + pendingSents.position();
+    pendingSents.put(bytes);
+
+    int rec = appendRecord(i, it, textOffset, bytes.length, fp, featVal, stats, statsOffset);
+    int n = addEntry(i, it, rec);
+    fingerprints[i].add(fp,n);
+
+    return rec;
+  }
+
+  // adds a new segment to the (committed) candidate of entry n of the i'th
+  // sentence, which was produced by iteration it with the feature values
+  // featVal (1-indexed), and returns its record id.  n must be the last
+  // segment of the candidate.
+  public int appendSegment(int i, int n, int it, double[] featVal)
+  {
+    long pos = (long)recordId[i][n] * recordSize;
+    int[] stats = new int[statsCount];
+    getStats(recordId[i][n], stats);
+
+    int rec = appendRecord(i, it, getLong(pos + 8), getInt(pos + 16), getLong(pos + 24), featVal, stats, 0);
+    int next = addEntry(i, it, rec); // (which may reallocate nextEntry[i])
+    nextEntry[i][n] = next;
+
+    return rec;
+  }
+
+  // writes the records appended since the last commit, and rewrites the index
+  public void commit() throws IOException
+  {
+    if (fileNamePrefix == null) {
+      commitInMemory();
+      return;
+    }
+
+    pendingSents.flip();
+    while (pendingSents.hasRemaining()) {
+      sentsChannel.write(pendingSents, sentsSize + pendingSents.position());
+    }
+    pendingData.flip();
+    long dataSize = (long)numRecords * recordSize;
+    while (pendingData.hasRemaining()) {
+      dataChannel.write(pendingData, dataSize + pendingData.position());
+    }
+
+    sentsSize += pendingSents.limit();
+    numRecords += pendingRecords;
+    pendingSents.clear();
+    pendingData.clear();
+    pendingRecords = 0;
+
+    String indexFileName = fileNamePrefix + "pool.index";
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                             new FileOutputStream(indexFileName + ".tmp")));
+    out.writeInt(MAGIC);
+    out.writeInt(numSentences);
+    out.writeInt(numFeats);
+    out.writeInt(statsCount);
+    out.writeInt(numRecords);
+    out.writeLong(sentsSize);
+    for (int i = 0; i < numSentences; ++i) {
+      out.writeInt(candCount[i]);
+      for (int n = 0; n < candCount[i]; ++n) {
+        out.writeInt(recordId[i][n]);
+        out.writeInt(firstSeen[i][n]);
+        out.writeInt(lastSeen[i][n]);
+        out.writeInt(nextEntry[i][n]);
+      }
+    }
+    out.close();
+    Files.move(Paths.get(indexFileName + ".tmp"), Paths.get(indexFileName),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    remap();
+  }
+
+  public void close() throws IOException
+  {
+    if (dataChannel != null) dataChannel.close();
+    if (sentsChannel != null) sentsChannel.close();
+    dataSeg = null;
+    sentsBuf = null;
+  }
+
+  // deletes the pool files with that prefix
+  public static void delete(String fileNamePrefix)
+  {
+    new File(fileNamePrefix + "pool.data").delete();
+    new File(fileNamePrefix + "pool.sents").delete();
+    new File(fileNamePrefix + "pool.index").delete();
+  }
+
+  // commit() for an in-memory pool: copies the pending records to the end of
+  // the heap buffers (growing them as needed)
+  private void commitInMemory() throws IOException
+  {
+    pendingSents.flip();
+    if (sentsSize + pendingSents.limit() > Integer.MAX_VALUE) {
+      throw new IOException("In-memory candidate pool sents exceed 2GB");
+    }
+    sentsBuf = ensureCapacity(sentsBuf, pendingSents.limit()); // (its position is sentsSize)
+    sentsBuf.put(pendingSents);
+
+    pendingData.flip();
+    long pos = (long)numRecords * recordSize;
+    while (pendingData.hasRemaining()) {
+      int s = (int)(pos >>> SEG_BITS);
+      int segPos = (int)(pos & SEG_MASK);
+      int count = (int)Math.min(pendingData.remaining(), SEG_MASK + 1 - segPos);
+      if (s == dataSeg.length) {
+        dataSeg = Arrays.copyOf(dataSeg, s+1);
+        dataSeg[s] = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+      }
+      if (dataSeg[s].capacity() < segPos + count) {
+        long capacity = Math.max(Math.max(1 << 16, 2L*dataSeg[s].capacity()), segPos + count);
+        ByteBuffer newSeg = ByteBuffer.allocate((int)Math.min(capacity, SEG_MASK + 1)).order(ByteOrder.nativeOrder());
+        ByteBuffer oldSeg = dataSeg[s].duplicate();
+        oldSeg.clear().limit(segPos);
+        newSeg.put(oldSeg);
+        dataSeg[s] = newSeg;
+      }
+      ByteBuffer chunk = pendingData.duplicate();
+      chunk.limit(pendingData.position() + count);
+      ByteBuffer dest = dataSeg[s].duplicate();
+      dest.position(segPos);
+      dest.put(chunk);
+      pendingData.position(pendingData.position() + count);
+      pos += count;
+    }
+
+    sentsSize += pendingSents.limit();
+    numRecords += pendingRecords;
+    pendingSents.clear();
+    pendingData.clear();
+    pendingRecords = 0;
+  }
+
+  private int appendRecord(int i, int it, long textOffset, int textLength, long fp,
+                           double[] featVal, int[] stats, int statsOffset)
+  {
+    pendingData = ensureCapacity(pendingData, recordSize);
+    int start = pendingData.position();
+    pendingData.putInt(i);
+    pendingData.putInt(it);
+    pendingData.putLong(textOffset);
+    pendingData.putInt(textLength);
+    pendingData.putInt(0);
+    pendingData.putLong(fp);
+    for (int c = 1; c <= numFeats; ++c) { pendingData.putDouble(featVal[c]); }
+    for (int s = 0; s < statsCount; ++s) { pendingData.putInt(stats[statsOffset+s]); }
+    pendingData.position(start + recordSize);
+
+    int rec = numRecords + pendingRecords;
+    ++pendingRecords;
+    return rec;
+  }
+
+  // adds an entry for record rec to the i'th sentence's list, and returns its position
+  private int addEntry(int i, int it, int rec)
+  {
+    int n = candCount[i];
+    if (n == recordId[i].length) {
+      int newLength = Math.max(8, 2*n);
+      recordId[i] = Arrays.copyOf(recordId[i], newLength);
+      firstSeen[i] = Arrays.copyOf(firstSeen[i], newLength);
+      lastSeen[i] = Arrays.copyOf(lastSeen[i], newLength);
+      nextEntry[i] = Arrays.copyOf(nextEntry[i], newLength);
+    }
+    recordId[i][n] = rec;
+    firstSeen[i][n] = it;
+    lastSeen[i][n] = it;
+    nextEntry[i][n] = -1;
+    candCount[i] += 1;
+    return n;
+  }
+
+  private void openChannels(boolean truncate) throws IOException
+  {
+    RandomAccessFile dataFile = new RandomAccessFile(fileNamePrefix + "pool.data", "rw");
+    RandomAccessFile sentsFile = new RandomAccessFile(fileNamePrefix + "pool.sents", "rw");
+    if (truncate) {
+      dataFile.setLength(0);
+      sentsFile.setLength(0);
+    } else {
+      // drop anything appended after the last commit
+      dataFile.setLength((long)numRecords * recordSize);
+      sentsFile.setLength(sentsSize);
+    }
+    dataChannel = dataFile.getChannel();
+    sentsChannel = sentsFile.getChannel();
+  }
+
+  private void remap() throws IOException
+  {
+    long dataSize = (long)numRecords * recordSize;
+    int numSegs = (int)((dataSize + SEG_MASK) >>> SEG_BITS);
+    dataSeg = new ByteBuffer[Math.max(1,numSegs)];
+    for (int s = 0; s < numSegs; ++s) {
+      long start = (long)s << SEG_BITS;
+      dataSeg[s] = dataChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(dataSize - start, SEG_MASK + 1));
+      dataSeg[s].order(ByteOrder.nativeOrder());
+    }
+    if (sentsSize > Integer.MAX_VALUE) {
+      throw new IOException("Candidate pool sents file exceeds 2GB: " + fileNamePrefix + "pool.sents");
+    }
+    sentsBuf = sentsChannel.map(FileChannel.MapMode.READ_ONLY, 0, sentsSize);
+  }
+
+  private int getInt(long pos) { return dataSeg[(int)(pos >>> SEG_BITS)].getInt((int)(pos & SEG_MASK)); }
+  private long getLong(long pos) { return dataSeg[(int)(pos >>> SEG_BITS)].getLong((int)(pos & SEG_MASK)); }
+  private double getDouble(long pos) { return dataSeg[(int)(pos >>> SEG_BITS)].getDouble((int)(pos & SEG_MASK)); }
+
+  private static ByteBuffer ensureCapacity(ByteBuffer buf, int extra)
+  {
+    if (buf.remaining() >= extra) return buf;
+    int newCapacity = Math.max(2*buf.capacity(), buf.position() + extra);
+    ByteBuffer newBuf = ByteBuffer.allocate(newCapacity).order(buf.order());
+    buf.flip();
+    newBuf.put(buf);
+    return newBuf;
+  }
+
+  private static long align8(long pos) { return (pos + 7) & ~7L; }
+
+}
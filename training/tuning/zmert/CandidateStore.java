@@ -0,0 +1,221 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class CandidateStore
+{
+  /*
+     Binary, fixed-layout store of the feature values of the candidates of
+     one or more sentences, memory-mapped via FileChannel.map.  File layout
+     (native byte order):
+
+       header:     int magic, int numSentences, int numFeats, int numCands
+       offsets:    int[numSentences+1]; candidates of the i'th sentence are
+                   those with indices in [offsets[i],offsets[i+1])
+       (padding to a multiple of 8 bytes)
+       features:   double[maxCands*numFeats], candidate-major
+
+     Candidate indices (k) are global, i.e. run over all sentences.  A store
+     is created for (at most) maxCands candidates, whose feature values are
+     written one candidate after the other, straight into the mapping, as the
+     n-best list is read; finish() then writes the offsets, once they are
+     known.  (The sufficient statistics of the candidates are not kept here,
+     but in the CandidatePool, and the merged ones in a SuffStatsArena.)
+
+     A store can also be created in memory (createInMemory), with the same
+     layout in heap buffers instead of a file.
+  */
+
+  private final static int MAGIC = 0x5A4D4353; // "ZMCS"
+  private final static int HEADER_SIZE = 16;
+  private final static int SEG_BITS = 30;
+    // the file is mapped in segments of 2^SEG_BITS bytes, since a single
+    // MappedByteBuffer cannot exceed 2GB.  Since segments start at multiples
+    // of 8, and every value is aligned to its own size, a value never
+    // straddles two segments.
+  private final static long SEG_MASK = (1L << SEG_BITS) - 1;
+
+  private int numSentences;
+  private int numFeats;
+  private int numCands;
+  private int[] offsets;
+
+  private long featsPos; // file position of the features block
+
+  private ByteBuffer[] seg;
+
+  private CandidateStore(ByteBuffer[] in_seg, int in_numSentences, int in_numFeats, int[] in_offsets)
+  {
+    seg = in_seg;
+    numSentences = in_numSentences;
+    numFeats = in_numFeats;
+    offsets = in_offsets;
+    numCands = (offsets != null) ? offsets[numSentences] : 0;
+    featsPos = align8(HEADER_SIZE + 4L * (numSentences+1));
+  }
+
+  // creates (or overwrites) the file fileName, for at most maxCands
+  // candidates, and maps it for writing.  All features are initially 0.
+  public static CandidateStore create(String fileName, int numSentences, int numFeats, int maxCands)
+    throws IOException
+  {
+    long size = storeSize(numSentences, numFeats, maxCands);
+
+    RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+    raf.setLength(0);
+    raf.setLength(size);
+    MappedByteBuffer[] seg = map(raf, FileChannel.MapMode.READ_WRITE, size);
+    raf.close();
+
+    return init(seg, numSentences, numFeats);
+  }
+
+  // same as create, but the store is kept in heap buffers, with no file
+  public static CandidateStore createInMemory(int numSentences, int numFeats, int maxCands)
+  {
+    long size = storeSize(numSentences, numFeats, maxCands);
+
+    int numSegs = (int)((size + SEG_MASK) >>> SEG_BITS);
+    ByteBuffer[] seg = new ByteBuffer[Math.max(1,numSegs)];
+    for (int s = 0; s < seg.length; ++s) {
+      long start = (long)s << SEG_BITS;
+      seg[s] = ByteBuffer.allocate((int)Math.min(size - start, SEG_MASK + 1)).order(ByteOrder.nativeOrder());
+    }
+
+    return init(seg, numSentences, numFeats);
+  }
+
+  private static long storeSize(int numSentences, int numFeats, int maxCands)
+  {
+    long featsPos = align8(HEADER_SIZE + 4L * (numSentences+1));
+    return featsPos + 8L * maxCands * numFeats;
+  }
+
+  // a new store in seg, with its header written
+  private static CandidateStore init(ByteBuffer[] seg, int numSentences, int numFeats)
+  {
+    CandidateStore store = new CandidateStore(seg, numSentences, numFeats, null);
+    store.putInt(0, MAGIC);
+    store.putInt(4, numSentences);
+    store.putInt(8, numFeats);
+    store.putInt(12, 0);
+    return store;
+  }
+
+  // writes the offsets (see above) of a store made by create or
+  // createInMemory, once the feature values of all its candidates are written
+  public void finish(int[] in_offsets)
+  {
+    offsets = in_offsets;
+    numCands = offsets[numSentences];
+    putInt(12, numCands);
+    for (int i = 0; i <= numSentences; ++i) {
+      putInt(HEADER_SIZE + 4L*i, offsets[i]);
+    }
+  }
+
+  // maps an existing (finished) store file for reading
+  public static CandidateStore open(String fileName) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+    long size = raf.length();
+    MappedByteBuffer[] seg = map(raf, FileChannel.MapMode.READ_ONLY, size);
+    raf.close();
+
+    if (size < HEADER_SIZE || seg[0].getInt(0) != MAGIC) {
+      throw new IOException("Not a candidate store file: " + fileName);
+    }
+
+    int numSentences = seg[0].getInt(4);
+    int[] offsets = new int[numSentences+1];
+    for (int i = 0; i <= numSentences; ++i) {
+      long pos = HEADER_SIZE + 4L*i;
+      offsets[i] = seg[(int)(pos >>> SEG_BITS)].getInt((int)(pos & SEG_MASK));
+    }
+
+    return new CandidateStore(seg, numSentences, seg[0].getInt(8), offsets);
+  }
+
+  // drops this store's reference to its buffers (the store should not be used
+  // afterwards).  Java has no way to unmap a file explicitly: the mapping is
+  // only released once the buffers are garbage collected.  Changes need not
+  // be forced to disk, though: any process that maps the same file sees them.
+  public void close()
+  {
+    seg = null;
+  }
+
+  public int get_numSentences() { return numSentences; }
+  public int get_numFeats() { return numFeats; }
+  public int get_numCands() { return numCands; }
+
+  public int firstCand(int i) { return offsets[i]; }
+  public int candCount(int i) { return offsets[i+1] - offsets[i]; }
+
+  // feature values are 1-indexed, just like lambda[]
+  public double getFeat(int k, int c) { return getDouble(featsPos + 8L * ((long)k * numFeats + (c-1))); }
+  public void setFeat(int k, int c, double val) { putDouble(featsPos + 8L * ((long)k * numFeats + (c-1)), val); }
+
+  // stores the feature values of the k'th candidate in featVal[1..numFeats]
+  public void getFeats(int k, double[] featVal)
+  {
+    long pos = featsPos + 8L * k * numFeats;
+    for (int c = 1; c <= numFeats; ++c) {
+      featVal[c] = getDouble(pos);
+      pos += 8;
+    }
+  }
+
+  private int getInt(long pos) { return seg[(int)(pos >>> SEG_BITS)].getInt((int)(pos & SEG_MASK)); }
+  private void putInt(long pos, int val) { seg[(int)(pos >>> SEG_BITS)].putInt((int)(pos & SEG_MASK), val); }
+  private double getDouble(long pos) { return seg[(int)(pos >>> SEG_BITS)].getDouble((int)(pos & SEG_MASK)); }
+  private void putDouble(long pos, double val) { seg[(int)(pos >>> SEG_BITS)].putDouble((int)(pos & SEG_MASK), val); }
+
+  private static long align8(long pos) { return (pos + 7) & ~7L; }
+
+  private static MappedByteBuffer[] map(RandomAccessFile raf, FileChannel.MapMode mode, long size)
+    throws IOException
+  {
+    FileChannel channel = raf.getChannel();
+    int numSegs = (int)((size + SEG_MASK) >>> SEG_BITS);
+    if (numSegs == 0) numSegs = 1;
+    MappedByteBuffer[] seg = new MappedByteBuffer[numSegs];
+    for (int s = 0; s < numSegs; ++s) {
+      long start = (long)s << SEG_BITS;
+      seg[s] = channel.map(mode, start, Math.min(size - start, SEG_MASK + 1));
+      seg[s].order(ByteOrder.nativeOrder());
+    }
+    return seg;
+  }
+
+}
@@ -0,0 +1,125 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+
+public class DecoderSession
+{
+  /*
+     A decoder process that stays alive across MERT iterations, so that its
+     models are loaded only once.  The session protocol is line-based, over
+     the decoder's standard input and output:
+
+       to the decoder:    DECODE iteration lambda[1] ... lambda[numParams]
+       from the decoder:  the n-best list, in the usual format
+                            i ||| candidate ||| feat-1_val ... feat-numParams_val
+                          followed by a line containing only END
+
+       to the decoder:    QUIT
+                          (the decoder should then exit, with the usual exit
+                          value indicating success; it should also exit if
+                          its standard input is closed)
+
+     Anything the decoder writes to its standard error is printed (or
+     ignored), just like when the decoder is launched for every iteration.
+  */
+
+  private final static String END_LINE = "END";
+
+  private Process proc;
+  private BufferedWriter toDecoder;
+  private BufferedReader fromDecoder;
+  private boolean lastListComplete;
+
+  public DecoderSession(String cmd, int decVerbosity) throws IOException
+  {
+    proc = Runtime.getRuntime().exec(cmd);
+    toDecoder = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(), "utf8"));
+    fromDecoder = new BufferedReader(new InputStreamReader(proc.getInputStream(), "utf8"));
+    lastListComplete = true;
+
+    StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(), decVerbosity);
+    errorGobbler.start();
+  }
+
+  public boolean isAlive() { return proc.isAlive(); }
+
+  // asks the decoder to decode using lambda[1..numParams], and returns a reader
+  // of the resulting n-best list; the reader reaches its end at the END line.
+  // The list must be read completely before the next call to decode().
+  public BufferedReader decode(int iteration, double[] lambda) throws IOException
+  {
+    StringBuilder request = new StringBuilder("DECODE " + iteration);
+    for (int c = 1; c < lambda.length; ++c) {
+      request.append(' ').append(lambda[c]);
+    }
+    toDecoder.write(request.toString());
+    toDecoder.newLine();
+    toDecoder.flush();
+
+    lastListComplete = false;
+    return new BufferedReader(new StringReader("")) {
+      private boolean done = false;
+
+      public String readLine() throws IOException
+      {
+        if (done) return null;
+        String line = fromDecoder.readLine();
+        if (line == null || line.equals(END_LINE)) {
+          done = true;
+          lastListComplete = (line != null);
+          return null;
+        }
+        return line;
+      }
+
+      public void close() { } // the session's stream stays open
+    };
+  }
+
+  // was the last n-best list terminated by an END line (rather than by
+  // the decoder closing its output, e.g. because it crashed)?
+  public boolean lastListComplete() { return lastListComplete; }
+
+  // ends the session, and returns the decoder's exit value
+  public int close() throws IOException, InterruptedException
+  {
+    if (proc.isAlive()) {
+      try {
+        toDecoder.write("QUIT");
+        toDecoder.newLine();
+        toDecoder.close();
+      } catch (IOException e) {
+        // the decoder already closed its input; nothing to tell it
+      }
+    }
+    return proc.waitFor();
+  }
+
+}
@@ -29,6 +29,11 @@
 import java.util.*;
 import java.text.DecimalFormat;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class EvaluationMetric
 {
@@ -41,6 +46,11 @@ public abstract class EvaluationMetric
   protected final static DecimalFormat f0 = new DecimalFormat("###0");
   protected final static DecimalFormat f4 = new DecimalFormat("###0.0000");
   protected static String tmpDirPrefix;
+  protected static int numThreads = 1;
+    // number of threads createSuffStatsFile uses to calculate sufficient statistics
+  protected static boolean verifyHashes = false;
+    // should metrics that identify strings (e.g. n-grams) by 64-bit hashes also
+    // compare the strings themselves, to rule out hash collisions?
 
   /* non-static data members */
   protected int suffStatsCount; // number of sufficient statistics
@@ -113,6 +123,8 @@ public abstract class EvaluationMetric
   public static void set_numDocuments(int x) { numDocuments = x; }
   public static void set_refsPerSen(int x) { refsPerSen = x; }
   public static void set_tmpDirPrefix(String S) { tmpDirPrefix = S; }
+  public static void set_numThreads(int x) { numThreads = x; }
+  public static void set_verifyHashes(boolean b) { verifyHashes = b; }
   public static void set_refSentences(String[][] refs)
   {
     refSentences = new String[numSentences][refsPerSen];
@@ -137,6 +149,19 @@ public abstract class EvaluationMetric
   public int get_suffStatsCount() { return suffStatsCount; }
   public String get_metricName() { return metricName; }
   public boolean getToBeMinimized() { return toBeMinimized; }
+
+  // Can suffStats(String[],int[]) be called by several threads at once (on
+  // different candidates)?  If so, createSuffStatsFile splits each batch
+  // across numThreads threads.  Metrics whose suffStats methods modify shared
+  // state (or e.g. run external programs on fixed temp files) should
+  // override this to return false.
+  public boolean suffStatsThreadSafe() { return true; }
+
+  // Can the sufficient statistics only be calculated through files (e.g. by
+  // an external program)?  If so, createSuffStats goes through
+  // createSuffStatsFile rather than scoring the candidates in memory.
+  protected boolean suffStatsNeedFiles() { return false; }
+
   public boolean isBetter(double x, double y)
   {
     // return true if x is better than y
@@ -209,6 +234,10 @@ public abstract class EvaluationMetric
   {
     // similar to the above suffStats(String[], int[])
 
+    int threadCount = suffStatsThreadSafe() ? numThreads : 1;
+    ExecutorService pool = null;
+    if (threadCount > 1) pool = Executors.newFixedThreadPool(threadCount);
+
     try {
       FileInputStream inStream_cands = new FileInputStream(cand_strings_fileName);
       BufferedReader inFile_cands = new BufferedReader(new InputStreamReader(inStream_cands, "utf8"));
@@ -216,7 +245,8 @@ public abstract class EvaluationMetric
       FileInputStream inStream_indices = new FileInputStream(cand_indices_fileName);
       BufferedReader inFile_indices = new BufferedReader(new InputStreamReader(inStream_indices, "utf8"));
 
-      PrintWriter outFile = new PrintWriter(outputFileName);
+      BufferedWriter outFile = new BufferedWriter(new FileWriter(outputFileName));
+      StringBuilder stats_str = new StringBuilder();
 
       String[] cand_strings = new String[maxBatchSize];
       int[] cand_indices = new int[maxBatchSize];
@@ -236,25 +266,14 @@ public abstract class EvaluationMetric
           line_index = inFile_indices.readLine();
         }
 
-        if (size < maxBatchSize) { // last batch, and smaller than maxBatchSize
-          String[] cand_strings_temp = new String[size];
-          int[] cand_indices_temp = new int[size];
-          for (int d = 0; d < size; ++d) {
-            cand_strings_temp[d] = cand_strings[d];
-            cand_indices_temp[d] = cand_indices[d];
-          }
-          cand_strings = cand_strings_temp;
-          cand_indices = cand_indices_temp;
-        }
+        int[][] SS = suffStats(cand_strings, cand_indices, size, pool, threadCount);
 
-        int[][] SS = suffStats(cand_strings, cand_indices);
         for (int d = 0; d < size; ++d) {
-          String stats_str = "";
+          stats_str.setLength(0);
+          for (int s = 0; s < suffStatsCount-1; ++s) { stats_str.append(SS[d][s]).append(' '); }
+          stats_str.append(SS[d][suffStatsCount-1]).append('\n');
 
-          for (int s = 0; s < suffStatsCount-1; ++s) { stats_str += SS[d][s] + " "; }
-          stats_str += SS[d][suffStatsCount-1];
-
-          outFile.println(stats_str);
+          outFile.append(stats_str);
         }
 
         line_cand = inFile_cands.readLine();
@@ -268,8 +287,118 @@ public abstract class EvaluationMetric
     } catch (IOException e) {
       System.err.println("IOException in EvaluationMetric.createSuffStatsFile(...): " + e.getMessage());
       System.exit(99902);
+    } finally {
+      if (pool != null) pool.shutdown();
+    }
+
+  }
+
+  // the sufficient statistics of the first size candidates of cand_strings,
+  // calculated like createSuffStatsFile does (in batches of at most
+  // maxBatchSize candidates, each split across the scoring threads), but
+  // without reading or writing any files (unless suffStatsNeedFiles())
+  public int[][] createSuffStats(String[] cand_strings, int[] cand_indices, int size, int maxBatchSize)
+  {
+    if (suffStatsNeedFiles()) {
+      return createSuffStatsThroughFiles(cand_strings, cand_indices, size, maxBatchSize);
+    }
+
+    int threadCount = suffStatsThreadSafe() ? numThreads : 1;
+    ExecutorService pool = null;
+    if (threadCount > 1) pool = Executors.newFixedThreadPool(threadCount);
+
+    int[][] SS = new int[size][];
+    String[] batch_strings = new String[Math.min(size,maxBatchSize)];
+    int[] batch_indices = new int[batch_strings.length];
+    for (int from = 0; from < size; from += maxBatchSize) {
+      int batchSize = Math.min(maxBatchSize, size - from);
+      System.arraycopy(cand_strings, from, batch_strings, 0, batchSize);
+      System.arraycopy(cand_indices, from, batch_indices, 0, batchSize);
+      int[][] batchSS = suffStats(batch_strings, batch_indices, batchSize, pool, threadCount);
+      System.arraycopy(batchSS, 0, SS, from, batchSize);
+    }
+
+    if (pool != null) pool.shutdown();
+    return SS;
+  }
+
+  private int[][] createSuffStatsThroughFiles(String[] cand_strings, int[] cand_indices, int size, int maxBatchSize)
+  {
+    String candsFileName = tmpDirPrefix + "temp.batch.cands";
+    String indicesFileName = tmpDirPrefix + "temp.batch.indices";
+    String statsFileName = tmpDirPrefix + "temp.batch.stats";
+    int[][] SS = new int[size][suffStatsCount];
+
+    try {
+      BufferedWriter outFile_cands = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(candsFileName), "utf8"));
+      PrintWriter outFile_indices = new PrintWriter(indicesFileName);
+      for (int d = 0; d < size; ++d) {
+        outFile_cands.write(cand_strings[d]);
+        outFile_cands.newLine();
+        outFile_indices.println(cand_indices[d]);
+      }
+      outFile_cands.close();
+      outFile_indices.close();
+
+      createSuffStatsFile(candsFileName, indicesFileName, statsFileName, maxBatchSize);
+
+      BufferedReader inFile_stats = new BufferedReader(new InputStreamReader(new FileInputStream(statsFileName), "utf8"));
+      for (int d = 0; d < size; ++d) {
+        String[] stats_str = inFile_stats.readLine().split("\\s+");
+        for (int s = 0; s < suffStatsCount; ++s) { SS[d][s] = Integer.parseInt(stats_str[s]); }
+      }
+      inFile_stats.close();
+    } catch (IOException e) {
+      System.err.println("IOException in EvaluationMetric.createSuffStatsThroughFiles(...): " + e.getMessage());
+      System.exit(99902);
     }
 
+    new File(candsFileName).delete();
+    new File(indicesFileName).delete();
+    new File(statsFileName).delete();
+
+    return SS;
+  }
+
+  // suffStats(String[],int[]) for the first size candidates of cand_strings,
+  // split into (up to) threadCount consecutive chunks that are processed in
+  // parallel in pool (if threadCount > 1).  Stats are returned in input order.
+  private int[][] suffStats(
+    String[] cand_strings, int[] cand_indices, int size, ExecutorService pool, int threadCount)
+  {
+    int numChunks = Math.min(threadCount, size);
+    if (numChunks <= 1) {
+      if (size == cand_strings.length) return suffStats(cand_strings, cand_indices);
+      return suffStats(Arrays.copyOf(cand_strings,size), Arrays.copyOf(cand_indices,size));
+    }
+
+    List<Future<int[][]>> chunkStats = new ArrayList<Future<int[][]>>();
+    for (int t = 0; t < numChunks; ++t) {
+      final int from = (int)((long)size * t / numChunks);
+      final int to = (int)((long)size * (t+1) / numChunks);
+      final String[] chunk_strings = Arrays.copyOfRange(cand_strings, from, to);
+      final int[] chunk_indices = Arrays.copyOfRange(cand_indices, from, to);
+      chunkStats.add(pool.submit(new Callable<int[][]>() {
+        public int[][] call() { return suffStats(chunk_strings, chunk_indices); }
+      }));
+    }
+
+    int[][] SS = new int[size][];
+    int d = 0;
+    try {
+      for (Future<int[][]> chunk : chunkStats) {
+        for (int[] stats : chunk.get()) { SS[d++] = stats; }
+      }
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException in EvaluationMetric.suffStats(...): " + e.getMessage());
+      System.exit(99906);
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+      System.err.println("ExecutionException in EvaluationMetric.suffStats(...): " + e.getMessage());
+      System.exit(99905);
+    }
+
+    return SS;
   }
 
   public void printDetailedScore(String[] topCand_str, boolean oneLiner)
@@ -322,6 +451,60 @@ public abstract class EvaluationMetric
 
   }
 
+  // Allocation-free scoring, for the line search (which scores the stats
+  // after every threshold it crosses): the score of the stats in
+  // stats[offset..offset+suffStatsCount-1].  scratch is a buffer of at least
+  // suffStatsCount ints owned by the calling thread; this default version
+  // copies the stats to its start and calls score(int[]) on it (which only
+  // reads the first suffStatsCount ints of its argument), and metrics that
+  // can read the stats in place override it (and leave scratch alone).
+  public double score(int[] stats, int offset, int[] scratch)
+  {
+    if (scratch.length < suffStatsCount) {
+      System.out.println("scratch.length is less than suffStatsCount (" + scratch.length + " vs. " + suffStatsCount + ") in EvaluationMetric.score(int[],int,int[])");
+      System.exit(2);
+    }
+    System.arraycopy(stats, offset, scratch, 0, suffStatsCount);
+    return score(scratch);
+  }
+
+  // Allocation-free versions of score(int[][]) and score(int[][],int,int), for
+  // the stats of the numDocuments documents stored one after the other in
+  // docStats (i.e. those of document doc start at doc*suffStatsCount).
+  // docScores is a buffer of numDocuments doubles owned by the calling thread.
+  public double score_docs(int[] docStats, int[] scratch)
+  {
+    double retVal = 0.0;
+    for (int doc = 0; doc < numDocuments; ++doc) {
+      retVal += score(docStats, doc*suffStatsCount, scratch);
+    }
+    return retVal / numDocuments;
+  }
+
+  public double score_docs(int[] docStats, int firstRank, int lastRank, double[] docScores, int[] scratch)
+  {
+    for (int doc = 0; doc < numDocuments; ++doc) {
+      docScores[doc] = score(docStats, doc*suffStatsCount, scratch);
+    }
+
+    Arrays.sort(docScores);
+    // sorts into ascending order (ranks are as in score(int[][],int,int))
+
+    double retVal = 0.0;
+
+    if (toBeMinimized) {
+      for (int j = firstRank-1; j < lastRank; ++j) {
+        retVal += docScores[j];
+      }
+    } else {
+      for (int j = numDocuments-firstRank; j >= numDocuments-lastRank; --j) {
+        retVal += docScores[j];
+      }
+    }
+
+    return retVal / (lastRank-firstRank+1);
+  }
+
   public double[] docScores(int[][] stats)
   {
     // returns an array of document scores
@@ -354,6 +537,6 @@ public abstract class EvaluationMetric
   public abstract double bestPossibleScore();
   public abstract double worstPossibleScore();
   public abstract int[] suffStats(String cand_str, int i);
-  public abstract double score(int[] stats);
+  public abstract double score(int[] stats); // (of stats[0..suffStatsCount-1]; stats can be longer)
   public abstract void printDetailedScore_fromStats(int[] stats, boolean oneLiner);
 }
@@ -0,0 +1,153 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.util.*;
+
+public class FeatureMatrix
+{
+  /*
+     Feature values of the candidates of all the sentences, in a single flat
+     candidate-major array: the c'th feature (1-indexed, like lambda[]) of the
+     k'th candidate of the i'th sentence is
+
+       data[(start[i]+k)*numFeats + (c-1)]
+
+     Candidates must be added sentence by sentence (i.e. in non-decreasing
+     order of i).  The array doubles in size when full, so adding a candidate
+     takes amortized constant time.
+  */
+
+  private int numSentences;
+  private int numFeats;
+  private double[] data;
+  private int[] start;
+  private int currSentence; // the sentence candidates are being added to
+  private int numCands;
+
+  public FeatureMatrix(int in_numSentences, int in_numFeats, int expectedCands)
+  {
+    numSentences = in_numSentences;
+    numFeats = in_numFeats;
+    data = new double[Math.max(1,expectedCands)*numFeats];
+    start = new int[numSentences+1];
+    currSentence = 0;
+    numCands = 0;
+  }
+
+  // adds a candidate for the i'th sentence; featVal is 1-indexed
+  public void add(int i, double[] featVal)
+  {
+    while (currSentence < i) {
+      ++currSentence;
+      start[currSentence] = numCands;
+    }
+
+    if ((numCands+1)*numFeats > data.length) {
+      data = Arrays.copyOf(data, Math.max(2*data.length, (numCands+1)*numFeats));
+    }
+
+    System.arraycopy(featVal, 1, data, numCands*numFeats, numFeats);
+    ++numCands;
+  }
+
+  // adds all the candidates of src's i'th sentence (src must be finished)
+  public void addAll(int i, FeatureMatrix src)
+  {
+    while (currSentence < i) {
+      ++currSentence;
+      start[currSentence] = numCands;
+    }
+
+    int count = src.candCount(i);
+    if ((numCands+count)*numFeats > data.length) {
+      data = Arrays.copyOf(data, Math.max(2*data.length, (numCands+count)*numFeats));
+    }
+
+    System.arraycopy(src.data, src.rowStart(i,0), data, numCands*numFeats, count*numFeats);
+    numCands += count;
+  }
+
+  // must be called once all candidates have been added
+  public void finish()
+  {
+    while (currSentence < numSentences) {
+      ++currSentence;
+      start[currSentence] = numCands;
+    }
+  }
+
+  public int get_numFeats() { return numFeats; }
+  public int get_numCands() { return numCands; }
+
+  public int candCount(int i) { return start[i+1] - start[i]; }
+
+  // index (among the candidates of all sentences) of the i'th sentence's first candidate
+  public int firstCand(int i) { return start[i]; }
+
+  // position in get_data() of the first feature of the k'th candidate of the i'th sentence
+  public int rowStart(int i, int k) { return (start[i]+k)*numFeats; }
+
+  // the underlying array; see above for its layout
+  public double[] get_data() { return data; }
+
+  public double get(int i, int k, int c) { return data[(start[i]+k)*numFeats + (c-1)]; }
+
+  // SUM_c lambda[c]*h_c(k'th candidate of the i'th sentence); lambda is 1-indexed
+  public double dot(int i, int k, double[] lambda)
+  {
+    int row = (start[i]+k)*numFeats - 1;
+    double score = 0;
+    for (int c = 1; c <= numFeats; ++c) {
+      score += lambda[c] * data[row+c];
+    }
+    return score;
+  }
+
+  // sets score[start[i]+k] to the model score (under lambda) of the k'th
+  // candidate of the i'th sentence, for all candidates
+  public void scores(double[] lambda, double[] score)
+  {
+    for (int k = 0, row = -1; k < numCands; ++k, row += numFeats) {
+      double s = 0;
+      for (int c = 1; c <= numFeats; ++c) {
+        s += lambda[c] * data[row+c];
+      }
+      score[k] = s;
+    }
+  }
+
+  // updates scores as set by scores() after lambda[c] changed by delta,
+  // i.e. adds delta*h_c to the score of every candidate
+  public void updateScores(double[] score, int c, double delta)
+  {
+    for (int k = 0, pos = c-1; k < numCands; ++k, pos += numFeats) {
+      score[k] += delta * data[pos];
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.util.*;
+
+public class FingerprintSet
+{
+  /*
+     Open-addressing (linear probing) map from 64-bit candidate fingerprints
+     to int values (e.g. the position of a candidate in the pool index).
+     The same fingerprint can be added more than once, so that, when the
+     strings themselves are compared to rule out fingerprint collisions,
+     every candidate with a given fingerprint can be found:
+
+       for (int slot = set.firstSlot(fp); slot >= 0; slot = set.nextSlot(fp,slot)) {
+         ... set.valueAt(slot) ...
+       }
+  */
+
+  private long[] keys;
+  private int[] values;  // -1 marks an empty slot
+  private int size;
+  private int mask;
+
+  public FingerprintSet(int expectedSize)
+  {
+    int capacity = 16;
+    while (capacity < 2*expectedSize) capacity <<= 1;
+    allocate(capacity);
+  }
+
+  public int size() { return size; }
+
+  public void clear()
+  {
+    if (size == 0) return;
+    Arrays.fill(values,-1);
+    size = 0;
+  }
+
+  // value must be non-negative
+  public void add(long fp, int value)
+  {
+    if (2*(size+1) > keys.length) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      allocate(2*keys.length);
+      for (int s = 0; s < oldKeys.length; ++s) {
+        if (oldValues[s] >= 0) insert(oldKeys[s],oldValues[s]);
+      }
+    }
+    insert(fp,value);
+    ++size;
+  }
+
+  // value of some entry with fingerprint fp, or -1 if there is none
+  public int get(long fp)
+  {
+    int slot = firstSlot(fp);
+    return (slot < 0) ? -1 : values[slot];
+  }
+
+  // first slot holding fingerprint fp, or -1 if there is none
+  public int firstSlot(long fp)
+  {
+    int slot = (int)fp & mask;
+    while (values[slot] >= 0) {
+      if (keys[slot] == fp) return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  // next slot after slot holding fingerprint fp, or -1 if there is none
+  public int nextSlot(long fp, int slot)
+  {
+    slot = (slot + 1) & mask;
+    while (values[slot] >= 0) {
+      if (keys[slot] == fp) return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int valueAt(int slot) { return values[slot]; }
+
+  // 64-bit fingerprint of a candidate string (FNV-1a over its chars,
+  // followed by the MurmurHash3 finalizer to spread the low bits, which
+  // are the ones used to pick a slot)
+  public static long fingerprint(String str)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int p = 0; p < str.length(); ++p) {
+      h ^= str.charAt(p);
+      h *= 0x100000001b3L;
+    }
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values,-1);
+    mask = capacity - 1;
+  }
+
+  private void insert(long fp, int value)
+  {
+    int slot = (int)fp & mask;
+    while (values[slot] >= 0) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = fp;
+    values[slot] = value;
+  }
+
+}
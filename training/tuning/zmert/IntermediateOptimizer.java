@@ -29,7 +29,10 @@
 import java.util.*;
 import java.io.*;
 import java.text.DecimalFormat;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -46,13 +49,20 @@ public class IntermediateOptimizer implements Runnable
   private int[][] best1Cand_suffStats;
   private double[] finalScore;
   private int[] candCount;
-  private double[][][] featVal_array;
-  private ConcurrentHashMap<Integer,int[]>[] suffStats_array;
+  private FeatureMatrix featMatrix;
+  private SuffStatsArena suffStatsArena;
+
+  private long wallNanos;  // time this optimization took,
+  private long cpuNanos;   // and CPU time of its thread (-1 if not reported)
 
   /* static data members */
   private final static DecimalFormat f4 = new DecimalFormat("###0.0000");
   private final static double NegInf = (-1.0 / 0.0);
   private final static double PosInf = (+1.0 / 0.0);
+  final static int RESCORE_INTERVAL = 32;
+    // the candidates' model scores are updated incrementally after each
+    // coordinate step, and recalculated from lambda every RESCORE_INTERVAL
+    // steps, so rounding errors cannot build up (see changeLambda)
 
   private static int numSentences;
   private static int numDocuments;
@@ -72,13 +82,18 @@ public class IntermediateOptimizer implements Runnable
   private static int suffStatsCount;
   private static String tmpDirPrefix;
   private static int verbosity;
+  private static int iteration; // (only used to label the JFR events)
+  private static int envelopeMethod; // 1: envelope walk, 2: hull sweep, 3: both, compared
+  private static ForkJoinPool paramPool;
+    // if not null, the parameters of a restart are investigated in parallel,
+    // in this pool (shared by all restarts)
 
   public static void set_MERTparams(
       int in_numSentences, int in_numDocuments, int[] in_docOfSentence, int[] in_docSubsetInfo,
       int in_numParams, double[] in_normalizationOptions,
       boolean[] in_isOptimizable, double[] in_minThValue, double[] in_maxThValue,
       boolean in_oneModificationPerIteration, EvaluationMetric in_evalMetric,
-      String in_tmpDirPrefix, int in_verbosity)
+      String in_tmpDirPrefix, int in_verbosity, int in_envelopeMethod, int in_paramThreads)
   {
     numSentences = in_numSentences;
     numDocuments = in_numDocuments;
@@ -102,13 +117,31 @@ public class IntermediateOptimizer implements Runnable
     suffStatsCount = evalMetric.get_suffStatsCount();
     tmpDirPrefix = in_tmpDirPrefix;
     verbosity = in_verbosity;
+    envelopeMethod = in_envelopeMethod;
+    // a pool that is replaced is shut down, so that its threads are released
+    // rather than kept idle (no restart is running at this point, so it has
+    // no tasks left)
+    if (in_paramThreads > 1) {
+      if (paramPool == null || paramPool.getParallelism() != in_paramThreads) {
+        if (paramPool != null) paramPool.shutdown();
+        paramPool = new ForkJoinPool(in_paramThreads);
+      }
+    } else if (paramPool != null) {
+      paramPool.shutdown();
+      paramPool = null;
+    }
+  }
+
+  public static void set_iteration(int in_iteration)
+  {
+    iteration = in_iteration;
   }
 
   public IntermediateOptimizer(
       int in_j, Semaphore in_blocker, Vector<String> in_threadOutput,
       double[] in_initialLambda, double[] in_finalLambda, int[][] in_best1Cand_suffStats,
-      double[] in_finalScore, int[] in_candCount, double[][][] in_featVal_array,
-      ConcurrentHashMap<Integer,int[]>[] in_suffStats_array)
+      double[] in_finalScore, int[] in_candCount, FeatureMatrix in_featMatrix,
+      SuffStatsArena in_suffStatsArena)
   {
     j = in_j;
     blocker = in_blocker;
@@ -120,14 +153,15 @@ public class IntermediateOptimizer implements Runnable
     best1Cand_suffStats = in_best1Cand_suffStats;
     finalScore = in_finalScore;
     candCount = in_candCount;
-    featVal_array = in_featVal_array;
-    suffStats_array = in_suffStats_array;
+    featMatrix = in_featMatrix;
+    suffStatsArena = in_suffStatsArena;
   }
 
 //  private TreeMap<Double,TreeMap> thresholdsForParam(int c, int[] candCount, double[][][] featVal_array, double[] currLambda, TreeSet<Integer>[] indicesOfInterest)
-  private void set_thresholdsForParam(
-      TreeMap<Double,TreeMap<Integer,int[]>> thresholdsAll, int c,
-      double[] currLambda, TreeSet<Integer>[] indicesOfInterest)
+  // (set_thresholdsForParam, prep_line_opt and line_opt are package-private
+  //  so that the benchmarks in bench/ can call them directly)
+  void set_thresholdsForParam(
+      ThresholdBuffer thresholdsAll, int c, double[] currLambda, double[] candScore)
   {
 /*
     TreeMap[] thresholds = new TreeMap[numSentences];
@@ -147,7 +181,42 @@ public class IntermediateOptimizer implements Runnable
 //    TreeMap<Double,TreeMap> thresholdsAll = new TreeMap<Double,TreeMap>();
     thresholdsAll.clear();
 
-    int ipCount = 0;
+    int maxCandCount = 0;
+    for (int i = 0; i < numSentences; ++i) {
+      if (candCount[i] > maxCandCount) maxCandCount = candCount[i];
+    }
+
+    double[] slope = new double[maxCandCount];
+      // will be h_c from candidatesInfo
+      // repeated here for easy access
+    double[] offset = new double[maxCandCount];
+      // SUM_j!=c currLambda_j*h_j(x)
+
+    // the transitions (ip,old_k,new_k) of the 1-best for a single sentence,
+    // in order of increasing lambda_c; a sentence has at most K-1 of them
+    double[] tr_ip = new double[maxCandCount];
+    int[] tr_old = new int[maxCandCount];
+    int[] tr_new = new int[maxCandCount];
+
+    // work arrays for transitions_hull, and a second set of transitions for
+    // when the two methods are compared
+    int[] order = null, hull = null, sortBuffer = null;
+    double[] tr2_ip = null;
+    int[] tr2_old = null, tr2_new = null;
+    if (envelopeMethod != 1) {
+      order = new int[maxCandCount];
+      hull = new int[maxCandCount];
+      sortBuffer = new int[maxCandCount];
+    }
+    if (envelopeMethod == 3) {
+      tr2_ip = new double[maxCandCount];
+      tr2_old = new int[maxCandCount];
+      tr2_new = new int[maxCandCount];
+    }
+    int mismatchCount = 0;
+
+    double[] feats = featMatrix.get_data();
+
     for (int i = 0; i < numSentences; ++i) {
     // find threshold points contributed by ith sentence
 
@@ -156,201 +225,34 @@ public class IntermediateOptimizer implements Runnable
       int numCandidates = candCount[i];
         // aka simply K
 
-      double[] slope = new double[numCandidates];
-        // will be h_c from candidatesInfo
-        // repeated here for easy access
-      double[] offset = new double[numCandidates];
-        // SUM_j!=c currLambda_j*h_j(x)
-
-      int minSlopeIndex = -1;          // index of line with steepest descent...
-      double minSlope = PosInf;        // ...and its slope...
-      double offset_minSlope = NegInf; // ...and its offset (needed to break ties)
-
-      int maxSlopeIndex = -1;          // index of line with steepest ascent...
-      double maxSlope = NegInf;        // ...and its slope...
-      double offset_maxSlope = NegInf; // ...and its offset (needed to break ties)
-
-      double bestScore_left = NegInf;  // these are used if the min/max values are
-      double bestScore_right = NegInf; // not neg/pos infinity
-
+      int firstCand = featMatrix.firstCand(i);
       for (int k = 0; k < numCandidates; ++k) {
-        slope[k] = featVal_array[c][i][k];
-
-        offset[k] = 0.0;
-        for (int c2 = 1; c2 <= numParams; ++c2) {
-          if (c2 != c) { offset[k] += currLambda[c2]*featVal_array[c2][i][k]; }
-        }
+        slope[k] = feats[featMatrix.rowStart(i,k) + (c-1)];
+        offset[k] = candScore[firstCand+k] - currLambda[c]*slope[k];
+          // i.e. SUM_c2!=c currLambda[c2]*h_c2, without going over all c2
 
         // debugging
 //        println("@ (i,k)=(" + i + "," + k + "), "
 //               + "slope = " + slope[k] + "; offset = " + offset[k],4);
-
-        if (minThValue[c] == NegInf) {
-          if (slope[k] < minSlope || (slope[k] == minSlope && offset[k] > offset_minSlope)) {
-            minSlopeIndex = k;
-            minSlope = slope[k];
-            offset_minSlope = offset[k];
-          }
-        } else {
-          double score = offset[k] + ((minThValue[c]-0.1)*slope[k]);
-          if (score > bestScore_left || (score == bestScore_left && slope[k] > minSlope)) {
-            minSlopeIndex = k;
-            minSlope = slope[k];
-            bestScore_left = score;
-          }
-        }
-
-        if (maxThValue[c] == PosInf) {
-          if (slope[k] > maxSlope || (slope[k] == maxSlope && offset[k] > offset_maxSlope)) {
-            maxSlopeIndex = k;
-            maxSlope = slope[k];
-            offset_maxSlope = offset[k];
-          }
-        } else {
-          double score = offset[k] + ((maxThValue[c]+0.1)*slope[k]);
-          if (score > bestScore_right || (score == bestScore_right && slope[k] < maxSlope)) {
-            maxSlopeIndex = k;
-            maxSlope = slope[k];
-            bestScore_right = score;
-          }
-        }
       }
 
-      // debugging
-//      println("minSlope is @ k = " + minSlopeIndex + ": slope " + minSlope
-//            + " (offset " + offset_minSlope + ")",4);
-//      println("maxSlope is @ k = " + maxSlopeIndex + ": slope " + maxSlope
-//            + " (offset " + offset_maxSlope + ")",4);
-
-
-      // some lines can be eliminated: the ones that have a lower offset
-      // than some other line with the same slope.
-      // That is, for any k1 and k2:
-      //   if slope[k1] = slope[k2] and offset[k1] > offset[k2],
-      //   then k2 can be eliminated.
-      // (This is actually important to do as it eliminates a bug.)
-//      HashSet<Integer> discardedIndices = indicesToDiscard(slope,offset);
-
-
-//      println("Extracting thresholds[(i,c)=(" + i + "," + c + ")]",4);
-
-      int currIndex = minSlopeIndex;
-        // As we traverse the currLambda_c dimension, the "winner" candidate will
-        // change at intersection points.  currIndex tells us which candidate is
-        // the winner in the interval currently under investigation.
-
-        // We traverse the lambda_c dimension starting at -Inf.  The line with
-        // steepest descent is the winner as lambda_c -> -Inf, so we initialize
-        // currIndex to minSlopeIndex to reflect that fact.
-
-        // Similarly, the winner as lambda_c -> +Inf is the line with the
-        // steepest *ascent* (i.e. max slope), and so we continue finding
-        // intersection points until we hit that line.
-
-        // Notice that we didn't have to investigate the entire space (-Inf,+Inf)
-        // if the parameter's range is more restricted than that.  That is why, in
-        // the loop above, the "left-most" winner is not necessarily the one with
-        // the steepest descent (though it will be if minThValue[c] is -Inf).
-        // And similarly, the "right-most" winner is not necessarily the one with
-        // the steepest ascent (though it will be if minThValue[c] is +Inf).  The
-        // point of doing this is to avoid extracting thresholds that will end up
-        // being discarded anyway due to range constraints, thus saving us a little
-        // bit of time.
-
-      int last_new_k = -1;
-
-      while (currIndex != maxSlopeIndex) {
-
-        if (currIndex < 0) break;
-          // Due to rounding errors, the index identified as maxSlopeIndex above
-          // might be different from the one this loop expects, in which case
-          // it won't be found and currIndex remains -1.  So if currIndex is -1
-          // a rounding error happened, which is cool since we can just break.
-
-//        print("cI=" + currIndex + " ",4);
-
-        // find the candidate whose line is the first to intersect the current
-        // line.  ("first" meaning with an intersection point that has the
-        //         lowest possible lambda_c value.)
-
-        double nearestIntersectionPoint = PosInf;
-        int nearestIntersectingLineIndex = -1;
-
-        for (int k = 0; k < numCandidates; ++k) {
-//          if (slope[k] > slope[currIndex] && !discardedIndices.contains(k)) {
-          if (slope[k] > slope[currIndex]) {
-          // only higher-sloped lines will intersect the current line
-          // (If we didn't have discardedIndices a bug would creep up here.)
-
-            // find intersection point ip_k
-            double ip_k = (offset[k] - offset[currIndex])/(slope[currIndex] - slope[k]);
-            if (ip_k < nearestIntersectionPoint) {
-              nearestIntersectionPoint = ip_k;
-              nearestIntersectingLineIndex = k;
-            }
+      int numTransitions;
+      if (envelopeMethod == 2) {
+        numTransitions = transitions_hull(numCandidates,slope,offset,c,order,hull,sortBuffer,tr_ip,tr_old,tr_new);
+      } else {
+        numTransitions = transitions_walk(numCandidates,slope,offset,c,tr_ip,tr_old,tr_new);
+        if (envelopeMethod == 3) {
+          int numTransitions2 = transitions_hull(numCandidates,slope,offset,c,order,hull,sortBuffer,tr2_ip,tr2_old,tr2_new);
+          if (!sameTransitions(numTransitions,tr_ip,tr_new,numTransitions2,tr2_ip,tr2_new)) {
+            ++mismatchCount;
           }
         }
-
-//        print("ip=" + f4.format(nearestIntersectionPoint) + " ",4);
-        ++ipCount;
-
-        if (nearestIntersectionPoint > minThValue[c] && nearestIntersectionPoint < maxThValue[c]) {
-
-          int[] th_info = {currIndex,nearestIntersectingLineIndex};
-          last_new_k = nearestIntersectingLineIndex;
-
-          indicesOfInterest[i].add(currIndex); // old_k
-//          indicesOfInterest_all[i].add(currIndex); // old_k   ***/
-
-          if (!thresholdsAll.containsKey(nearestIntersectionPoint)) {
-            TreeMap<Integer,int[]> A = new TreeMap<Integer,int[]>();
-            A.put(i,th_info);
-            thresholdsAll.put(nearestIntersectionPoint,A);
-          } else {
-            TreeMap<Integer,int[]> A = thresholdsAll.get(nearestIntersectionPoint);
-            if (!A.containsKey(i)) {
-              A.put(i,th_info);
-            } else {
-              int[] old_th_info = A.get(i);
-              old_th_info[1] = th_info[1]; // replace the existing new_k
-              A.put(i,th_info);
-            }
-            thresholdsAll.put(nearestIntersectionPoint,A);
-          }
-/*
-          if (!thresholds.containsKey(nearestIntersectionPoint)) {
-            thresholds.put(nearestIntersectionPoint,th_info);
-              // i.e., at lambda_c = nIP, the (index of the) 1-best changes
-              // from currIndex to nearestIntersectingLineIndex (which is
-              // indicated in th_info)
-          } else { // extremely rare, but causes problem if it does occur
-            // in essence, just replace the new_k of the existing th_info
-            int[] old_th_info = (int[])thresholds.get(nearestIntersectionPoint);
-            old_th_info[1] = th_info[1];
-            thresholds.put(nearestIntersectionPoint,old_th_info);
-            // When does this happen?  If two consecutive intersection points are so close
-            // to each other so as to appear as having the same value.  For instance, assume
-            // we have two intersection points ip1 and ip2 corresponding to two transitions,
-            // one from k_a to k_b, and the other from k_b to k_c.  It might be the case
-            // that ip2-ip1 is extremeley small, so that the ip2 entry would actually REPLACE
-            // the ip1 entry.  This would be bad.
-
-            // Instead, we pretend that k_b never happened, and just assume there is a single
-            // intersection point, ip (which equals whatever value Java calculates for ip1
-            // and ip2), with a corresponding transition of k_a to k_c.
-          }
-*/
-          } // if (in-range)
-
-        currIndex = nearestIntersectingLineIndex;
-
-      } // end while (currIndex != maxSlopeIndex)
-
-      if (last_new_k != -1) {
-        indicesOfInterest[i].add(last_new_k); // last new_k
-//        indicesOfInterest_all[i].add(last_new_k); // last new_k  ***/
       }
 
+      for (int t = 0; t < numTransitions; ++t) {
+        thresholdsAll.add(tr_ip[t],i,tr_old[t],tr_new[t]);
+      } // for (t)
+
 //      println("cI=" + currIndex + "(=? " + maxSlopeIndex + " = mxSI)",4);
 
       // now thresholds has the values for lambda_c at which score changes
@@ -399,43 +301,280 @@ public class IntermediateOptimizer implements Runnable
 
     } // for (i)
 
+    if (mismatchCount > 0) {
+      println("Warning: the hull sweep and the envelope walk disagree on the thresholds of "
+            + mismatchCount + " sentence(s) for lambda[j=" + j + "][" + c + "].",1);
+    }
+
+    thresholdsAll.sort();
+
     // now thresholdsAll has the values for lambda_c at which score changes
     // based on the candidates for *all* the sentences (that satisfy
     // range constraints).
-    // Each lambda_c value maps to a Vector of th_info.  An overwhelming majority
-    // of these Vectors are of size 1.
-
-    // indicesOfInterest[i] tells us which candidates for the ith sentence need
-    // to be read from the merged decoder output file.
+    // Each lambda_c value has one transition per sentence whose 1-best changes
+    // there.  An overwhelming majority of the values have a single transition.
 
-    if (thresholdsAll.size() != 0) {
-      double smallest_th = thresholdsAll.firstKey();
-      double largest_th = thresholdsAll.lastKey();
-      println("# extracted thresholds: " + thresholdsAll.size(),2);
+    if (!thresholdsAll.isEmpty()) {
+      double smallest_th = thresholdsAll.firstThreshold();
+      double largest_th = thresholdsAll.lastThreshold();
+      println("# extracted thresholds: " + thresholdsAll.get_numThresholds(),2);
       println("Smallest extracted threshold: " + smallest_th,2);
       println("Largest extracted threshold: " + largest_th,2);
 
       if (maxThValue[c] != PosInf) {
-        thresholdsAll.put(maxThValue[c],null);
+        thresholdsAll.addEnd(maxThValue[c]);
       } else {
-        thresholdsAll.put((thresholdsAll.lastKey() + 0.1),null);
+        thresholdsAll.addEnd(largest_th + 0.1);
       }
     }
 
 //    return thresholdsAll;
 
-  } // TreeMap<Double,TreeMap> thresholdsForParam (int c)
+  } // void set_thresholdsForParam(...)
+
+  // The original O(K^2) envelope walk: starting from the 1-best at the left
+  // end of lambda_c's range, repeatedly scan all K lines for the one that
+  // intersects the current winner first.  Stores the in-range transitions of
+  // the 1-best in (tr_ip,tr_old,tr_new) and returns their number.
+  private int transitions_walk(
+      int numCandidates, double[] slope, double[] offset, int c,
+      double[] tr_ip, int[] tr_old, int[] tr_new)
+  {
+    int minSlopeIndex = -1;          // index of line with steepest descent...
+    double minSlope = PosInf;        // ...and its slope...
+    double offset_minSlope = NegInf; // ...and its offset (needed to break ties)
+
+    int maxSlopeIndex = -1;          // index of line with steepest ascent...
+    double maxSlope = NegInf;        // ...and its slope...
+    double offset_maxSlope = NegInf; // ...and its offset (needed to break ties)
+
+    double bestScore_left = NegInf;  // these are used if the min/max values are
+    double bestScore_right = NegInf; // not neg/pos infinity
+
+    for (int k = 0; k < numCandidates; ++k) {
+      if (minThValue[c] == NegInf) {
+        if (slope[k] < minSlope || (slope[k] == minSlope && offset[k] > offset_minSlope)) {
+          minSlopeIndex = k;
+          minSlope = slope[k];
+          offset_minSlope = offset[k];
+        }
+      } else {
+        double score = offset[k] + ((minThValue[c]-0.1)*slope[k]);
+        if (score > bestScore_left || (score == bestScore_left && slope[k] > minSlope)) {
+          minSlopeIndex = k;
+          minSlope = slope[k];
+          bestScore_left = score;
+        }
+      }
+
+      if (maxThValue[c] == PosInf) {
+        if (slope[k] > maxSlope || (slope[k] == maxSlope && offset[k] > offset_maxSlope)) {
+          maxSlopeIndex = k;
+          maxSlope = slope[k];
+          offset_maxSlope = offset[k];
+        }
+      } else {
+        double score = offset[k] + ((maxThValue[c]+0.1)*slope[k]);
+        if (score > bestScore_right || (score == bestScore_right && slope[k] < maxSlope)) {
+          maxSlopeIndex = k;
+          maxSlope = slope[k];
+          bestScore_right = score;
+        }
+      }
+    }
+
+    // debugging
+//      println("minSlope is @ k = " + minSlopeIndex + ": slope " + minSlope
+//            + " (offset " + offset_minSlope + ")",4);
+//      println("maxSlope is @ k = " + maxSlopeIndex + ": slope " + maxSlope
+//            + " (offset " + offset_maxSlope + ")",4);
+
+
+    // some lines can be eliminated: the ones that have a lower offset
+    // than some other line with the same slope.
+    // That is, for any k1 and k2:
+    //   if slope[k1] = slope[k2] and offset[k1] > offset[k2],
+    //   then k2 can be eliminated.
+    // (This is actually important to do as it eliminates a bug.)
+//      HashSet<Integer> discardedIndices = indicesToDiscard(slope,offset);
+
+
+//      println("Extracting thresholds[(i,c)=(" + i + "," + c + ")]",4);
+
+    int currIndex = minSlopeIndex;
+      // As we traverse the currLambda_c dimension, the "winner" candidate will
+      // change at intersection points.  currIndex tells us which candidate is
+      // the winner in the interval currently under investigation.
+
+      // We traverse the lambda_c dimension starting at -Inf.  The line with
+      // steepest descent is the winner as lambda_c -> -Inf, so we initialize
+      // currIndex to minSlopeIndex to reflect that fact.
+
+      // Similarly, the winner as lambda_c -> +Inf is the line with the
+      // steepest *ascent* (i.e. max slope), and so we continue finding
+      // intersection points until we hit that line.
+
+      // Notice that we didn't have to investigate the entire space (-Inf,+Inf)
+      // if the parameter's range is more restricted than that.  That is why, in
+      // the loop above, the "left-most" winner is not necessarily the one with
+      // the steepest descent (though it will be if minThValue[c] is -Inf).
+      // And similarly, the "right-most" winner is not necessarily the one with
+      // the steepest ascent (though it will be if minThValue[c] is +Inf).  The
+      // point of doing this is to avoid extracting thresholds that will end up
+      // being discarded anyway due to range constraints, thus saving us a little
+      // bit of time.
+
+    int numTransitions = 0;
 
-  private double[] line_opt(
-      TreeMap<Double,TreeMap<Integer,int[]>> thresholdsAll, int[] indexOfCurrBest,
+    while (currIndex != maxSlopeIndex) {
+
+      if (currIndex < 0) break;
+        // Due to rounding errors, the index identified as maxSlopeIndex above
+        // might be different from the one this loop expects, in which case
+        // it won't be found and currIndex remains -1.  So if currIndex is -1
+        // a rounding error happened, which is cool since we can just break.
+
+//        print("cI=" + currIndex + " ",4);
+
+      // find the candidate whose line is the first to intersect the current
+      // line.  ("first" meaning with an intersection point that has the
+      //         lowest possible lambda_c value.)
+
+      double nearestIntersectionPoint = PosInf;
+      int nearestIntersectingLineIndex = -1;
+
+      for (int k = 0; k < numCandidates; ++k) {
+//          if (slope[k] > slope[currIndex] && !discardedIndices.contains(k)) {
+        if (slope[k] > slope[currIndex]) {
+        // only higher-sloped lines will intersect the current line
+        // (If we didn't have discardedIndices a bug would creep up here.)
+
+          // find intersection point ip_k
+          double ip_k = (offset[k] - offset[currIndex])/(slope[currIndex] - slope[k]);
+          if (ip_k < nearestIntersectionPoint) {
+            nearestIntersectionPoint = ip_k;
+            nearestIntersectingLineIndex = k;
+          }
+        }
+      }
+
+//        print("ip=" + f4.format(nearestIntersectionPoint) + " ",4);
+
+      if (nearestIntersectionPoint > minThValue[c] && nearestIntersectionPoint < maxThValue[c]) {
+        tr_ip[numTransitions] = nearestIntersectionPoint;
+        tr_old[numTransitions] = currIndex;
+        tr_new[numTransitions] = nearestIntersectingLineIndex;
+        ++numTransitions;
+      }
+
+      currIndex = nearestIntersectingLineIndex;
+
+    } // end while (currIndex != maxSlopeIndex)
+
+    return numTransitions;
+
+  } // int transitions_walk(...)
+
+  // Same as transitions_walk, but in O(K log K): the lines are sorted by slope
+  // (ties broken by decreasing offset, then by index), and the upper envelope
+  // is built with a single stack-based sweep.  A line is popped off the stack
+  // if the new line overtakes the line below it no later than it does, so the
+  // lines left on the stack, in order, are the successive 1-bests.
+  // Intersection points are calculated exactly as transitions_walk does, so
+  // both methods give the same transitions unless three or more lines meet
+  // at (nearly) the same point.
+  private int transitions_hull(
+      int numCandidates, double[] slope, double[] offset, int c,
+      int[] order, int[] hull, int[] sortBuffer,
+      double[] tr_ip, int[] tr_old, int[] tr_new)
+  {
+    for (int k = 0; k < numCandidates; ++k) { order[k] = k; }
+    sortBySlope(order,sortBuffer,0,numCandidates,slope,offset);
+
+    int hullSize = 0;
+    for (int n = 0; n < numCandidates; ++n) {
+      int k = order[n];
+      if (hullSize > 0 && slope[hull[hullSize-1]] == slope[k]) continue;
+        // parallel to the top line, with a lower (or the same) offset
+
+      while (hullSize >= 2) {
+        int k_a = hull[hullSize-2];
+        int k_b = hull[hullSize-1];
+        double ip_ab = (offset[k_b] - offset[k_a])/(slope[k_a] - slope[k_b]);
+        double ip_ak = (offset[k] - offset[k_a])/(slope[k_a] - slope[k]);
+        if (ip_ak <= ip_ab) --hullSize; // k_b is never (strictly) the 1-best
+        else break;
+      }
+
+      hull[hullSize] = k;
+      ++hullSize;
+    }
+
+    int numTransitions = 0;
+    for (int h = 0; h+1 < hullSize; ++h) {
+      int currIndex = hull[h];
+      int nextIndex = hull[h+1];
+      double ip = (offset[nextIndex] - offset[currIndex])/(slope[currIndex] - slope[nextIndex]);
+      if (ip > minThValue[c] && ip < maxThValue[c]) {
+        tr_ip[numTransitions] = ip;
+        tr_old[numTransitions] = currIndex;
+        tr_new[numTransitions] = nextIndex;
+        ++numTransitions;
+      }
+    }
+
+    return numTransitions;
+
+  } // int transitions_hull(...)
+
+  // stable merge sort of order[from..to-1] by increasing slope, then by
+  // decreasing offset
+  private static void sortBySlope(
+      int[] order, int[] buffer, int from, int to, double[] slope, double[] offset)
+  {
+    if (to - from < 2) return;
+    int mid = (from + to) >>> 1;
+    sortBySlope(order,buffer,from,mid,slope,offset);
+    sortBySlope(order,buffer,mid,to,slope,offset);
+
+    int p = from, q = mid, n = from;
+    while (p < mid && q < to) {
+      int k1 = order[p], k2 = order[q];
+      if (slope[k2] < slope[k1] || (slope[k2] == slope[k1] && offset[k2] > offset[k1])) {
+        buffer[n++] = k2; ++q;
+      } else {
+        buffer[n++] = k1; ++p;
+      }
+    }
+    while (p < mid) { buffer[n++] = order[p++]; }
+    while (q < to) { buffer[n++] = order[q++]; }
+    System.arraycopy(buffer,from,order,from,to-from);
+  }
+
+  // do two lists of transitions give the same thresholds (and new_k's)?
+  private static boolean sameTransitions(
+      int count1, double[] ip1, int[] new1, int count2, double[] ip2, int[] new2)
+  {
+    if (count1 != count2) return false;
+    for (int t = 0; t < count1; ++t) {
+      if (ip1[t] != ip2[t] || new1[t] != new2[t]) return false;
+    }
+    return true;
+  }
+
+  double[] line_opt(
+      ThresholdBuffer thresholdsAll, int[] indexOfCurrBest,
       int c, double[] lambda)
   {
     println("Line-optimizing lambda[" + c + "]...",3);
 
+    TuningEvents.LineSearch event = new TuningEvents.LineSearch();
+    event.begin();
+
     double[] bestScoreInfo = new double[2];
       // to be returned: [0] will store the best lambda, and [1] will store its score
 
-    if (thresholdsAll.size() == 0) {
+    if (thresholdsAll.isEmpty()) {
       // no thresholds extracted!  Possible in theory...
       // simply return current value for this parameter
       println("No thresholds extracted!  Returning this parameter's current value...",2);
@@ -443,11 +582,12 @@ public class IntermediateOptimizer implements Runnable
       bestScoreInfo[0] = lambda[c];
       bestScoreInfo[1] = evalMetric.worstPossibleScore();
 
+      event.record(iteration, j, c, featMatrix.get_numCands(), 0);
       return bestScoreInfo;
     }
 
-    double smallest_th = thresholdsAll.firstKey();
-    double largest_th = thresholdsAll.lastKey();
+    double smallest_th = thresholdsAll.firstThreshold();
+    double largest_th = thresholdsAll.lastThreshold();
     println("Minimum threshold: " + smallest_th,3);
     println("Maximum threshold: " + largest_th,3);
 
@@ -467,82 +607,88 @@ public class IntermediateOptimizer implements Runnable
 
 
 
-    int[][] suffStats = new int[numSentences][suffStatsCount];
-      // suffStats[i][s] stores the contribution to the sth sufficient
+    int[] ssData = suffStatsArena.get_data();
+    int[] ssRow = new int[numSentences];
+      // ssData[ssRow[i]+s] stores the contribution to the sth sufficient
       // statistic from the candidate for the ith sentence (the candidate
       // indicated by indexOfCurrBest[i]).
 
-    int[][] suffStats_doc = new int[numDocuments][suffStatsCount];
-      // suffStats_doc[doc][s] := SUM_i suffStats[i][s], over sentences in the doc'th document
+    int[] suffStats_doc = new int[numDocuments*suffStatsCount];
+      // suffStats_doc[doc*suffStatsCount+s] := SUM_i suffStats[i][s], over sentences in the doc'th document
       // i.e. treat each document as a mini corpus
       // (if not doing document-level optimization, all sentences will belong in a single
       //  document: the 1st one, indexed 0)
 
-    // initialize document SS
-    for (int doc = 0; doc < numDocuments; ++doc) {
-      for (int s = 0; s < suffStatsCount; ++s) {
-        suffStats_doc[doc][s] = 0;
-      }
-    }
+    int[] scoreScratch = new int[suffStatsCount];
+    double[] docScores = new double[numDocuments];
+      // buffers for evalMetric.score_docs, so that scoring the stats after
+      // each threshold does not allocate anything
 
-    // Now, set suffStats[][], and increment suffStats_doc[][]
+    // set ssRow[], and increment suffStats_doc[]
     for (int i = 0; i < numSentences; ++i) {
-      suffStats[i] = suffStats_array[i].get(indexOfCurrBest[i]);
+      ssRow[i] = suffStatsArena.rowStart(i,indexOfCurrBest[i]);
 
+      int docRow = docOfSentence[i]*suffStatsCount;
       for (int s = 0; s < suffStatsCount; ++s) {
-        suffStats_doc[docOfSentence[i]][s] += suffStats[i][s];
+        suffStats_doc[docRow+s] += ssData[ssRow[i]+s];
       }
     }
 
 
 
     double bestScore = 0.0;
-    if (optimizeSubset) bestScore = evalMetric.score(suffStats_doc,docSubset_firstRank,docSubset_lastRank);
-    else bestScore = evalMetric.score(suffStats_doc);
+    if (optimizeSubset) bestScore = evalMetric.score_docs(suffStats_doc,docSubset_firstRank,docSubset_lastRank,docScores,scoreScratch);
+    else bestScore = evalMetric.score_docs(suffStats_doc,scoreScratch);
     double bestLambdaVal = temp_lambda[c];
     double nextLambdaVal = bestLambdaVal;
     println("At lambda[" + c + "] = " + bestLambdaVal + ","
           + "\t" + metricName_display + " = " + bestScore + " (*)",3);
 
-    Iterator<Double> It = (thresholdsAll.keySet()).iterator();
-    if (It.hasNext()) { ip_curr = It.next(); }
+    int numTransitions = thresholdsAll.size();
+    int n = 0; // the next transition to apply
+    if (n < numTransitions) { ip_curr = thresholdsAll.threshold(0); }
 
-    while (It.hasNext()) {
+    while (n < numTransitions) {
       ip_prev = ip_curr;
-      ip_curr = It.next();
+
+      // apply the transitions at ip_prev (there is one per sentence whose
+      // 1-best changes there), and find the next threshold ip_curr
+      int n_next = n;
+      while (n_next < numTransitions && Double.compare(thresholdsAll.threshold(n_next),ip_prev) == 0) { ++n_next; }
+      if (n_next == numTransitions) break; // ip_prev is the end threshold
+      ip_curr = thresholdsAll.threshold(n_next);
       nextLambdaVal = (ip_prev + ip_curr)/2.0;
 
-      TreeMap<Integer,int[]> th_info_M = thresholdsAll.get(ip_prev);
-      Iterator<Integer> It2 = (th_info_M.keySet()).iterator();
-      while (It2.hasNext()) {
-        int i = It2.next();
+      for (; n < n_next; ++n) {
+        int i = thresholdsAll.sentence(n);
           // i.e. the 1-best for the i'th sentence changes at this threshold value
-        int docOf_i = docOfSentence[i];
+        int docRow = docOfSentence[i]*suffStatsCount;
 
-        int[] th_info = th_info_M.get(i);
         @SuppressWarnings("unused")
-        int old_k = th_info[0]; // should be equal to indexOfCurrBest[i]
-        int new_k = th_info[1];
+        int old_k = thresholdsAll.oldK(n); // should be equal to indexOfCurrBest[i]
+        int new_k = thresholdsAll.newK(n);
 
         for (int s = 0; s < suffStatsCount; ++s) {
-          suffStats_doc[docOf_i][s] -= suffStats[i][s]; // subtract stats for candidate old_k
+          suffStats_doc[docRow+s] -= ssData[ssRow[i]+s]; // subtract stats for candidate old_k
         }
 
         indexOfCurrBest[i] = new_k;
-        suffStats[i] = suffStats_array[i].get(indexOfCurrBest[i]); // update the SS for the i'th sentence
+        ssRow[i] = suffStatsArena.rowStart(i,indexOfCurrBest[i]); // update the SS for the i'th sentence
 
         for (int s = 0; s < suffStatsCount; ++s) {
-          suffStats_doc[docOf_i][s] += suffStats[i][s]; // add stats for candidate new_k
+          suffStats_doc[docRow+s] += ssData[ssRow[i]+s]; // add stats for candidate new_k
         }
 
       }
 
       double nextTestScore = 0.0;
-      if (optimizeSubset) nextTestScore = evalMetric.score(suffStats_doc,docSubset_firstRank,docSubset_lastRank);
-      else nextTestScore = evalMetric.score(suffStats_doc);
+      if (optimizeSubset) nextTestScore = evalMetric.score_docs(suffStats_doc,docSubset_firstRank,docSubset_lastRank,docScores,scoreScratch);
+      else nextTestScore = evalMetric.score_docs(suffStats_doc,scoreScratch);
 
-      print("At lambda[" + c + "] = " + nextLambdaVal + ","
-          + "\t" + metricName_display + " = " + nextTestScore,3);
+      if (verbosity >= 3) { // (checked here to avoid building the string otherwise)
+        print("At lambda[" + c + "] = " + nextLambdaVal + ","
+            + "\t" + metricName_display + " = " + nextTestScore,3);
+      }
 
       if (evalMetric.isBetter(nextTestScore,bestScore)) {
         bestScore = nextTestScore;
@@ -552,7 +698,7 @@ public class IntermediateOptimizer implements Runnable
 
       println("",3);
 
-    } // while (It.hasNext())
+    } // while (n < numTransitions)
 
     println("",3);
 
@@ -572,83 +718,11 @@ public class IntermediateOptimizer implements Runnable
     bestScoreInfo[0] = bestLambdaVal;
     bestScoreInfo[1] = bestScore;
 
+    event.record(iteration, j, c, featMatrix.get_numCands(), thresholdsAll.size());
     return bestScoreInfo;
 
   } // double[] line_opt(int c)
 
-  private void set_suffStats_array(TreeSet<Integer>[] indicesOfInterest)
-  {
-    int candsOfInterestCount = 0;
-    int candsOfInterestCount_all = 0;
-    for (int i = 0; i < numSentences; ++i) {
-      candsOfInterestCount += indicesOfInterest[i].size();
-//      candsOfInterestCount_all += indicesOfInterest_all[i].size();  ****/
-    }
-    println("Processing merged stats file; extracting SS "
-          + "for " + candsOfInterestCount + " candidates of interest.",2);
-//    println("(*_all: " + candsOfInterestCount_all + ")",2); *****/
-
-
-    try {
-
-      // process the merged sufficient statistics file, and read (and store) the
-      // stats for candidates of interest
-      BufferedReader inFile = new BufferedReader(new FileReader(tmpDirPrefix+"temp.stats.merged"));
-      String candidate_suffStats;
-
-      for (int i = 0; i < numSentences; ++i) {
-        int numCandidates = candCount[i];
-
-        int currCand = 0;
-        Iterator<Integer> It = indicesOfInterest[i].iterator();
-
-        while (It.hasNext()) {
-          int nextIndex = It.next();
-
-          // skip candidates until you get to the nextIndex'th candidate
-          while (currCand < nextIndex) {
-            inFile.readLine();
-            ++currCand;
-          }
-
-          // now currCand == nextIndex, and the next line in inFile
-          // contains the sufficient statistics we want
-
-          candidate_suffStats = inFile.readLine();
-          ++currCand;
-
-          String[] suffStats_str = candidate_suffStats.split("\\s+");
-
-          int[] suffStats = new int[suffStatsCount];
-
-          for (int s = 0; s < suffStatsCount; ++s) {
-            suffStats[s] = Integer.parseInt(suffStats_str[s]);
-          }
-
-          suffStats_array[i].put(nextIndex,suffStats);
-
-        }
-
-        // skip the rest of ith sentence's candidates
-        while (currCand < numCandidates) {
-          inFile.readLine();
-          ++currCand;
-        }
-
-      } // for (i)
-
-      inFile.close();
-
-    } catch (FileNotFoundException e) {
-      System.err.println("FileNotFoundException in MertCore.initialize(int): " + e.getMessage());
-      System.exit(99901);
-    } catch (IOException e) {
-      System.err.println("IOException in MertCore.initialize(int): " + e.getMessage());
-      System.exit(99902);
-    }
-
-  } // set_suffStats_array(HashMap[] suffStats_array, TreeSet[] indicesOfInterest, Vector[] candidates)
-
   private double L_norm(double[] A, double pow)
   {
     // calculates the L-pow norm of A[]
@@ -660,25 +734,28 @@ public class IntermediateOptimizer implements Runnable
     return Math.pow(sum,1/pow);
   }
 
-  private int[] initial_indexOfCurrBest(double[] temp_lambda, TreeSet<Integer>[] indicesOfInterest)
+  private int[] initial_indexOfCurrBest(double[] temp_lambda, int c, double[] currLambda, double[] candScore)
   {
+    // temp_lambda differs from currLambda only in lambda_c, so a candidate's
+    // score under temp_lambda is obtained from its score under currLambda
+
     int[] indexOfCurrBest = new int[numSentences];
       // As we traverse lambda_c, indexOfCurrBest indicates which is the
       // current best candidate.
 
     // initialize indexOfCurrBest[]
 
+    double[] feats = featMatrix.get_data();
+
     for (int i = 0; i < numSentences; ++i) {
       int numCandidates = candCount[i];
+      int firstCand = featMatrix.firstCand(i);
 
       double max = NegInf;
       int indexOfMax = -1;
       for (int k = 0; k < numCandidates; ++k) {
-        double score = 0;
-
-        for (int c2 = 1; c2 <= numParams; ++c2) {
-          score += temp_lambda[c2] * featVal_array[c2][i][k];
-        }
+        double h_c = feats[featMatrix.rowStart(i,k) + (c-1)];
+        double score = (candScore[firstCand+k] - currLambda[c]*h_c) + temp_lambda[c]*h_c;
         if (score > max) {
           max = score;
           indexOfMax = k;
@@ -687,20 +764,87 @@ public class IntermediateOptimizer implements Runnable
 
       indexOfCurrBest[i] = indexOfMax;
 
-//      if (useDisk == 2) {
-        // add indexOfCurrBest[i] to indicesOfInterest
-        indicesOfInterest[i].add(indexOfMax);
-//        indicesOfInterest_all[i].add(indexOfMax);
-//      }
-
     }
 
     return indexOfCurrBest;
 
   } // int[] initial_indexOfCurrBest (int c)
 
-  private double[] bestParamToChange(TreeMap<Double,TreeMap<Integer,int[]>>[] thresholdsAll, int lastChanged_c, double[] currLambda)
+  // extracts the thresholds for lambda_c (unless c is lastChanged_c, whose
+  // thresholds are kept from the previous step), and returns the initial
+  // indexOfCurrBest[] for line_opt (null if lambda_c is not optimizable)
+  int[] prep_line_opt(
+      ThresholdBuffer thresholdsAll, int c, int lastChanged_c, double[] currLambda, double[] candScore)
+  {
+    if (!isOptimizable[c]) {
+      println("Not investigating lambda[j=" + j + "][" + c + "].",2);
+      return null;
+    }
+
+    if (c != lastChanged_c) {
+      println("Investigating lambda[j=" + j + "][" + c + "]...",2);
+      set_thresholdsForParam(thresholdsAll,c,currLambda,candScore);
+    } else {
+      println("Keeping thresholds for lambda[j=" + j + "][" + c + "] from previous step.",2);
+    }
+    // now thresholdsAll has the values for lambda_c at which score changes
+    // based on the candidates for *all* the sentences (that satisfy
+    // range constraints).
+    // Each lambda_c value has one transition per sentence whose 1-best
+    // changes there.
+
+    int[] indexOfCurrBest = new int[numSentences];
+
+    if (!thresholdsAll.isEmpty()) {
+
+      double[] temp_lambda = new double[1+numParams];
+      System.arraycopy(currLambda,1,temp_lambda,1,numParams);
+
+      double smallest_th = thresholdsAll.firstThreshold();
+
+      if (minThValue[c] != NegInf) {
+        temp_lambda[c] = (minThValue[c] + smallest_th) / 2.0;
+      } else {
+        temp_lambda[c] = smallest_th - 0.05;
+      }
+
+      indexOfCurrBest =
+        initial_indexOfCurrBest(temp_lambda,c,currLambda,candScore);
+    }
+
+    return indexOfCurrBest;
+
+  } // int[] prep_line_opt(...)
+
+  // prep_line_opt followed by line_opt, for a single parameter (null if
+  // lambda_c is not optimizable).  Used when the parameters are investigated
+  // in parallel.
+  private double[] investigateParam(
+      ThresholdBuffer thresholdsAll, int c, int lastChanged_c, double[] currLambda, double[] candScore)
+  {
+    int[] indexOfCurrBest = prep_line_opt(thresholdsAll,c,lastChanged_c,currLambda,candScore);
+    println("",2);
+
+    double[] bestScoreInfo = null;
+    if (isOptimizable[c]) {
+      bestScoreInfo = line_opt(thresholdsAll,indexOfCurrBest,c,currLambda);
+    }
+
+    if (!strToPrint.equals("")) {
+      threadOutput.add(strToPrint);
+      strToPrint = "";
+    }
+
+    return bestScoreInfo;
+  }
+
+  private double[] bestParamToChange(
+      ThresholdBuffer[] thresholdsAll, final int lastChanged_c, final double[] currLambda,
+      final double[] candScore)
   {
+    TuningEvents.BestParamToChange event = new TuningEvents.BestParamToChange();
+    event.begin();
+
     int c_best = 0; // which parameter to change?
     double bestLambdaVal = 0.0;
     double bestScore;
@@ -715,109 +859,85 @@ public class IntermediateOptimizer implements Runnable
 
     // prep for line_opt
 
-    TreeSet<Integer>[] indicesOfInterest = null;
-    // indicesOfInterest[i] tells us which candidates for the ith sentence need
-    // to be read from the merged decoder output file.
-
-//    if (useDisk == 2) {
-      @SuppressWarnings("unchecked")
-      TreeSet<Integer>[] temp_TSA = new TreeSet[numSentences];
-      indicesOfInterest = temp_TSA;
-      for (int i = 0; i < numSentences; ++i) {
-        indicesOfInterest[i] = new TreeSet<Integer>();
-      }
-//    }
+    double[][] bestScoreInfo = new double[1+numParams][];
+      // bestScoreInfo[c] is the best value of lambda[c] and its score,
+      // as returned by line_opt
 
-    int[][] indexOfCurrBest = new int[1+numParams][numSentences];
+    if (paramPool == null) {
 
-    for (int c = 1; c <= numParams; ++c) {
-      if (!isOptimizable[c]) {
-        println("Not investigating lambda[j=" + j + "][" + c + "].",2);
-      } else {
-        if (c != lastChanged_c) {
-          println("Investigating lambda[j=" + j + "][" + c + "]...",2);
-//          thresholdsAll[c] = thresholdsForParam(c,candCount,featVal_array,currLambda,indicesOfInterest);
-          set_thresholdsForParam(
-            thresholdsAll[c],c,currLambda,indicesOfInterest);
-        } else {
-          println("Keeping thresholds for lambda[j=" + j + "][" + c + "] from previous step.",2);
-        }
-        // now thresholdsAll has the values for lambda_c at which score changes
-        // based on the candidates for *all* the sentences (that satisfy
-        // range constraints).
-        // Each lambda_c value maps to a Vector of th_info.  An overwhelming majority
-        // of these Vectors are of size 1.
+      int[][] indexOfCurrBest = new int[1+numParams][numSentences];
 
-        if (thresholdsAll[c].size() != 0) {
+      for (int c = 1; c <= numParams; ++c) {
+        indexOfCurrBest[c] = prep_line_opt(thresholdsAll[c],c,lastChanged_c,currLambda,candScore);
+        println("",2);
+      }
 
-          double[] temp_lambda = new double[1+numParams];
-          System.arraycopy(currLambda,1,temp_lambda,1,numParams);
+      for (int c = 1; c <= numParams; ++c) {
+      // investigate currLambda[j][c]
+        if (isOptimizable[c]) {
+          bestScoreInfo[c] = line_opt(thresholdsAll[c],indexOfCurrBest[c],c,currLambda);
+            // get best score and its lambda value
+        }
+      }
 
-          double smallest_th = thresholdsAll[c].firstKey();
+    } else {
 
-          if (minThValue[c] != NegInf) {
-            temp_lambda[c] = (minThValue[c] + smallest_th) / 2.0;
-          } else {
-            temp_lambda[c] = smallest_th - 0.05;
+      // investigate the parameters in parallel, each one with its own output
+      // buffer (so that the output is the same whatever the scheduling)
+      List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+      @SuppressWarnings({"unchecked","rawtypes"})
+      final Vector<String>[] paramOutput = new Vector[1+numParams];
+      for (int c = 1; c <= numParams; ++c) {
+        paramOutput[c] = new Vector<String>();
+        final IntermediateOptimizer forParam = new IntermediateOptimizer(
+          j, blocker, paramOutput[c], initialLambda, finalLambda, best1Cand_suffStats,
+          finalScore, candCount, featMatrix, suffStatsArena);
+        final ThresholdBuffer thresholds_c = thresholdsAll[c];
+        final int c_task = c;
+        tasks.add(new Callable<double[]>() {
+          public double[] call() {
+            return forParam.investigateParam(thresholds_c,c_task,lastChanged_c,currLambda,candScore);
           }
+        });
+      }
 
-          indexOfCurrBest[c] =
-            initial_indexOfCurrBest(temp_lambda,indicesOfInterest);
+      try {
+        List<Future<double[]>> results = paramPool.invokeAll(tasks);
+        for (int c = 1; c <= numParams; ++c) {
+          bestScoreInfo[c] = results.get(c-1).get();
+          threadOutput.addAll(paramOutput[c]);
         }
+      } catch (InterruptedException e) {
+        System.err.println("InterruptedException in IntermediateOptimizer.bestParamToChange(...): " + e.getMessage());
+        System.exit(99906);
+      } catch (ExecutionException e) {
+        e.getCause().printStackTrace();
+        System.err.println("ExecutionException in IntermediateOptimizer.bestParamToChange(...): " + e.getMessage());
+        System.exit(99905);
       }
 
-      println("",2);
-
     }
 
-
-
-//    if (useDisk == 2) {
-
-      set_suffStats_array(indicesOfInterest);
-
-//    } // if (useDisk == 2)
-
-
-
+    // pick the best parameter to change; since only a strictly better score
+    // replaces the current best, ties go to the lowest c
     for (int c = 1; c <= numParams; ++c) {
-    // investigate currLambda[j][c]
-
       if (isOptimizable[c]) {
-        double[] bestScoreInfo_c =
-          line_opt(thresholdsAll[c],indexOfCurrBest[c],c,currLambda);
-          // get best score and its lambda value
-
-        double bestLambdaVal_c = bestScoreInfo_c[0];
-        double bestScore_c = bestScoreInfo_c[1];
+        double bestLambdaVal_c = bestScoreInfo[c][0];
+        double bestScore_c = bestScoreInfo[c][1];
 
         if (evalMetric.isBetter(bestScore_c,bestScore)) {
           c_best = c;
           bestLambdaVal = bestLambdaVal_c;
           bestScore = bestScore_c;
         }
-
-      } // if (!isOptimizable[c])
-
+      }
     }
 
 
 
 
-    // delete according to indicesOfInterest
-
 //    printMemoryUsage();
 
-//    if (useDisk == 2) {
-
-      for (int i = 0; i < numSentences; ++i) {
-
-        indicesOfInterest[i].clear();
-
-      }
-
-//    }
-
 //    cleanupMemory();
 //    printMemoryUsage();
 //    println("",2);
@@ -829,6 +949,14 @@ public class IntermediateOptimizer implements Runnable
 
 
 
+    if (event.shouldCommit()) {
+      int numThresholds = 0;
+      for (int c = 1; c <= numParams; ++c) {
+        if (thresholdsAll[c] != null) numThresholds += thresholdsAll[c].size();
+      }
+      event.record(iteration, j, c_best, featMatrix.get_numCands(), numThresholds);
+    }
+
     double[] c_best_info = {c_best,bestLambdaVal,bestScore};
     return c_best_info;
 
@@ -894,12 +1022,14 @@ public class IntermediateOptimizer implements Runnable
   }
 
   private void real_run() {
-    @SuppressWarnings("unchecked")
-    TreeMap<Double,TreeMap<Integer,int[]>>[] thresholdsAll = new TreeMap[1+numParams];
+    long startWall = System.nanoTime();
+    long startCpu = IterationMetrics.threadCpuNanos();
+
+    ThresholdBuffer[] thresholdsAll = new ThresholdBuffer[1+numParams];
     thresholdsAll[0] = null;
     for (int c = 1; c <= numParams; ++c) {
       if (isOptimizable[c]) {
-        thresholdsAll[c] = new TreeMap<Double,TreeMap<Integer,int[]>>();
+        thresholdsAll[c] = new ThresholdBuffer();
       } else {
         thresholdsAll[c] = null;
       }
@@ -939,9 +1069,16 @@ public class IntermediateOptimizer implements Runnable
     double bestLambdaVal = 0; // what value to change to?
     double bestScore = 0; // what score would be achieved?
 
+    double[] candScore = new double[featMatrix.get_numCands()];
+      // candScore[firstCand(i)+k] is the model score (under currLambda) of the
+      // k'th candidate of the i'th sentence.  Only one weight changes per step,
+      // so these are mostly updated rather than recalculated after each step.
+    featMatrix.scores(currLambda,candScore);
+    int numSteps = 0;
+
     while (true) {
 
-      double[] c_best_info = bestParamToChange(thresholdsAll,c_best,currLambda);
+      double[] c_best_info = bestParamToChange(thresholdsAll,c_best,currLambda,candScore);
           // we pass in c_best because we don't need
           // to recalculate thresholds for it
       c_best = (int)c_best_info[0]; // which param to change?
@@ -957,7 +1094,8 @@ public class IntermediateOptimizer implements Runnable
               + f4.format(bestLambdaVal)
               + " (" + metricName_display + ": " + f4.format(bestScore) + ") ***",2);
         println("*** Old lambda[j=" + j + "]: " + lambdaToString(currLambda) + " ***",2);
-        currLambda[c_best] = bestLambdaVal;
+        ++numSteps;
+        changeLambda(featMatrix,candScore,currLambda,c_best,bestLambdaVal,numSteps);
         finalScore[j] = bestScore;
         println("*** New lambda[j=" + j + "]: " + lambdaToString(currLambda) + " ***",2);
         println("",2);
@@ -988,9 +1126,34 @@ public class IntermediateOptimizer implements Runnable
     println("(Final " + metricName_display + "[j=" + j + "]: " + finalScore[j] + ")",1);
     println("",1);
 
+    wallNanos = System.nanoTime() - startWall;
+    long endCpu = IterationMetrics.threadCpuNanos();
+    cpuNanos = (startCpu < 0 || endCpu < 0) ? -1 : endCpu - startCpu;
+
     blocker.release();
   }
 
+  // (only valid once this optimization is done; the CPU time does not include
+  // the time spent by the -thrParams threads)
+  public long get_wallNanos() { return wallNanos; }
+  public long get_cpuNanos() { return cpuNanos; }
+
+  // sets lambda[c] to newVal, at the step'th coordinate step of an
+  // optimization, and updates the candidates' model scores accordingly:
+  // incrementally, except every RESCORE_INTERVAL steps, when they are
+  // recalculated from lambda
+  static void changeLambda(
+    FeatureMatrix featMatrix, double[] candScore, double[] lambda, int c, double newVal, int step)
+  {
+    double delta = newVal - lambda[c];
+    lambda[c] = newVal;
+    if (step % RESCORE_INTERVAL == 0) {
+      featMatrix.scores(lambda,candScore);
+    } else {
+      featMatrix.updateScores(candScore,c,delta);
+    }
+  }
+
   public void run() {
     try {
       real_run();
@@ -0,0 +1,210 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.*;
+
+public class IterationMetrics
+{
+  /*
+     Per-phase instrumentation of one Z-MERT iteration, written as a single
+     JSON line (see -phaseLog).  For each phase (decode, produceTempFiles,
+     merge, suffStats, optimize, and the whole iteration) it records:
+
+       wall_ms:        elapsed time
+       cpu_ms:         CPU time of the whole process (all its threads, so it
+                       exceeds wall_ms when the phase runs in parallel; -1 if
+                       the JVM does not report it)
+       cands:          number of candidates the phase processed
+       cands_per_s:    cands per second of wall time
+       read_bytes,
+       written_bytes:  bytes read and written by the process, from the rchar
+                       and wchar counters of /proc/self/io (every read/write
+                       call, including pipes, but not memory-mapped access;
+                       -1 where /proc/self/io is not available)
+
+     Phases can nest (suffStats is part of merge, and produceTempFiles is part
+     of decode when the decoder's output is processed as it is written), and
+     each is measured on its own.  For each optimization restart, the wall
+     time and the CPU time of its thread are recorded as well.
+  */
+
+  private final static int WALL = 0, CPU = 1, CANDS = 2, READ = 3, WRITTEN = 4;
+
+  private int iteration;
+  private LinkedHashMap<String,long[]> totals;  // phase -> {wall, cpu, cands, read, written}
+  private HashMap<String,long[]> started;       // phase -> snapshot at start(phase)
+  private ArrayList<String> restarts;           // JSON objects, one per restart
+
+  public IterationMetrics(int in_iteration)
+  {
+    iteration = in_iteration;
+    totals = new LinkedHashMap<String,long[]>();
+    started = new HashMap<String,long[]>();
+    restarts = new ArrayList<String>();
+  }
+
+  public void start(String phase)
+  {
+    started.put(phase, snapshot());
+  }
+
+  // ends the phase started last with start(phase); if a phase runs more than once
+  // in an iteration, its measurements add up
+  public void end(String phase, long cands)
+  {
+    long[] now = snapshot();
+    long[] then = started.remove(phase);
+    if (then == null) return;
+
+    long[] total = totals.get(phase);
+    if (total == null) {
+      total = new long[5];
+      totals.put(phase, total);
+    }
+    for (int m = WALL; m <= WRITTEN; ++m) {
+      if (m == CANDS) continue;
+      total[m] = (now[m] < 0 || then[m] < 0 || total[m] < 0) ? -1 : total[m] + (now[m] - then[m]);
+    }
+    total[CANDS] += cands;
+  }
+
+  // adds to the number of candidates of a phase that has ended (for phases whose
+  // candidates are only counted later)
+  public void addCands(String phase, long cands)
+  {
+    long[] total = totals.get(phase);
+    if (total != null) total[CANDS] += cands;
+  }
+
+  public void addRestart(int j, long wallNanos, long cpuNanos, double score)
+  {
+    restarts.add("{\"j\":" + j + ",\"wall_ms\":" + ms(wallNanos) + ",\"cpu_ms\":" + ms(cpuNanos)
+                 + ",\"score\":" + num(score) + "}");
+  }
+
+  public String toJSON()
+  {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"iteration\":").append(iteration);
+    json.append(",\"time\":").append(System.currentTimeMillis());
+    json.append(",\"phases\":{");
+    boolean first = true;
+    for (Map.Entry<String,long[]> e : totals.entrySet()) {
+      long[] t = e.getValue();
+      if (!first) json.append(",");
+      first = false;
+      json.append("\"").append(e.getKey()).append("\":{");
+      json.append("\"wall_ms\":").append(ms(t[WALL]));
+      json.append(",\"cpu_ms\":").append(ms(t[CPU]));
+      json.append(",\"cands\":").append(t[CANDS]);
+      json.append(",\"cands_per_s\":").append(t[WALL] > 0 ? num(t[CANDS] / (t[WALL] / 1e9)) : "0");
+      json.append(",\"read_bytes\":").append(t[READ]);
+      json.append(",\"written_bytes\":").append(t[WRITTEN]);
+      json.append("}");
+    }
+    json.append("},\"restarts\":[");
+    for (int r = 0; r < restarts.size(); ++r) {
+      if (r > 0) json.append(",");
+      json.append(restarts.get(r));
+    }
+    json.append("]}");
+    return json.toString();
+  }
+
+  // appends toJSON() as a line to the file
+  public void appendTo(String fileName) throws IOException
+  {
+    Writer out = new OutputStreamWriter(new FileOutputStream(fileName, true), "utf8");
+    out.write(toJSON() + "\n");
+    out.close();
+  }
+
+  // CPU time used so far by the current thread (-1 if the JVM does not report it)
+  public static long threadCpuNanos()
+  {
+    try {
+      return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+
+  private static long[] snapshot()
+  {
+    long[] s = new long[5];
+    s[WALL] = System.nanoTime();
+    s[CPU] = processCpuNanos();
+    long[] io = ioCounters();
+    s[READ] = io[0];
+    s[WRITTEN] = io[1];
+    return s;
+  }
+
+  private static long processCpuNanos()
+  {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  // {rchar, wchar} of /proc/self/io, or {-1, -1}
+  private static long[] ioCounters()
+  {
+    long[] io = { -1, -1 };
+    try {
+      BufferedReader in = new BufferedReader(new FileReader("/proc/self/io"));
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.startsWith("rchar:")) io[0] = Long.parseLong(line.substring(6).trim());
+        else if (line.startsWith("wchar:")) io[1] = Long.parseLong(line.substring(6).trim());
+      }
+      in.close();
+    } catch (IOException e) {
+      // not available (e.g. not Linux)
+    }
+    return io;
+  }
+
+  private static String ms(long nanos)
+  {
+    return (nanos < 0) ? "-1" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private static String num(double x)
+  {
+    if (Double.isNaN(x) || Double.isInfinite(x)) return "null";
+    return String.format(Locale.ROOT, "%.6g", x);
+  }
+
+}
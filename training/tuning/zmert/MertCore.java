@@ -30,15 +30,13 @@ import java.util.*;
 import java.io.*;
 import java.util.zip.*;
 import java.text.DecimalFormat;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class MertCore
 {
-  private TreeSet<Integer>[] indicesOfInterest_all;
-
 
   private final static DecimalFormat f4 = new DecimalFormat("###0.0000");
   private final Runtime myRuntime = Runtime.getRuntime();
@@ -144,9 +142,42 @@ public class MertCore
   private int validDecoderExitValue;
     // return value from running the decoder command that indicates success
 
+  private int decoderSessionMode;
+    // should the decoder be launched once, and kept alive across iterations,
+    // receiving lambda[] and returning its n-best list over its standard input
+    // and output (1), or launched in every iteration (0)?  See DecoderSession.
+
+  private DecoderSession decSession;
+    // the decoder session, if decoderSessionMode == 1 (started in the first
+    // iteration that runs the decoder)
+
+  private int numDecoderShards;
+    // number of decoder processes run in parallel, each on a contiguous range
+    // of the source sentences (read from sourceFileName)
+
+  private int decoderStreamMode;
+    // how the decoder's n-best output is read:
+    //   0: from decoderOutFileName, once the decoder is done
+    //   1: from decoderOutFileName, as the decoder writes it
+    //   2: from the decoder's standard output, as the decoder writes it
+    //      (and copied to decoderOutFileName)
+    // In modes 1 and 2, temp files are produced (and, if compressFiles == 0,
+    // sufficient statistics are calculated) for each sentence as soon as its
+    // candidates are all read, while the decoder works on later sentences.
+
+  private HashMap<String,int[]>[] earlyStats;
+    // if not null, earlyStats[i] maps (normalized) candidates of the i'th
+    // sentence that are not in the candidate pool to their sufficient statistics,
+    // calculated while the decoder was still running (see decoderStreamMode)
+
   private int numOptThreads;
     // number of threads to run things in parallel
 
+  private int numParamThreads;
+    // number of threads (shared by all the optimization threads) that
+    // investigate the parameters of a single restart in parallel;
+    // if 1, each restart investigates its parameters one after the other
+
   private int saveInterFiles;
     // 0: nothing, 1: only configs, 2: only n-bests, 3: both configs and n-bests
 
@@ -154,6 +185,10 @@ public class MertCore
     // should Z-MERT gzip the large files?  If 0, no compression takes place.
     // If 1, compression is performed on: decoder output files, temp sents files,
     //       and temp feats files.
+    // If 0, the feature values of each iteration are kept in a binary,
+    //       memory-mapped store (see CandidateStore) instead of the temp feats
+    //       text files, and the sufficient statistics in the candidate pool
+    //       (see CandidatePool) instead of the temp stats text files.
 
   private int sizeOfNBest;
     // size of N-best list generated by decoder at each iteration
@@ -206,6 +241,49 @@ public class MertCore
   private String tmpDirPrefix;
     // prefix for the ZMERT.temp.* files
 
+  private CandidatePool candPool;
+    // the distinct candidates seen so far (only used if compressFiles == 0).
+    // Kept across iterations, unless each iteration runs in its own process,
+    // in which case it is reopened from the ZMERT.temp.pool.* files.
+
+  private boolean verifyFingerprints;
+    // if true, candidates with the same fingerprint are also compared as
+    // strings before being considered duplicates
+
+  private boolean keepInMemory;
+  private CandidateStore currItCands;
+  private ArrayList<String> currItSents;
+    // if keepInMemory, the candidate pool and the candidates of the current
+    // iteration are kept in memory (in currItCands and currItSents, instead
+    // of the temp.cands.itN and temp.sents.itN files), and their stats are
+    // calculated without any temp files (only used if compressFiles == 0)
+
+  private String checkpointFileName;
+    // if not null, run_MERT is running as the worker process of ZMERT -maxMem:
+    // after each iteration, the state is saved in this file (in the format of
+    // the per-iteration processes of main), and the memory of the iteration
+    // is released before the decoder is launched again
+
+  private String statsCacheDirName;
+  private StatsCache statsCache;
+    // if not null, a persistent cache of sufficient statistics, shared across
+    // runs (see StatsCache), consulted before calculating any stats (only used
+    // if compressFiles == 0)
+
+  private String phaseLogFileName;
+  private IterationMetrics iterMetrics;
+    // if phaseLogFileName is not null, the timing and throughput of each phase
+    // of the current iteration, appended to it as a JSON line when the
+    // iteration ends (see IterationMetrics)
+
+  private int numCandsRead;
+    // number of candidates read by the last produceTempFiles call
+
+  private int envelopeMethod;
+    // how the thresholds of a parameter are extracted from each sentence's
+    // candidates: 1: O(K^2) envelope walk, 2: O(K log K) hull sweep,
+    // 3: both, warning if they disagree (the walk's thresholds are used)
+
   private int passIterationToDecoder;
     // should the iteration number be passed as an argument to decoderCommandFileName?
     // If 1, iteration number is passed.  If 0, launch with no arguments.
@@ -363,17 +441,35 @@ public class MertCore
     EvaluationMetric.set_refsPerSen(refsPerSen);
     EvaluationMetric.set_refSentences(refSentences);
     EvaluationMetric.set_tmpDirPrefix(tmpDirPrefix);
+    EvaluationMetric.set_numThreads(numOptThreads);
+    EvaluationMetric.set_verifyHashes(verifyFingerprints);
 
     evalMetric = EvaluationMetric.getMetric(metricName,metricOptions);
 
     suffStatsCount = evalMetric.get_suffStatsCount();
 
+    if (statsCacheDirName != null) {
+      String metricKey = metricName;
+      for (int opt = 0; opt < metricOptions.length; ++opt) { metricKey += " " + metricOptions[opt]; }
+      try {
+        statsCache = StatsCache.open(statsCacheDirName, metricKey, refSentences, suffStatsCount);
+      } catch (IOException e) {
+        System.err.println("IOException in MertCore.initialize(int): " + e.getMessage());
+        System.exit(99902);
+      }
+      if (randsToSkip == 0) {
+        println("Stats cache: " + statsCache.get_fileName()
+              + " (" + statsCache.get_numRecords() + " entries)",1);
+      }
+    }
+
     // set static data members for the IntermediateOptimizer class
     IntermediateOptimizer.set_MERTparams(numSentences, numDocuments, docOfSentence, docSubsetInfo,
                                          numParams, normalizationOptions,
                                          isOptimizable, minThValue, maxThValue,
                                          oneModificationPerIteration, evalMetric,
-                                         tmpDirPrefix, verbosity);
+                                         tmpDirPrefix, verbosity, envelopeMethod,
+                                         numParamThreads);
 
 
 
@@ -441,15 +537,6 @@ println(docSubsetInfo[6] + "}",1);
     } // if (randsToSkip == 0)
 
 
-    @SuppressWarnings("unchecked")
-    TreeSet<Integer>[] temp_TSA = new TreeSet[numSentences];
-    indicesOfInterest_all = temp_TSA;
-
-    for (int i = 0; i < numSentences; ++i) {
-      indicesOfInterest_all[i] = new TreeSet<Integer>();
-    }
-
-
   } // void initialize(...)
 
   public void run_MERT()
@@ -479,35 +566,12 @@ println(docSubsetInfo[6] + "}",1);
     double FINAL_score = evalMetric.worstPossibleScore();
 
 
-//    int[] lastUsedIndex = new int[numSentences];
-    int[] maxIndex = new int[numSentences];
-      // used to grow featVal_array dynamically
-//    HashMap<Integer,int[]>[] suffStats_array = new HashMap[numSentences];
-      // suffStats_array[i] maps candidates of interest for sentence i to an array
-      // storing the sufficient statistics for that candidate
-    for (int i = 0; i < numSentences; ++i) {
-//      lastUsedIndex[i] = -1;
-      maxIndex[i] = sizeOfNBest - 1;
-//      suffStats_array[i] = new HashMap<Integer,int[]>();
-    }
-/*
-    double[][][] featVal_array = new double[1+numParams][][];
-      // indexed by [param][sentence][candidate]
-    featVal_array[0] = null; // param indexing starts at 1
-    for (int c = 1; c <= numParams; ++c) {
-      featVal_array[c] = new double[numSentences][];
-      for (int i = 0; i < numSentences; ++i) {
-        featVal_array[c][i] = new double[maxIndex[i]];
-          // will grow dynamically as needed
-      }
-    }
-*/
     int earlyStop = 0;
       // number of consecutive iteration an early stopping criterion was satisfied
 
     for (int iteration = 1; ; ++iteration) {
 
-      double[] A = run_single_iteration(iteration, minIts, maxIts, prevIts, earlyStop, maxIndex);
+      double[] A = run_single_iteration(iteration, minIts, maxIts, prevIts, earlyStop);
       if (A != null) {
         FINAL_score = A[0];
         earlyStop = (int)A[1];
@@ -516,6 +580,11 @@ println(docSubsetInfo[6] + "}",1);
         break;
       }
 
+      if (checkpointFileName != null) {
+        saveState(checkpointFileName, iteration, earlyStop, FINAL_score);
+        cleanupMemory(100,false);
+      }
+
     } // for (iteration)
 
     println("",1);
@@ -536,6 +605,12 @@ println(docSubsetInfo[6] + "}",1);
     }
     println("",1);
 
+    deleteTempFiles(maxIts);
+
+  } // void run_MERT(int maxIts)
+
+  private void deleteTempFiles(int maxIts)
+  {
     // delete intermediate .temp.*.it* decoder output files
     for (int iteration = 1; iteration <= maxIts; ++iteration) {
       if (compressFiles == 1) {
@@ -548,21 +623,32 @@ println(docSubsetInfo[6] + "}",1);
         }
       } else {
         deleteFile(tmpDirPrefix+"temp.sents.it"+iteration);
-        deleteFile(tmpDirPrefix+"temp.feats.it"+iteration);
-        if (fileExists(tmpDirPrefix+"temp.stats.it"+iteration+".copy")) {
-          deleteFile(tmpDirPrefix+"temp.stats.it"+iteration+".copy");
-        } else {
-          deleteFile(tmpDirPrefix+"temp.stats.it"+iteration);
-        }
+        deleteFile(tmpDirPrefix+"temp.cands.it"+iteration);
       }
     }
 
-  } // void run_MERT(int maxIts)
+    // delete the candidate pool
+    if (candPool != null) {
+      try {
+        candPool.close();
+      } catch (IOException e) {
+        System.err.println("IOException in MertCore.deleteTempFiles(int): " + e.getMessage());
+        System.exit(99902);
+      }
+      candPool = null;
+    }
+    CandidatePool.delete(tmpDirPrefix+"temp.");
+
+    // delete the source shards (see run_decoder_sharded)
+    for (int s = 0; s < numDecoderShards; ++s) {
+      deleteFile(tmpDirPrefix+"temp.src.shard"+s);
+    }
+  }
 
 
   @SuppressWarnings("unchecked")
 public double[] run_single_iteration(
-    int iteration, int minIts, int maxIts, int prevIts, int earlyStop, int[]maxIndex)
+    int iteration, int minIts, int maxIts, int prevIts, int earlyStop)
   {
     double FINAL_score = 0;
 
@@ -575,18 +661,13 @@ public double[] run_single_iteration(
     retA[2] = 1; // will only be made 0 if we don't break from the following loop
 
 
-    double[][][] featVal_array = new double[1+numParams][][];
-      // indexed by [param][sentence][candidate]
-    featVal_array[0] = null; // param indexing starts at 1
-    for (int c = 1; c <= numParams; ++c) {
-      featVal_array[c] = new double[numSentences][];
-      for (int i = 0; i < numSentences; ++i) {
-        featVal_array[c][i] = new double[maxIndex[i]+1];
-          // will grow dynamically as needed
-      }
-    }
+    FeatureMatrix featMatrix = new FeatureMatrix(numSentences, numParams, numSentences*sizeOfNBest);
+      // feature values of the candidates of all sentences (grows as needed)
 
 
+    iterMetrics = (phaseLogFileName != null) ? new IterationMetrics(iteration) : null;
+    phaseStart("iteration");
+
     while (!done) { // NOTE: this "loop" will only be carried out once
       println("--- Starting Z-MERT iteration #" + iteration + " @ " + (new Date()) + " ---",1);
 
@@ -612,11 +693,18 @@ public double[] run_single_iteration(
         println("Redecoding using weight vector " + lambdaToString(lambda),1);
       }
 
+      numCandsRead = 0;
+      phaseStart("decode");
+      TuningEvents.DecoderRun decodeEvent = new TuningEvents.DecoderRun();
+      decodeEvent.begin();
       String[] decRunResult = run_decoder(iteration); // iteration passed in case fake decoder will be used
+      decodeEvent.end();
+      phaseEnd("decode",0);
         // [0] name of file to be processed
         // [1] indicates how the output file was obtained:
         //   1: decoder
         //   2: fake decoder
+        //   3: decoder, and temp files were already produced while it ran
 
       if (!decRunResult[1].equals("2")) {
         println("...finished decoding @ " + (new Date()),1);
@@ -624,9 +712,16 @@ public double[] run_single_iteration(
 
       checkFile(decRunResult[0]);
 
-      println("Producing temp files for iteration "+iteration,3);
+      if (!decRunResult[1].equals("3")) {
+        println("Producing temp files for iteration "+iteration,3);
 
-      produceTempFiles(decRunResult[0], iteration);
+        phaseStart("produceTempFiles");
+        produceTempFiles(decRunResult[0], iteration);
+        phaseEnd("produceTempFiles",numCandsRead);
+      }
+      if (iterMetrics != null) iterMetrics.addCands("decode",numCandsRead);
+      decodeEvent.record(iteration, numCandsRead,
+                         decRunResult[1].equals("2") ? "fake" : decRunResult[1].equals("3") ? "streamed" : "file");
 
       if (saveInterFiles == 1 || saveInterFiles == 3) { // make copy of intermediate config file
         if (!copyFile(decoderConfigFileName,decoderConfigFileName+".ZMERT.it"+iteration)) {
@@ -655,14 +750,8 @@ public double[] run_single_iteration(
       }
 
       int[] candCount = new int[numSentences];
-      int[] lastUsedIndex = new int[numSentences];
-      @SuppressWarnings("unchecked")
-      ConcurrentHashMap<Integer,int[]>[] suffStats_array = new ConcurrentHashMap[numSentences];
       for (int i = 0; i < numSentences; ++i) {
         candCount[i] = 0;
-        lastUsedIndex[i] = -1;
-//        suffStats_array[i].clear();
-        suffStats_array[i] = new ConcurrentHashMap<Integer,int[]>();
       }
 
       double[][] initialLambda = new double[1+initsPerIt][1+numParams];
@@ -706,612 +795,965 @@ public double[] run_single_iteration(
 
 
 
-      try {
+      SuffStatsArena suffStatsArena = null;
+        // the sufficient statistics of the merged candidates, shared (read-only)
+        // by all the IntermediateOptimizer threads
 
-        // each inFile corresponds to the output of an iteration
-        // (index 0 is not used; no corresponding index for the current iteration)
-        BufferedReader[] inFile_sents = new BufferedReader[iteration];
-        BufferedReader[] inFile_feats = new BufferedReader[iteration];
-        BufferedReader[] inFile_stats = new BufferedReader[iteration];
+      phaseStart("merge");
 
-        for (int it = firstIt; it < iteration; ++it) {
-          InputStream inStream_sents, inStream_feats, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix+"temp.sents.it"+it);
-            inStream_feats = new FileInputStream(tmpDirPrefix+"temp.feats.it"+it);
-            inStream_stats = new FileInputStream(tmpDirPrefix+"temp.stats.it"+it);
-          } else {
-            inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+it+".gz"));
-            inStream_feats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.feats.it"+it+".gz"));
-            inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+it+".gz"));
-          }
+      if (compressFiles == 0) {
+        suffStatsArena = processCandidates_pool(
+          iteration, firstIt, initialLambda, best1Score, best1Cand_suffStats,
+          candCount, featMatrix, newCandidatesAdded);
+      } else {
+        processCandidates_text(
+          iteration, firstIt, initialLambda, best1Score, best1Cand_suffStats,
+          candCount, featMatrix, newCandidatesAdded);
+      }
+
+      featMatrix.finish();
 
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      if (suffStatsArena == null) {
+        try {
+          suffStatsArena = SuffStatsArena.load(tmpDirPrefix+"temp.stats.merged", candCount, suffStatsCount);
+        } catch (IOException e) {
+          System.err.println("IOException in MertCore.run_single_iteration(): " + e.getMessage());
+          System.exit(99902);
         }
+      }
 
+      int totalCandidateCount = 0;
+      for (int i = 0; i < numSentences; ++i) { totalCandidateCount += candCount[i]; }
 
-        InputStream inStream_sentsCurrIt, inStream_featsCurrIt, inStream_statsCurrIt;
-        if (compressFiles == 0) {
-          inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration);
-          inStream_featsCurrIt = new FileInputStream(tmpDirPrefix+"temp.feats.it"+iteration);
-        } else {
-          inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration+".gz"));
-          inStream_featsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.feats.it"+iteration+".gz"));
-        }
-
-        BufferedReader inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
-        BufferedReader inFile_featsCurrIt = new BufferedReader(new InputStreamReader(inStream_featsCurrIt, "utf8"));
-
-        BufferedReader inFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is set to true
-        PrintWriter outFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is set to false
-        boolean statsCurrIt_exists = false;
-        if (fileExists(tmpDirPrefix+"temp.stats.it"+iteration)) {
-          inStream_statsCurrIt = new FileInputStream(tmpDirPrefix+"temp.stats.it"+iteration);
-          inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt, "utf8"));
-          statsCurrIt_exists = true;
-          copyFile(tmpDirPrefix+"temp.stats.it"+iteration,tmpDirPrefix+"temp.stats.it"+iteration+".copy");
-        } else if (fileExists(tmpDirPrefix+"temp.stats.it"+iteration+".gz")) {
-          inStream_statsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+iteration+".gz"));
-          inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt, "utf8"));
-          statsCurrIt_exists = true;
-          copyFile(tmpDirPrefix+"temp.stats.it"+iteration+".gz",tmpDirPrefix+"temp.stats.it"+iteration+".copy.gz");
+      phaseEnd("merge",totalCandidateCount);
+
+      println("Processed " + totalCandidateCount + " distinct candidates "
+            + "(about " + totalCandidateCount/numSentences + " per sentence):",1);
+      for (int it = firstIt; it <= iteration; ++it) {
+        println("newCandidatesAdded[it=" + it + "] = " + newCandidatesAdded[it]
+              + " (about " + newCandidatesAdded[it]/numSentences + " per sentence)",1);
+      }
+
+      println("",1);
+
+
+      if (newCandidatesAdded[iteration] == 0) {
+        if (!oneModificationPerIteration) {
+          println("No new candidates added in this iteration; exiting Z-MERT.",1);
+          println("",1);
+          println("---  Z-MERT iteration #" + iteration + " ending @ " + (new Date()) + "  ---",1);
+          println("",1);
+          writePhaseLog();
+          return null; // THIS MEANS THAT THE OLD VALUES SHOULD BE KEPT BY THE CALLER
         } else {
-          outFile_statsCurrIt = new PrintWriter(tmpDirPrefix+"temp.stats.it"+iteration);
+          println("Note: No new candidates added in this iteration.",1);
         }
+      }
 
-        PrintWriter outFile_statsMerged = new PrintWriter(tmpDirPrefix+"temp.stats.merged");
-          // write sufficient statistics from all the sentences
-          // from the output files into a single file
-        PrintWriter outFile_statsMergedKnown = new PrintWriter(tmpDirPrefix+"temp.stats.mergedKnown");
-          // write sufficient statistics from all the sentences
-          // from the output files into a single file
+      // run the initsPerIt optimizations, in parallel, across numOptThreads threads
+      phaseStart("optimize");
+      IntermediateOptimizer.set_iteration(iteration);
+      ExecutorService pool = Executors.newFixedThreadPool(numOptThreads);
+      Semaphore blocker = new Semaphore(0);
+      Vector<String>[] threadOutput = new Vector[initsPerIt+1];
+      IntermediateOptimizer[] optimizers = new IntermediateOptimizer[initsPerIt+1];
 
-        FileOutputStream outStream_unknownCands = new FileOutputStream(tmpDirPrefix+"temp.currIt.unknownCands", false);
-        OutputStreamWriter outStreamWriter_unknownCands = new OutputStreamWriter(outStream_unknownCands, "utf8");
-        BufferedWriter outFile_unknownCands = new BufferedWriter(outStreamWriter_unknownCands);
+      for (int j = 1; j <= initsPerIt; ++j) {
+        threadOutput[j] = new Vector<String>();
+        optimizers[j] = new IntermediateOptimizer(j, blocker, threadOutput[j],
+                              initialLambda[j], finalLambda[j], best1Cand_suffStats[j],
+                              finalScore, candCount, featMatrix, suffStatsArena);
+        pool.execute(optimizers[j]);
+      }
 
-        PrintWriter outFile_unknownIndices = new PrintWriter(tmpDirPrefix+"temp.currIt.unknownIndices");
+      pool.shutdown();
 
+      try {
+        blocker.acquire(initsPerIt);
+      } catch(java.lang.InterruptedException e) {
+        System.err.println("InterruptedException in MertCore.run_single_iteration(): " + e.getMessage());
+        System.exit(99906);
+      }
 
-        String sents_str, feats_str, stats_str;
+      phaseEnd("optimize",totalCandidateCount);
+      if (iterMetrics != null) {
+        for (int j = 1; j <= initsPerIt; ++j) {
+          iterMetrics.addRestart(j, optimizers[j].get_wallNanos(), optimizers[j].get_cpuNanos(), finalScore[j]);
+        }
+      }
 
-        // BUG: this assumes a candidate string cannot be produced for two
-        //      different source sentences, which is not necessarily true
-        //   (It's not actually a bug, but only because existingCandStats gets
-        //    cleared before moving to the next source sentence.)
-        // FIX: should be made an array, indexed by i
-        HashMap<String,String> existingCandStats = new HashMap<String,String>();
-          // Stores precalculated sufficient statistics for candidates, in case
-          // the same candidate is seen again. (SS stored as a String.)
-          // Q: Why do we care?  If we see the same candidate again, aren't we going
-          //    to ignore it?  So, why do we care about the SS of this repeat candidate?
-          // A: A "repeat" candidate may not be a repeat candidate in later
-          //    iterations if the user specifies a value for prevMERTIterations
-          //    that causes MERT to skip candidates from early iterations.
-        double[] currFeatVal = new double[1+numParams];
-        String[] featVal_str;
+      // extract output from threadOutput[]
+      for (int j = 1; j <= initsPerIt; ++j) {
+        for (String str : threadOutput[j]) {
+          println(str); // no verbosity check needed; thread already checked
+        }
+      }
 
-        int totalCandidateCount = 0;
+      int best_j = 1;
+      double bestFinalScore = finalScore[1];
+      for (int j = 2; j <= initsPerIt; ++j) {
+        if (evalMetric.isBetter(finalScore[j],bestFinalScore)) {
+          best_j = j;
+          bestFinalScore = finalScore[j];
+        }
+      }
 
+      if (initsPerIt > 1) {
+        println("Best final lambda is lambda[j=" + best_j + "] "
+              + "(" + metricName_display + ": " + f4.format(bestFinalScore) + ").",1);
+        println("",1);
+      }
 
+      FINAL_score = bestFinalScore;
 
-        int[] sizeUnknown_currIt = new int[numSentences];
+      boolean anyParamChanged = false;
+      boolean anyParamChangedSignificantly = false;
 
+      for (int c = 1; c <= numParams; ++c) {
+        if (finalLambda[best_j][c] != lambda[c]) {
+          anyParamChanged = true;
+        }
+        if (Math.abs(finalLambda[best_j][c] - lambda[c]) > stopSigValue) {
+          anyParamChangedSignificantly = true;
+        }
+      }
 
+      System.arraycopy(finalLambda[best_j],1,lambda,1,numParams);
+      println("---  Z-MERT iteration #" + iteration + " ending @ " + (new Date()) + "  ---",1);
+      println("",1);
 
-        for (int i = 0; i < numSentences; ++i) {
+      if (!anyParamChanged) {
+        println("No parameter value changed in this iteration; exiting Z-MERT.",1);
+        println("",1);
+        break; // exit for (iteration) loop preemptively
+      }
 
-          for (int j = 1; j <= initsPerIt; ++j) {
-            best1Score[j][i] = NegInf;
-          }
+      // check if a lambda is outside its threshold range
+      for (int c = 1; c <= numParams; ++c) {
+        if (lambda[c] < minThValue[c] || lambda[c] > maxThValue[c]) {
+          println("Warning: after normalization, lambda[" + c + "]="
+                + f4.format(lambda[c]) + " is outside its critical value range.",1);
+        }
+      }
+
+      // was an early stopping criterion satisfied?
+      boolean critSatisfied = false;
+      if (!anyParamChangedSignificantly && stopSigValue >= 0) {
+        println("Note: No parameter value changed significantly "
+              + "(i.e. by more than " + stopSigValue + ") in this iteration.",1);
+        critSatisfied = true;
+      }
+
+      if (critSatisfied) { ++earlyStop; println("",1); }
+      else { earlyStop = 0; }
+
+      // if min number of iterations executed, investigate if early exit should happen
+      if (iteration >= minIts && earlyStop >= stopMinIts) {
+        println("Some early stopping criteria has been observed "
+              + "in " + stopMinIts + " consecutive iterations; exiting Z-MERT.",1);
+        println("",1);
+        break; // exit for (iteration) loop preemptively
+      }
+
+      // if max number of iterations executed, exit
+      if (iteration >= maxIts) {
+        println("Maximum number of MERT iterations reached; exiting Z-MERT.",1);
+        println("",1);
+        break; // exit for (iteration) loop
+      }
 
-          for (int it = firstIt; it < iteration; ++it) {
-          // Why up to but *excluding* iteration?
-          // Because the last iteration is handled a little differently, since
-          // the SS must be claculated (and the corresponding file created),
-          // which is not true for previous iterations.
+      println("Next iteration will decode with lambda: " + lambdaToString(lambda),1);
+      println("",1);
 
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-            // Why up to and *including* sizeOfNBest?
-            // So that it would read the "||||||" separator even if there is
-            // a complete list of sizeOfNBest candidates.
+//      printMemoryUsage();
+//      cleanupMemory();
+//      println("",2);
 
-              // for the nth candidate for the ith sentence, read the sentence, feature values,
-              // and sufficient statistics from the various temp files
 
-              sents_str = inFile_sents[it].readLine();
-              feats_str = inFile_feats[it].readLine();
-              stats_str = inFile_stats[it].readLine();
+      retA[2] = 0; // i.e. this should NOT be the last iteration
+      done = true;
 
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest+1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
+    } // while (!done) // NOTE: this "loop" will only be carried out once
 
-                outFile_statsMergedKnown.println(stats_str);
 
-                featVal_str = feats_str.split("\\s+");
+    // delete .temp.stats.merged file, since it is not needed in the next
+    // iteration (it will be recreated from scratch)
+    deleteFile(tmpDirPrefix+"temp.stats.merged");
 
-                for (int c = 1; c <= numParams; ++c) {
-                  currFeatVal[c] = Double.parseDouble(featVal_str[c-1]);
-//                  print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
-                }
-//                println("",4);
+    writePhaseLog();
+
+    retA[0] = FINAL_score;
+    retA[1] = earlyStop;
+    return retA;
+
+  } // run_single_iteration
+
+  private void phaseStart(String phase)
+  {
+    if (iterMetrics != null) iterMetrics.start(phase);
+  }
+
+  private void phaseEnd(String phase, long cands)
+  {
+    if (iterMetrics != null) iterMetrics.end(phase, cands);
+  }
+
+  // ends the "iteration" phase, and appends the iteration's metrics to the phase log
+  private void writePhaseLog()
+  {
+    if (iterMetrics == null) return;
+    iterMetrics.end("iteration", numCandsRead);
+    try {
+      iterMetrics.appendTo(phaseLogFileName);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.writePhaseLog(): " + e.getMessage());
+      System.exit(99902);
+    }
+    iterMetrics = null;
+  }
+
+  // reads the candidates of iterations firstIt..iteration from the gzipped
+  // temp sents/feats/stats text files (i.e. -compress 1), calculates sufficient
+  // statistics for the unseen candidates of the current iteration, and
+  // creates the temp.stats.merged text file
+  private void processCandidates_text(
+    int iteration, int firstIt, double[][] initialLambda, double[][] best1Score,
+    int[][][] best1Cand_suffStats, int[] candCount, FeatureMatrix featMatrix,
+    int[] newCandidatesAdded)
+  {
+    try {
 
+      // each inFile corresponds to the output of an iteration
+      // (index 0 is not used; no corresponding index for the current iteration)
+      BufferedReader[] inFile_sents = new BufferedReader[iteration];
+      BufferedReader[] inFile_feats = new BufferedReader[iteration];
+      BufferedReader[] inFile_stats = new BufferedReader[iteration];
 
-                for (int j = 1; j <= initsPerIt; ++j) {
-                  double score = 0; // i.e. score assigned by decoder
-                  for (int c = 1; c <= numParams; ++c) {
-                    score += initialLambda[j][c] * currFeatVal[c];
-                  }
-                  if (score > best1Score[j][i]) {
-                    best1Score[j][i] = score;
-                    String[] tempStats = stats_str.split("\\s+");
-                    for (int s = 0; s < suffStatsCount; ++s)
-                      best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]);
-                  }
-                } // for (j)
+      for (int it = firstIt; it < iteration; ++it) {
+        InputStream inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+it+".gz"));
+        InputStream inStream_feats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.feats.it"+it+".gz"));
+        InputStream inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+it+".gz"));
 
-                existingCandStats.put(sents_str,stats_str);
+        inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
+        inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
+        inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      }
 
-                setFeats(featVal_array,i,lastUsedIndex,maxIndex,currFeatVal);
-                candCount[i] += 1;
 
-                newCandidatesAdded[it] += 1;
+      InputStream inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration+".gz"));
+      InputStream inStream_featsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.feats.it"+iteration+".gz"));
+      InputStream inStream_statsCurrIt;
+
+      BufferedReader inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
+      BufferedReader inFile_featsCurrIt = new BufferedReader(new InputStreamReader(inStream_featsCurrIt, "utf8"));
+
+      BufferedReader inFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is set to true
+      PrintWriter outFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is set to false
+      boolean statsCurrIt_exists = false;
+      if (fileExists(tmpDirPrefix+"temp.stats.it"+iteration)) {
+        inStream_statsCurrIt = new FileInputStream(tmpDirPrefix+"temp.stats.it"+iteration);
+        inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt, "utf8"));
+        statsCurrIt_exists = true;
+        copyFile(tmpDirPrefix+"temp.stats.it"+iteration,tmpDirPrefix+"temp.stats.it"+iteration+".copy");
+      } else if (fileExists(tmpDirPrefix+"temp.stats.it"+iteration+".gz")) {
+        inStream_statsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+iteration+".gz"));
+        inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt, "utf8"));
+        statsCurrIt_exists = true;
+        copyFile(tmpDirPrefix+"temp.stats.it"+iteration+".gz",tmpDirPrefix+"temp.stats.it"+iteration+".copy.gz");
+      } else {
+        outFile_statsCurrIt = new PrintWriter(tmpDirPrefix+"temp.stats.it"+iteration);
+      }
 
-              } // if unseen candidate
+      PrintWriter outFile_statsMerged = new PrintWriter(tmpDirPrefix+"temp.stats.merged");
+        // write sufficient statistics from all the sentences
+        // from the output files into a single file
+      PrintWriter outFile_statsMergedKnown = new PrintWriter(tmpDirPrefix+"temp.stats.mergedKnown");
+        // write sufficient statistics from all the sentences
+        // from the output files into a single file
 
-            } // for (n)
+      FileOutputStream outStream_unknownCands = new FileOutputStream(tmpDirPrefix+"temp.currIt.unknownCands", false);
+      OutputStreamWriter outStreamWriter_unknownCands = new OutputStreamWriter(outStream_unknownCands, "utf8");
+      BufferedWriter outFile_unknownCands = new BufferedWriter(outStreamWriter_unknownCands);
 
-          } // for (it)
+      PrintWriter outFile_unknownIndices = new PrintWriter(tmpDirPrefix+"temp.currIt.unknownIndices");
 
-          outFile_statsMergedKnown.println("||||||");
 
+      String sents_str, feats_str, stats_str;
 
-          // now process the candidates of the current iteration
-          // now determine the new candidates of the current iteration
+      FeatureMatrix knownFeats = new FeatureMatrix(numSentences, numParams, numSentences*sizeOfNBest);
+        // features of the candidates from previous iterations; copied to featMatrix
+        // (which must be filled sentence by sentence) in the second pass below
 
-          /* remember:
-               BufferedReader inFile_sentsCurrIt
-               BufferedReader inFile_featsCurrIt
-               PrintWriter outFile_statsCurrIt
-          */
+      HashMap<String,String> existingCandStats = new HashMap<String,String>();
+        // Stores precalculated sufficient statistics for candidates, in case
+        // the same candidate is seen again. (SS stored as a String.)
+        // Q: Why do we care?  If we see the same candidate again, aren't we going
+        //    to ignore it?  So, why do we care about the SS of this repeat candidate?
+        // A: A "repeat" candidate may not be a repeat candidate in later
+        //    iterations if the user specifies a value for prevMERTIterations
+        //    that causes MERT to skip candidates from early iterations.
+      double[] currFeatVal = new double[1+numParams];
+      String[] featVal_str;
 
-          String[] sentsCurrIt_currSrcSent = new String[sizeOfNBest+1];
 
-          Vector<String> unknownCands_V = new Vector<String>();
-            // which candidates (of the i'th source sentence) have not been seen before
-            // this iteration?
+      for (int i = 0; i < numSentences; ++i) {
+
+        for (int j = 1; j <= initsPerIt; ++j) {
+          best1Score[j][i] = NegInf;
+        }
+
+        for (int it = firstIt; it < iteration; ++it) {
+        // Why up to but *excluding* iteration?
+        // Because the last iteration is handled a little differently, since
+        // the SS must be claculated (and the corresponding file created),
+        // which is not true for previous iterations.
 
           for (int n = 0; n <= sizeOfNBest; ++n) {
           // Why up to and *including* sizeOfNBest?
           // So that it would read the "||||||" separator even if there is
           // a complete list of sizeOfNBest candidates.
 
-            // for the nth candidate for the ith sentence, read the sentence,
-            // and store it in the sentsCurrIt_currSrcSent array
+            // for the nth candidate for the ith sentence, read the sentence, feature values,
+            // and sufficient statistics from the various temp files
 
-            sents_str = inFile_sentsCurrIt.readLine();
-            sentsCurrIt_currSrcSent[n] = sents_str; // Note: possibly "||||||"
+            sents_str = inFile_sents[it].readLine();
+            feats_str = inFile_feats[it].readLine();
+            stats_str = inFile_stats[it].readLine();
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest+1;
             } else if (!existingCandStats.containsKey(sents_str)) {
-              unknownCands_V.add(sents_str);
-              writeLine(sents_str,outFile_unknownCands);
-              outFile_unknownIndices.println(i);
-              newCandidatesAdded[iteration] += 1;
-              existingCandStats.put(sents_str,"U"); // i.e. unknown
-              // we add sents_str to avoid duplicate entries in unknownCands_V
-            }
 
-          } // for (n)
+              outFile_statsMergedKnown.println(stats_str);
 
+              featVal_str = feats_str.split("\\s+");
 
+              for (int c = 1; c <= numParams; ++c) {
+                currFeatVal[c] = Double.parseDouble(featVal_str[c-1]);
+//                  print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
+              }
+//                println("",4);
 
-          // now unknownCands_V has the candidates for which we need to calculate
-          // sufficient statistics (for the i'th source sentence)
-          int sizeUnknown = unknownCands_V.size();
-          sizeUnknown_currIt[i] = sizeUnknown;
 
-          /*********************************************/
-/*
-          String[] unknownCands = new String[sizeUnknown];
-          unknownCands_V.toArray(unknownCands);
-          int[] indices = new int[sizeUnknown];
-          for (int d = 0; d < sizeUnknown; ++d) {
-            existingCandStats.remove(unknownCands[d]);
-            // remove the (unknownCands[d],"U") entry from existingCandStats
-            // (we had added it while constructing unknownCands_V to avoid duplicate entries)
-            indices[d] = i;
-          }
-*/
-          /*********************************************/
+              for (int j = 1; j <= initsPerIt; ++j) {
+                double score = 0; // i.e. score assigned by decoder
+                for (int c = 1; c <= numParams; ++c) {
+                  score += initialLambda[j][c] * currFeatVal[c];
+                }
+                if (score > best1Score[j][i]) {
+                  best1Score[j][i] = score;
+                  String[] tempStats = stats_str.split("\\s+");
+                  for (int s = 0; s < suffStatsCount; ++s)
+                    best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]);
+                }
+              } // for (j)
 
-          existingCandStats.clear();
+              existingCandStats.put(sents_str,stats_str);
 
-        } // for (i)
+              knownFeats.add(i,currFeatVal);
+              candCount[i] += 1;
 
-/*
-          int[][] newSuffStats = null;
-          if (!statsCurrIt_exists && sizeUnknown > 0) {
-            newSuffStats = evalMetric.suffStats(unknownCands, indices);
-          }
-*/
+              newCandidatesAdded[it] += 1;
 
-        outFile_statsMergedKnown.close();
-        outFile_unknownCands.close();
-        outFile_unknownIndices.close();
+            } // if unseen candidate
+
+          } // for (n)
 
+        } // for (it)
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_stats[it].close();
+        outFile_statsMergedKnown.println("||||||");
 
-          InputStream inStream_sents, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix+"temp.sents.it"+it);
-            inStream_stats = new FileInputStream(tmpDirPrefix+"temp.stats.it"+it);
-          } else {
-            inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+it+".gz"));
-            inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+it+".gz"));
+
+        // now determine the new candidates of the current iteration, which
+        // need sufficient statistics
+
+        for (int n = 0; n <= sizeOfNBest; ++n) {
+        // Why up to and *including* sizeOfNBest?
+        // So that it would read the "||||||" separator even if there is
+        // a complete list of sizeOfNBest candidates.
+
+          sents_str = inFile_sentsCurrIt.readLine();
+
+          if (sents_str.equals("||||||")) {
+            n = sizeOfNBest+1;
+          } else if (!existingCandStats.containsKey(sents_str)) {
+            writeLine(sents_str,outFile_unknownCands);
+            outFile_unknownIndices.println(i);
+            newCandidatesAdded[iteration] += 1;
+            existingCandStats.put(sents_str,"U"); // i.e. unknown
+            // (so that a repeated candidate is only written once)
           }
 
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
-        }
+        } // for (n)
 
-        inFile_sentsCurrIt.close();
-        if (compressFiles == 0) {
-          inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration);
-        } else {
-          inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration+".gz"));
-        }
-        inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
+        existingCandStats.clear();
 
+      } // for (i)
 
+      outFile_statsMergedKnown.close();
+      outFile_unknownCands.close();
+      outFile_unknownIndices.close();
 
-        // calculate SS for unseen candidates and write them to file
-        FileInputStream inStream_statsCurrIt_unknown = null;
-        BufferedReader inFile_statsCurrIt_unknown = null;
 
-        if (!statsCurrIt_exists && newCandidatesAdded[iteration] > 0) {
-          // create the file...
-          evalMetric.createSuffStatsFile(tmpDirPrefix+"temp.currIt.unknownCands", tmpDirPrefix+"temp.currIt.unknownIndices", tmpDirPrefix+"temp.stats.unknown", sizeOfNBest);
+      for (int it = firstIt; it < iteration; ++it) {
+        inFile_sents[it].close();
+        inFile_stats[it].close();
 
-          // ...and open it
-          inStream_statsCurrIt_unknown = new FileInputStream(tmpDirPrefix+"temp.stats.unknown");
-          inFile_statsCurrIt_unknown = new BufferedReader(new InputStreamReader(inStream_statsCurrIt_unknown, "utf8"));
-        }
+        InputStream inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+it+".gz"));
+        InputStream inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.stats.it"+it+".gz"));
 
-        // OPEN mergedKnown file
-        FileInputStream instream_statsMergedKnown = new FileInputStream(tmpDirPrefix+"temp.stats.mergedKnown");
-        BufferedReader inFile_statsMergedKnown = new BufferedReader(new InputStreamReader(instream_statsMergedKnown, "utf8"));
+        inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
+        inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      }
 
+      inFile_sentsCurrIt.close();
+      inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration+".gz"));
+      inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
 
-        for (int i = 0; i < numSentences; ++i) {
 
-          // reprocess candidates from previous iterations
-          for (int it = firstIt; it < iteration; ++it) {
-            for (int n = 0; n <= sizeOfNBest; ++n) {
 
-              sents_str = inFile_sents[it].readLine();
-              stats_str = inFile_stats[it].readLine();
+      // calculate SS for unseen candidates and write them to file
+      FileInputStream inStream_statsCurrIt_unknown = null;
+      BufferedReader inFile_statsCurrIt_unknown = null;
 
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest+1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
-                existingCandStats.put(sents_str,stats_str);
-              } // if unseen candidate
+      if (!statsCurrIt_exists && newCandidatesAdded[iteration] > 0) {
+        // create the file...
+        phaseStart("suffStats");
+        TuningEvents.SuffStatsBatch statsEvent = new TuningEvents.SuffStatsBatch();
+        statsEvent.begin();
+        evalMetric.createSuffStatsFile(tmpDirPrefix+"temp.currIt.unknownCands", tmpDirPrefix+"temp.currIt.unknownIndices", tmpDirPrefix+"temp.stats.unknown", sizeOfNBest);
+        statsEvent.record(iteration, newCandidatesAdded[iteration], metricName);
+        phaseEnd("suffStats",newCandidatesAdded[iteration]);
 
-            } // for (n)
-          } // for (it)
+        // ...and open it
+        inStream_statsCurrIt_unknown = new FileInputStream(tmpDirPrefix+"temp.stats.unknown");
+        inFile_statsCurrIt_unknown = new BufferedReader(new InputStreamReader(inStream_statsCurrIt_unknown, "utf8"));
+      }
 
-          // copy relevant portion from mergedKnown to the merged file
-          String line_mergedKnown = inFile_statsMergedKnown.readLine();
-          while (!line_mergedKnown.equals("||||||")) {
-            outFile_statsMerged.println(line_mergedKnown);
-            line_mergedKnown = inFile_statsMergedKnown.readLine();
-          }
+      // OPEN mergedKnown file
+      FileInputStream instream_statsMergedKnown = new FileInputStream(tmpDirPrefix+"temp.stats.mergedKnown");
+      BufferedReader inFile_statsMergedKnown = new BufferedReader(new InputStreamReader(instream_statsMergedKnown, "utf8"));
 
 
-          int d = -1;
+      knownFeats.finish();
 
+      for (int i = 0; i < numSentences; ++i) {
 
-          int[] stats = new int[suffStatsCount];
+        featMatrix.addAll(i,knownFeats);
 
+        // reprocess candidates from previous iterations
+        for (int it = firstIt; it < iteration; ++it) {
           for (int n = 0; n <= sizeOfNBest; ++n) {
-          // Why up to and *including* sizeOfNBest?
-          // So that it would read the "||||||" separator even if there is
-          // a complete list of sizeOfNBest candidates.
 
-            // for the nth candidate for the ith sentence, read the sentence, feature values,
-            // and sufficient statistics from the various temp files
-
-            sents_str = inFile_sentsCurrIt.readLine();
-            feats_str = inFile_featsCurrIt.readLine();
+            sents_str = inFile_sents[it].readLine();
+            stats_str = inFile_stats[it].readLine();
 
             if (sents_str.equals("||||||")) {
               n = sizeOfNBest+1;
             } else if (!existingCandStats.containsKey(sents_str)) {
+              existingCandStats.put(sents_str,stats_str);
+            } // if unseen candidate
 
-              ++d;
+          } // for (n)
+        } // for (it)
 
-              if (!statsCurrIt_exists) {
-                stats_str = inFile_statsCurrIt_unknown.readLine();
+        // copy relevant portion from mergedKnown to the merged file
+        String line_mergedKnown = inFile_statsMergedKnown.readLine();
+        while (!line_mergedKnown.equals("||||||")) {
+          outFile_statsMerged.println(line_mergedKnown);
+          line_mergedKnown = inFile_statsMergedKnown.readLine();
+        }
 
-                String[] temp_stats = stats_str.split("\\s+");
-                for (int s = 0; s < suffStatsCount; ++s) {
-                  stats[s] = Integer.parseInt(temp_stats[s]);
-                }
 
-/*
-                stats_str = "";
-                for (int s = 0; s < suffStatsCount-1; ++s) {
-                  stats[s] = newSuffStats[d][s];
-                  stats_str += (stats[s] + " ");
-                }
-                stats[suffStatsCount-1] = newSuffStats[d][suffStatsCount-1];
-                stats_str += stats[suffStatsCount-1];
-*/
+        int[] stats = new int[suffStatsCount];
 
-                outFile_statsCurrIt.println(stats_str);
-              } else {
-                stats_str = inFile_statsCurrIt.readLine();
-                String[] temp_stats = stats_str.split("\\s+");
-                for (int s = 0; s < suffStatsCount; ++s) {
-                  stats[s] = Integer.parseInt(temp_stats[s]);
-                }
-              }
+        for (int n = 0; n <= sizeOfNBest; ++n) {
+        // Why up to and *including* sizeOfNBest?
+        // So that it would read the "||||||" separator even if there is
+        // a complete list of sizeOfNBest candidates.
 
-              outFile_statsMerged.println(stats_str);
+          // for the nth candidate for the ith sentence, read the sentence, feature values,
+          // and sufficient statistics from the various temp files
 
-              featVal_str = feats_str.split("\\s+");
+          sents_str = inFile_sentsCurrIt.readLine();
+          feats_str = inFile_featsCurrIt.readLine();
 
-              for (int c = 1; c <= numParams; ++c) {
-                currFeatVal[c] = Double.parseDouble(featVal_str[c-1]);
-//                print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
+          if (sents_str.equals("||||||")) {
+            n = sizeOfNBest+1;
+          } else if (!existingCandStats.containsKey(sents_str)) {
+
+            if (!statsCurrIt_exists) {
+              stats_str = inFile_statsCurrIt_unknown.readLine();
+
+              String[] temp_stats = stats_str.split("\\s+");
+              for (int s = 0; s < suffStatsCount; ++s) {
+                stats[s] = Integer.parseInt(temp_stats[s]);
               }
-//              println("",4);
 
+              outFile_statsCurrIt.println(stats_str);
+            } else {
+              stats_str = inFile_statsCurrIt.readLine();
+              String[] temp_stats = stats_str.split("\\s+");
+              for (int s = 0; s < suffStatsCount; ++s) {
+                stats[s] = Integer.parseInt(temp_stats[s]);
+              }
+            }
 
-              for (int j = 1; j <= initsPerIt; ++j) {
-                double score = 0; // i.e. score assigned by decoder
-                for (int c = 1; c <= numParams; ++c) {
-                  score += initialLambda[j][c] * currFeatVal[c];
-                }
-                if (score > best1Score[j][i]) {
-                  best1Score[j][i] = score;
-                  for (int s = 0; s < suffStatsCount; ++s)
-                    best1Cand_suffStats[j][i][s] = stats[s];
-                }
-              } // for (j)
+            outFile_statsMerged.println(stats_str);
 
-              existingCandStats.put(sents_str,stats_str);
+            featVal_str = feats_str.split("\\s+");
 
-              setFeats(featVal_array,i,lastUsedIndex,maxIndex,currFeatVal);
-              candCount[i] += 1;
+            for (int c = 1; c <= numParams; ++c) {
+              currFeatVal[c] = Double.parseDouble(featVal_str[c-1]);
+//                print("fV[" + c + "]=" + currFeatVal[c] + " ",4);
+            }
+//              println("",4);
 
-//              newCandidatesAdded[iteration] += 1;
-              // moved to code above detecting new candidates
 
-            } else {
-              if (statsCurrIt_exists)
-                inFile_statsCurrIt.readLine();
-              else {
-                // write SS to outFile_statsCurrIt
-                stats_str = existingCandStats.get(sents_str);
-                outFile_statsCurrIt.println(stats_str);
+            for (int j = 1; j <= initsPerIt; ++j) {
+              double score = 0; // i.e. score assigned by decoder
+              for (int c = 1; c <= numParams; ++c) {
+                score += initialLambda[j][c] * currFeatVal[c];
               }
-            }
+              if (score > best1Score[j][i]) {
+                best1Score[j][i] = score;
+                for (int s = 0; s < suffStatsCount; ++s)
+                  best1Cand_suffStats[j][i][s] = stats[s];
+              }
+            } // for (j)
 
-          } // for (n)
+            existingCandStats.put(sents_str,stats_str);
 
-          // now d = sizeUnknown_currIt[i] - 1
+            featMatrix.add(i,currFeatVal);
+            candCount[i] += 1;
 
-          if (statsCurrIt_exists)
-            inFile_statsCurrIt.readLine();
-          else
-            outFile_statsCurrIt.println("||||||");
+          } else {
+            if (statsCurrIt_exists)
+              inFile_statsCurrIt.readLine();
+            else {
+              // write SS to outFile_statsCurrIt
+              stats_str = existingCandStats.get(sents_str);
+              outFile_statsCurrIt.println(stats_str);
+            }
+          }
 
-          existingCandStats.clear();
-          totalCandidateCount += candCount[i];
+        } // for (n)
 
-          if ((i+1) % 500 == 0) { print((i+1) + "\n" + "            ",1); }
-          else if ((i+1) % 100 == 0) { print("+",1); }
-          else if ((i+1) % 25 == 0) { print(".",1); }
+        if (statsCurrIt_exists)
+          inFile_statsCurrIt.readLine();
+        else
+          outFile_statsCurrIt.println("||||||");
 
-        } // for (i)
+        existingCandStats.clear();
 
-        outFile_statsMerged.close();
+        if ((i+1) % 500 == 0) { print((i+1) + "\n" + "            ",1); }
+        else if ((i+1) % 100 == 0) { print("+",1); }
+        else if ((i+1) % 25 == 0) { print(".",1); }
 
+      } // for (i)
 
+      outFile_statsMerged.close();
 
 
-        println("",1); // finish progress line
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_feats[it].close();
-          inFile_stats[it].close();
-        }
 
-        inFile_sentsCurrIt.close();
-        inFile_featsCurrIt.close();
-        if (statsCurrIt_exists)
-          inFile_statsCurrIt.close();
-        else
-          outFile_statsCurrIt.close();
+      println("",1); // finish progress line
 
-        if (compressFiles == 1 && !statsCurrIt_exists) {
-          gzipFile(tmpDirPrefix+"temp.stats.it"+iteration);
-        }
+      for (int it = firstIt; it < iteration; ++it) {
+        inFile_sents[it].close();
+        inFile_feats[it].close();
+        inFile_stats[it].close();
+      }
 
-        deleteFile(tmpDirPrefix+"temp.currIt.unknownCands");
-        deleteFile(tmpDirPrefix+"temp.currIt.unknownIndices");
-        deleteFile(tmpDirPrefix+"temp.stats.unknown");
-        deleteFile(tmpDirPrefix+"temp.stats.mergedKnown");
+      inFile_sentsCurrIt.close();
+      inFile_featsCurrIt.close();
+      if (statsCurrIt_exists)
+        inFile_statsCurrIt.close();
+      else
+        outFile_statsCurrIt.close();
 
-//        cleanupMemory();
+      if (!statsCurrIt_exists) {
+        gzipFile(tmpDirPrefix+"temp.stats.it"+iteration);
+      }
 
-        println("Processed " + totalCandidateCount + " distinct candidates "
-              + "(about " + totalCandidateCount/numSentences + " per sentence):",1);
-        for (int it = firstIt; it <= iteration; ++it) {
-          println("newCandidatesAdded[it=" + it + "] = " + newCandidatesAdded[it]
-                + " (about " + newCandidatesAdded[it]/numSentences + " per sentence)",1);
-        }
+      deleteFile(tmpDirPrefix+"temp.currIt.unknownCands");
+      deleteFile(tmpDirPrefix+"temp.currIt.unknownIndices");
+      deleteFile(tmpDirPrefix+"temp.stats.unknown");
+      deleteFile(tmpDirPrefix+"temp.stats.mergedKnown");
 
-        println("",1);
+//      cleanupMemory();
 
-      } catch (FileNotFoundException e) {
-        System.err.println("FileNotFoundException in MertCore.run_single_iteration(6): " + e.getMessage());
-        System.exit(99901);
-      } catch (IOException e) {
-        System.err.println("IOException in MertCore.run_single_iteration(6): " + e.getMessage());
-        System.exit(99902);
-      }
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in MertCore.processCandidates_text(...): " + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.processCandidates_text(...): " + e.getMessage());
+      System.exit(99902);
+    }
 
+  } // processCandidates_text
+
+  // same as processCandidates_text, but keeps the distinct candidates seen so far
+  // in the append-only CandidatePool (temp.pool.*), so only the pool and the
+  // binary store of the current iteration (temp.cands.itN, see produceTempFiles)
+  // are read.  Candidates from iterations before firstIt are filtered out using
+  // the pool index, and if one of them shows up again, its stats are reused.
+  // As with the text files, a candidate gets the feature values it had in the
+  // first iteration (from firstIt on) that produced it; see CandidatePool.
+  // The merged stats are not written to disk; they are returned in a SuffStatsArena.
+  private SuffStatsArena processCandidates_pool(
+    int iteration, int firstIt, double[][] initialLambda, double[][] best1Score,
+    int[][][] best1Cand_suffStats, int[] candCount, FeatureMatrix featMatrix,
+    int[] newCandidatesAdded)
+  {
+    SuffStatsArena suffStatsArena = null;
 
-      if (newCandidatesAdded[iteration] == 0) {
-        if (!oneModificationPerIteration) {
-          println("No new candidates added in this iteration; exiting Z-MERT.",1);
-          println("",1);
-          println("---  Z-MERT iteration #" + iteration + " ending @ " + (new Date()) + "  ---",1);
-          println("",1);
-          return null; // THIS MEANS THAT THE OLD VALUES SHOULD BE KEPT BY THE CALLER
+    try {
+
+      if (iteration == 1) {
+        if (candPool != null) candPool.close();
+        if (keepInMemory) {
+          candPool = CandidatePool.createInMemory(numSentences, numParams, suffStatsCount);
         } else {
-          println("Note: No new candidates added in this iteration.",1);
+          candPool = CandidatePool.create(tmpDirPrefix+"temp.", numSentences, numParams, suffStatsCount);
         }
+      } else if (candPool == null) {
+        // i.e. a new MertCore process for each iteration (see main)
+        candPool = CandidatePool.open(tmpDirPrefix+"temp.");
       }
 
-      // run the initsPerIt optimizations, in parallel, across numOptThreads threads
-      ExecutorService pool = Executors.newFixedThreadPool(numOptThreads);
-      Semaphore blocker = new Semaphore(0);
-      Vector<String>[] threadOutput = new Vector[initsPerIt+1];
+      CandidateStore cands_currIt = null;
+      BufferedReader inFile_sentsCurrIt = null;
+      BufferedWriter outFile_unknownCands = null;
+      PrintWriter outFile_unknownIndices = null;
 
-      for (int j = 1; j <= initsPerIt; ++j) {
-        threadOutput[j] = new Vector<String>();
-        pool.execute(new IntermediateOptimizer(j, blocker, threadOutput[j],
-                             initialLambda[j], finalLambda[j], best1Cand_suffStats[j],
-                             finalScore, candCount, featVal_array, suffStats_array));
-      }
+      if (keepInMemory) {
+        cands_currIt = currItCands;
+      } else {
+        cands_currIt = CandidateStore.open(tmpDirPrefix+"temp.cands.it"+iteration);
+        InputStream inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix+"temp.sents.it"+iteration);
+        inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
 
-      pool.shutdown();
+        FileOutputStream outStream_unknownCands = new FileOutputStream(tmpDirPrefix+"temp.currIt.unknownCands", false);
+        OutputStreamWriter outStreamWriter_unknownCands = new OutputStreamWriter(outStream_unknownCands, "utf8");
+        outFile_unknownCands = new BufferedWriter(outStreamWriter_unknownCands);
 
-      try {
-        blocker.acquire(initsPerIt);
-      } catch(java.lang.InterruptedException e) {
-        System.err.println("InterruptedException in MertCore.run_single_iteration(): " + e.getMessage());
-        System.exit(99906);
+        outFile_unknownIndices = new PrintWriter(tmpDirPrefix+"temp.currIt.unknownIndices");
       }
 
-      // extract output from threadOutput[]
-      for (int j = 1; j <= initsPerIt; ++j) {
-        for (String str : threadOutput[j]) {
-          println(str); // no verbosity check needed; thread already checked
+      int maxMergedCount = candPool.get_numRecords() + cands_currIt.get_numCands();
+        // upper bound on the number of merged candidates
+      int[] mergedSrc = new int[maxMergedCount];
+        // the stats of the m'th merged candidate are those of pool record mergedSrc[m]
+        // if mergedSrc[m] >= 0, or of unknown candidate d = -mergedSrc[m]-1 otherwise
+      int[][] best1Index = new int[1+initsPerIt][numSentences];
+        // merged index of the candidates whose stats go into best1Cand_suffStats
+
+      int[] unknownSentence = new int[cands_currIt.get_numCands()];
+      int[] unknownCand = new int[cands_currIt.get_numCands()];
+      String[] unknownText = new String[cands_currIt.get_numCands()];
+      long[] unknownFp = new long[cands_currIt.get_numCands()];
+        // the d'th unknown candidate is candidate unknownCand[d] of the current
+        // iteration, for sentence unknownSentence[d]; it is added to the pool
+        // once its stats are calculated
+      int[] unknownStats = new int[cands_currIt.get_numCands()*suffStatsCount];
+      int[] fileD = new int[cands_currIt.get_numCands()];
+        // the unknown candidate on line l of temp.currIt.unknownCands (the l'th one
+        // to be scored, if keepInMemory) is candidate fileD[l]; the other unknown
+        // candidates had their stats calculated while the decoder was running
+        // (see earlyStats), or found in the stats cache
+      int numInFile = 0;
+
+      FingerprintSet newCands = new FingerprintSet(sizeOfNBest);
+        // maps the fingerprints of the i'th sentence's unknown candidates to d
+        // (candidates already in the pool are found with candPool.find)
+      int numCollisions = -candPool.get_numCollisions(); // i.e. count this iteration's only
+      int[] entryMergedIndex = new int[0];
+        // merged index of each of the i'th sentence's pool entries (-1 if not merged);
+        // candidates not in the pool yet get the position they will be given
+        // when added to it.  All the segments of a merged candidate, from the
+        // one it was merged from on, get its merged index.
+      boolean[] entrySeenCurrIt = new boolean[0];
+        // whether the current iteration already produced the candidate of the
+        // i'th sentence's (last segment) pool entry
+      int[] segSentence = new int[cands_currIt.get_numCands()];
+      int[] segEntry = new int[cands_currIt.get_numCands()];
+      int[] segCand = new int[cands_currIt.get_numCands()];
+      int numSegs = 0;
+        // the current iteration produced candidate segCand[g] (for sentence
+        // segSentence[g]), which is in the pool, with new feature values; it is
+        // added as a new segment of pool entry segEntry[g] once the pool is
+        // updated
+      double[] currFeatVal = new double[1+numParams];
+      double[] poolFeatVal = new double[1+numParams];
+      int m = 0;
+      int numUnknown = 0;
+      int numCacheHits = 0;
+
+      if (statsCache != null) statsCache.refresh(); // pick up stats added by concurrent runs
+
+      for (int i = 0; i < numSentences; ++i) {
+
+        for (int j = 1; j <= initsPerIt; ++j) {
+          best1Score[j][i] = NegInf;
         }
-      }
 
-      int best_j = 1;
-      double bestFinalScore = finalScore[1];
-      for (int j = 2; j <= initsPerIt; ++j) {
-        if (evalMetric.isBetter(finalScore[j],bestFinalScore)) {
-          best_j = j;
-          bestFinalScore = finalScore[j];
+        int poolCount = candPool.candCount(i);
+        int firstUnknown = numUnknown;
+        int firstCand = cands_currIt.firstCand(i);
+        int lastCand = firstCand + cands_currIt.candCount(i) - 1;
+
+        if (entryMergedIndex.length < poolCount + cands_currIt.candCount(i)) {
+          entryMergedIndex = new int[2*(poolCount + cands_currIt.candCount(i))];
+          entrySeenCurrIt = new boolean[entryMergedIndex.length];
         }
-      }
+        Arrays.fill(entryMergedIndex,0,poolCount,-1);
+        Arrays.fill(entrySeenCurrIt,0,poolCount,false);
+
+        // first, candidates of previous iterations (from firstIt on)
+        for (int n = 0; n < poolCount; ++n) {
+          int next = candPool.nextEntry(i,n);
+
+          if (entryMergedIndex[n] < 0 && candPool.lastSeen(i,n) >= firstIt) {
+            // the first segment of this candidate within the window
+            int rec = candPool.recordId(i,n);
+            candPool.getFeats(rec,currFeatVal);
+            entryMergedIndex[n] = m;
+            mergedSrc[m] = rec;
+            addMergedCandidate(i,m,currFeatVal,initialLambda,best1Score,best1Index,
+                               candCount,featMatrix);
+            ++m;
+
+            newCandidatesAdded[Math.max(firstIt,candPool.firstSeen(i,n))] += 1;
+              // i.e. attributed to the first iteration that produced it,
+              // within the window
+          }
 
-      if (initsPerIt > 1) {
-        println("Best final lambda is lambda[j=" + best_j + "] "
-              + "(" + metricName_display + ": " + f4.format(bestFinalScore) + ").",1);
-        println("",1);
-      }
+          if (next >= 0) entryMergedIndex[next] = entryMergedIndex[n];
+        }
 
-      FINAL_score = bestFinalScore;
+        // then, the new candidates of the current iteration
+        for (int k = firstCand; k <= lastCand; ++k) {
+          String sents_str = keepInMemory ? currItSents.get(k) : inFile_sentsCurrIt.readLine();
+          long fp = FingerprintSet.fingerprint(sents_str);
+          int n = candPool.find(i,fp,(verifyFingerprints ? sents_str : null));
+          if (n >= 0) n = candPool.lastEntry(i,n);
+
+          if (n < 0) { // not in the pool; but maybe seen earlier in this iteration?
+            for (int slot = newCands.firstSlot(fp); slot >= 0; slot = newCands.nextSlot(fp,slot)) {
+              int d = newCands.valueAt(slot);
+              if (!verifyFingerprints || unknownText[d].equals(sents_str)) {
+                n = poolCount + (d - firstUnknown);
+                break;
+              }
+              ++numCollisions;
+            }
+          }
 
-      boolean anyParamChanged = false;
-      boolean anyParamChangedSignificantly = false;
+          if (n < 0) {
+            n = poolCount + (numUnknown - firstUnknown);
+            newCands.add(fp,numUnknown);
+            entryMergedIndex[n] = -1;
+
+            unknownSentence[numUnknown] = i;
+            unknownCand[numUnknown] = k;
+            unknownText[numUnknown] = sents_str;
+            unknownFp[numUnknown] = fp;
+            int[] early = (earlyStats != null && earlyStats[i] != null) ? earlyStats[i].get(sents_str) : null;
+            if (early != null) {
+              System.arraycopy(early,0,unknownStats,numUnknown*suffStatsCount,suffStatsCount);
+            } else if (statsCache != null
+                       && statsCache.get(i,fp,sents_str,unknownStats,numUnknown*suffStatsCount)) {
+              ++numCacheHits;
+            } else {
+              if (!keepInMemory) {
+                writeLine(sents_str,outFile_unknownCands);
+                outFile_unknownIndices.println(i);
+              }
+              fileD[numInFile] = numUnknown;
+              ++numInFile;
+            }
+            mergedSrc[m] = -(numUnknown+1);
+            ++numUnknown;
+          } else if (entryMergedIndex[n] < 0 && n < poolCount) {
+            // seen before, but not since firstIt; reuse its stats
+            mergedSrc[m] = candPool.recordId(i,n);
+          }
 
-      for (int c = 1; c <= numParams; ++c) {
-        if (finalLambda[best_j][c] != lambda[c]) {
-          anyParamChanged = true;
-        }
-        if (Math.abs(finalLambda[best_j][c] - lambda[c]) > stopSigValue) {
-          anyParamChangedSignificantly = true;
-        }
-      }
+          if (entryMergedIndex[n] < 0) {
+            cands_currIt.getFeats(k,currFeatVal);
+            entryMergedIndex[n] = m;
+            addMergedCandidate(i,m,currFeatVal,initialLambda,best1Score,best1Index,
+                               candCount,featMatrix);
+            ++m;
 
-      System.arraycopy(finalLambda[best_j],1,lambda,1,numParams);
-      println("---  Z-MERT iteration #" + iteration + " ending @ " + (new Date()) + "  ---",1);
-      println("",1);
+            newCandidatesAdded[iteration] += 1;
+          }
 
-      if (!anyParamChanged) {
-        println("No parameter value changed in this iteration; exiting Z-MERT.",1);
-        println("",1);
-        break; // exit for (iteration) loop preemptively
+          if (n < poolCount && !entrySeenCurrIt[n]) {
+            // the first time the current iteration produced this candidate: it
+            // either extends its last segment, or starts a new one
+            entrySeenCurrIt[n] = true;
+            cands_currIt.getFeats(k,currFeatVal);
+            candPool.getFeats(candPool.recordId(i,n),poolFeatVal);
+            if (Arrays.equals(currFeatVal,poolFeatVal)) {
+              candPool.setLastSeen(i,n,iteration);
+            } else {
+              segSentence[numSegs] = i;
+              segEntry[numSegs] = n;
+              segCand[numSegs] = k;
+              ++numSegs;
+            }
+          }
+
+        } // for (k)
+
+        if (!keepInMemory) inFile_sentsCurrIt.readLine(); // "||||||"
+
+        newCands.clear();
+
+        if ((i+1) % 500 == 0) { print((i+1) + "\n" + "            ",1); }
+        else if ((i+1) % 100 == 0) { print("+",1); }
+        else if ((i+1) % 25 == 0) { print(".",1); }
+
+      } // for (i)
+
+      println("",1); // finish progress line
+
+      numCollisions += candPool.get_numCollisions();
+      if (numCollisions > 0) {
+        println("Note: " + numCollisions + " candidate fingerprint collision(s) were detected (and resolved).",1);
       }
 
-      // check if a lambda is outside its threshold range
-      for (int c = 1; c <= numParams; ++c) {
-        if (lambda[c] < minThValue[c] || lambda[c] > maxThValue[c]) {
-          println("Warning: after normalization, lambda[" + c + "]="
-                + f4.format(lambda[c]) + " is outside its critical value range.",1);
-        }
+      if (!keepInMemory) {
+        outFile_unknownCands.close();
+        outFile_unknownIndices.close();
+        inFile_sentsCurrIt.close();
       }
 
-      // was an early stopping criterion satisfied?
-      boolean critSatisfied = false;
-      if (!anyParamChangedSignificantly && stopSigValue >= 0) {
-        println("Note: No parameter value changed significantly "
-              + "(i.e. by more than " + stopSigValue + ") in this iteration.",1);
-        critSatisfied = true;
+      earlyStats = null;
+
+      if (statsCache != null) {
+        println("Stats of " + numCacheHits + " of the " + numUnknown + " new candidates were found in the stats cache.",2);
       }
 
-      if (critSatisfied) { ++earlyStop; println("",1); }
-      else { earlyStop = 0; }
+      // calculate SS for unseen candidates (those not calculated early, or found in the cache)
+      if (numInFile > 0) {
+        phaseStart("suffStats");
+        TuningEvents.SuffStatsBatch statsEvent = new TuningEvents.SuffStatsBatch();
+        statsEvent.begin();
+
+        if (keepInMemory) {
+          String[] cand_strings = new String[numInFile];
+          int[] cand_indices = new int[numInFile];
+          for (int l = 0; l < numInFile; ++l) {
+            cand_strings[l] = unknownText[fileD[l]];
+            cand_indices[l] = unknownSentence[fileD[l]];
+          }
+          int[][] SS = evalMetric.createSuffStats(cand_strings, cand_indices, numInFile, sizeOfNBest);
+          for (int l = 0; l < numInFile; ++l) {
+            System.arraycopy(SS[l],0,unknownStats,fileD[l]*suffStatsCount,suffStatsCount);
+          }
+          statsEvent.record(iteration, numInFile, metricName);
+          phaseEnd("suffStats",numInFile);
+        } else {
+          evalMetric.createSuffStatsFile(tmpDirPrefix+"temp.currIt.unknownCands", tmpDirPrefix+"temp.currIt.unknownIndices", tmpDirPrefix+"temp.stats.unknown", sizeOfNBest);
+          statsEvent.record(iteration, numInFile, metricName);
+          phaseEnd("suffStats",numInFile);
+
+          InputStream inStream_statsUnknown = new FileInputStream(tmpDirPrefix+"temp.stats.unknown");
+          BufferedReader inFile_statsUnknown = new BufferedReader(new InputStreamReader(inStream_statsUnknown, "utf8"));
+          for (int l = 0; l < numInFile; ++l) {
+            int d = fileD[l];
+            String[] temp_stats = inFile_statsUnknown.readLine().split("\\s+");
+            for (int s = 0; s < suffStatsCount; ++s) {
+              unknownStats[d*suffStatsCount+s] = Integer.parseInt(temp_stats[s]);
+            }
+          }
+          inFile_statsUnknown.close();
+        }
+      }
 
-      // if min number of iterations executed, investigate if early exit should happen
-      if (iteration >= minIts && earlyStop >= stopMinIts) {
-        println("Some early stopping criteria has been observed "
-              + "in " + stopMinIts + " consecutive iterations; exiting Z-MERT.",1);
-        println("",1);
-        break; // exit for (iteration) loop preemptively
+      if (statsCache != null) {
+        for (int d = 0; d < numUnknown; ++d) { // (cache hits are skipped by add)
+          statsCache.add(unknownSentence[d],unknownFp[d],unknownText[d],unknownStats,d*suffStatsCount);
+        }
+        statsCache.flush();
       }
 
-      // if max number of iterations executed, exit
-      if (iteration >= maxIts) {
-        println("Maximum number of MERT iterations reached; exiting Z-MERT.",1);
-        println("",1);
-        break; // exit for (iteration) loop
+      // fill in the merged stats (merged indices are global, so the k'th
+      // merged candidate occupies the k'th row of the arena)
+      suffStatsArena = new SuffStatsArena(candCount, suffStatsCount);
+      int[] ssData = suffStatsArena.get_data();
+      int[] stats = new int[suffStatsCount];
+      for (int k = 0; k < m; ++k) {
+        if (mergedSrc[k] >= 0) {
+          candPool.getStats(mergedSrc[k],stats);
+          System.arraycopy(stats,0,ssData,k*suffStatsCount,suffStatsCount);
+        } else {
+          System.arraycopy(unknownStats,(-mergedSrc[k]-1)*suffStatsCount,ssData,k*suffStatsCount,suffStatsCount);
+        }
       }
 
-      println("Next iteration will decode with lambda: " + lambdaToString(lambda),1);
-      println("",1);
+      for (int j = 1; j <= initsPerIt; ++j) {
+        for (int i = 0; i < numSentences; ++i) {
+          if (best1Score[j][i] != NegInf) {
+            System.arraycopy(ssData,best1Index[j][i]*suffStatsCount,best1Cand_suffStats[j][i],0,suffStatsCount);
+          }
+        }
+      }
 
-//      printMemoryUsage();
-      for (int i = 0; i < numSentences; ++i) {
-        suffStats_array[i].clear();
+      // add the new candidates to the pool
+      for (int d = 0; d < numUnknown; ++d) {
+        cands_currIt.getFeats(unknownCand[d],currFeatVal);
+        candPool.append(unknownSentence[d],iteration,unknownText[d],unknownFp[d],currFeatVal,unknownStats,d*suffStatsCount);
       }
-//      cleanupMemory();
-//      println("",2);
+      for (int g = 0; g < numSegs; ++g) { // (after the new candidates; see entryMergedIndex)
+        cands_currIt.getFeats(segCand[g],currFeatVal);
+        candPool.appendSegment(segSentence[g],segEntry[g],iteration,currFeatVal);
+      }
+      candPool.commit();
 
+      cands_currIt.close();
+      currItCands = null;
+      currItSents = null;
 
-      retA[2] = 0; // i.e. this should NOT be the last iteration
-      done = true;
+      deleteFile(tmpDirPrefix+"temp.currIt.unknownCands");
+      deleteFile(tmpDirPrefix+"temp.currIt.unknownIndices");
+      deleteFile(tmpDirPrefix+"temp.stats.unknown");
 
-    } // while (!done) // NOTE: this "loop" will only be carried out once
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in MertCore.processCandidates_pool(...): " + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.processCandidates_pool(...): " + e.getMessage());
+      System.exit(99902);
+    }
 
+    return suffStatsArena;
 
-    // delete .temp.stats.merged file, since it is not needed in the next
-    // iteration (it will be recreated from scratch)
-    deleteFile(tmpDirPrefix+"temp.stats.merged");
+  } // processCandidates_pool
 
-    retA[0] = FINAL_score;
-    retA[1] = earlyStop;
-    return retA;
+  // makes featVal the m'th merged candidate (for the i'th sentence),
+  // and updates best1Score/best1Index accordingly
+  private void addMergedCandidate(
+    int i, int m, double[] featVal, double[][] initialLambda, double[][] best1Score,
+    int[][] best1Index, int[] candCount, FeatureMatrix featMatrix)
+  {
+    for (int j = 1; j <= initsPerIt; ++j) {
+      double score = 0; // i.e. score assigned by decoder
+      for (int c = 1; c <= numParams; ++c) {
+        score += initialLambda[j][c] * featVal[c];
+      }
+      if (score > best1Score[j][i]) {
+        best1Score[j][i] = score;
+        best1Index[j][i] = m;
+      }
+    } // for (j)
 
-  } // run_single_iteration
+    featMatrix.add(i,featVal);
+    candCount[i] += 1;
+  }
 
   private String lambdaToString(double[] lambdaA)
   {
@@ -1331,6 +1773,7 @@ public double[] run_single_iteration(
       // [1] indicates how the output file was obtained:
       //   1: decoder
       //   2: fake decoder
+      //   3: decoder, and temp files were already produced while it ran
 
     if (fakeFileNameTemplate != null && fileExists(fakeFileNamePrefix+iteration+fakeFileNameSuffix)) {
       String fakeFileName = fakeFileNamePrefix+iteration+fakeFileNameSuffix;
@@ -1346,6 +1789,31 @@ public double[] run_single_iteration(
       retSA[0] = fakeFileName;
       retSA[1] = "2";
 
+    } else if (decoderSessionMode == 1) {
+      println("Running decoder (session)...",1);
+
+      run_decoder_streaming(iteration);
+
+      retSA[0] = decoderOutFileName;
+      retSA[1] = "3";
+
+    } else if (numDecoderShards > 1) {
+      println("Running decoder (" + numDecoderShards + " shards)...",1);
+
+      run_decoder_sharded(iteration);
+
+      retSA[0] = decoderOutFileName;
+      retSA[1] = "1";
+
+    } else if (decoderStreamMode == 2
+               || (decoderStreamMode == 1 && !decoderOutFileName.endsWith(".gz"))) {
+      println("Running decoder (reading its output as it is produced)...",1);
+
+      run_decoder_streaming(iteration);
+
+      retSA[0] = decoderOutFileName;
+      retSA[1] = "3";
+
     } else {
       println("Running decoder...",1);
 
@@ -1386,19 +1854,259 @@ public double[] run_single_iteration(
 
   }
 
-  private void produceTempFiles(String nbestFileName, int iteration)
+  // splits the source sentences into numDecoderShards contiguous ranges, and runs
+  // one decoder process per range, all in parallel.  The s'th process is run as
+  //
+  //   decoderCommandFileName [iteration] temp.src.shard<s> temp.decOut.shard<s>
+  //
+  // and should write the n-best list of its range to the second file, numbering
+  // the sentences from 0.  The n-best lists are then merged, in sentence order,
+  // into decoderOutFileName.
+  private void run_decoder_sharded(int iteration)
   {
     try {
-      String sentsFileName = tmpDirPrefix+"temp.sents.it"+iteration;
-      String featsFileName = tmpDirPrefix+"temp.feats.it"+iteration;
+      int[] shardStart = new int[numDecoderShards+1];
+      for (int s = 0; s <= numDecoderShards; ++s) {
+        shardStart[s] = (int)(((long)s * numSentences) / numDecoderShards);
+      }
+
+      // (re)write the source shards
+      BufferedReader inFile_src = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFileName), "utf8"));
+      for (int s = 0; s < numDecoderShards; ++s) {
+        BufferedWriter outFile_srcShard = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(tmpDirPrefix+"temp.src.shard"+s, false), "utf8"));
+        for (int i = shardStart[s]; i < shardStart[s+1]; ++i) {
+          String line = inFile_src.readLine();
+          if (line == null) {
+            println("Source file " + sourceFileName + " has fewer than " + numSentences + " sentences.");
+            System.exit(31);
+          }
+          outFile_srcShard.write(line);
+          outFile_srcShard.newLine();
+        }
+        outFile_srcShard.close();
+      }
+      inFile_src.close();
+
+      Runtime rt = Runtime.getRuntime();
+      Process[] p = new Process[numDecoderShards];
+      for (int s = 0; s < numDecoderShards; ++s) {
+        String cmd = decoderCommandFileName;
+        if (passIterationToDecoder == 1) {
+          cmd = cmd + " " + iteration;
+        }
+        cmd = cmd + " " + tmpDirPrefix+"temp.src.shard"+s + " " + tmpDirPrefix+"temp.decOut.shard"+s;
+        deleteFile(tmpDirPrefix+"temp.decOut.shard"+s);
+        p[s] = rt.exec(cmd);
+
+        StreamGobbler errorGobbler = new StreamGobbler(p[s].getErrorStream(), decVerbosity);
+        StreamGobbler outputGobbler = new StreamGobbler(p[s].getInputStream(), decVerbosity);
+
+        errorGobbler.start();
+        outputGobbler.start();
+      }
+
+      // the shards are polled, rather than waited for in order, so that a shard
+      // that fails is noticed at once, and the others are stopped instead of
+      // being left to decode on their own
+      boolean[] shardDone = new boolean[numDecoderShards];
+      int shardsLeft = numDecoderShards;
+      while (shardsLeft > 0) {
+        for (int s = 0; s < numDecoderShards; ++s) {
+          if (shardDone[s] || !p[s].waitFor(50, TimeUnit.MILLISECONDS)) continue;
+          shardDone[s] = true;
+          --shardsLeft;
+          int decStatus = p[s].exitValue();
+          if (decStatus != validDecoderExitValue) {
+            for (int t = 0; t < numDecoderShards; ++t) {
+              if (!shardDone[t]) p[t].destroy();
+            }
+            println("Call to decoder (shard " + s + ") returned " + decStatus
+                  + "; was expecting " + validDecoderExitValue + ".");
+            System.exit(30);
+          }
+        }
+      }
+
+      // merge the shards' n-best lists, renumbering their sentences
+      OutputStream outStream_nbest = new FileOutputStream(decoderOutFileName, false);
+      if (decoderOutFileName.endsWith(".gz")) outStream_nbest = new GZIPOutputStream(outStream_nbest);
+      BufferedWriter outFile_nbest = new BufferedWriter(new OutputStreamWriter(outStream_nbest, "utf8"));
+
+      for (int s = 0; s < numDecoderShards; ++s) {
+        String shardFileName = tmpDirPrefix+"temp.decOut.shard"+s;
+        checkFile(shardFileName);
+        BufferedReader inFile_shard = new BufferedReader(new InputStreamReader(new FileInputStream(shardFileName), "utf8"));
+        String line;
+        while ((line = inFile_shard.readLine()) != null) {
+          int sep_i = line.indexOf("|||");
+          int read_i = Integer.parseInt((line.substring(0,sep_i)).trim());
+          outFile_nbest.write((shardStart[s]+read_i) + " " + line.substring(sep_i));
+          outFile_nbest.newLine();
+        }
+        inFile_shard.close();
+        deleteFile(shardFileName);
+      }
+
+      outFile_nbest.close();
+
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.run_decoder_sharded(int): " + e.getMessage());
+      System.exit(99902);
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException in MertCore.run_decoder_sharded(int): " + e.getMessage());
+      System.exit(99903);
+    }
+  }
+
+  // runs the decoder (or, if decoderSessionMode == 1, asks the decoder session
+  // to decode), and produces the temp files for the current iteration from its
+  // n-best output as the output is produced (see decoderStreamMode)
+  private void run_decoder_streaming(int iteration)
+  {
+    try {
+      ExecutorService statsPool = null;
+      if (compressFiles == 0 && evalMetric.suffStatsThreadSafe()) {
+        // calculate the stats of candidates not in the pool yet, sentence by sentence
+        if (iteration > 1 && candPool == null) {
+          candPool = CandidatePool.open(tmpDirPrefix+"temp.");
+        }
+        @SuppressWarnings({"unchecked","rawtypes"})
+        HashMap<String,int[]>[] temp_HMA = new HashMap[numSentences];
+        earlyStats = temp_HMA;
+        statsPool = Executors.newFixedThreadPool(numOptThreads);
+      }
+
+      if (decoderSessionMode == 1) {
+        if (decSession != null && !decSession.isAlive()) {
+          println("Decoder session ended unexpectedly; its exit value was " + decSession.close() + ".");
+          System.exit(30);
+        }
+        if (decSession == null) {
+          decSession = new DecoderSession(decoderCommandFileName, decVerbosity);
+        }
+
+        OutputStream outStream_copy = new FileOutputStream(decoderOutFileName, false);
+        if (decoderOutFileName.endsWith(".gz")) outStream_copy = new GZIPOutputStream(outStream_copy);
+        BufferedWriter outFile_copy = new BufferedWriter(new OutputStreamWriter(outStream_copy, "utf8"));
+
+        println("Producing temp files for iteration "+iteration,3);
+
+        produceTempFiles(decSession.decode(iteration,lambda), outFile_copy, iteration, statsPool);
+        outFile_copy.close();
+
+        if (!decSession.lastListComplete()) {
+          println("Decoder session ended before the n-best list was complete; its exit value was "
+                + decSession.close() + ".");
+          System.exit(30);
+        }
+
+        waitForEarlyStats(statsPool);
+        return;
+      }
+
+      if (decoderStreamMode == 1) {
+        deleteFile(decoderOutFileName); // so the previous iteration's output is not read
+      }
+
+      Runtime rt = Runtime.getRuntime();
+      String cmd = decoderCommandFileName;
+      if (passIterationToDecoder == 1) {
+        cmd = cmd + " " + iteration;
+      }
+      Process p = rt.exec(cmd);
+
+      StreamGobbler errorGobbler = new StreamGobbler(p.getErrorStream(), decVerbosity);
+      errorGobbler.start();
+
+      InputStream inStream_nbest = null;
+      TailInputStream inStream_tail = null;
+      BufferedWriter outFile_copy = null;
+      if (decoderStreamMode == 2) {
+        inStream_nbest = p.getInputStream();
+        OutputStream outStream_copy = new FileOutputStream(decoderOutFileName, false);
+        if (decoderOutFileName.endsWith(".gz")) outStream_copy = new GZIPOutputStream(outStream_copy);
+        outFile_copy = new BufferedWriter(new OutputStreamWriter(outStream_copy, "utf8"));
+      } else {
+        StreamGobbler outputGobbler = new StreamGobbler(p.getInputStream(), decVerbosity);
+        outputGobbler.start();
+        inStream_tail = new TailInputStream(decoderOutFileName, p);
+        inStream_nbest = inStream_tail;
+      }
+
+      println("Producing temp files for iteration "+iteration,3);
+
+      BufferedReader inFile_nbest = new BufferedReader(new InputStreamReader(inStream_nbest, "utf8"));
+      try {
+        produceTempFiles(inFile_nbest, outFile_copy, iteration, statsPool);
+      } catch (FileNotFoundException e) {
+        if (inStream_tail == null || !inStream_tail.outputMissing()) throw e;
+        // the decoder exited without ever creating its output file
+        int decStatus = p.waitFor();
+        if (decStatus != validDecoderExitValue) {
+          println("Call to decoder returned " + decStatus
+                + "; was expecting " + validDecoderExitValue + ".");
+        } else {
+          println("Call to decoder returned " + decStatus
+                + ", but the decoder did not produce " + decoderOutFileName + ".");
+        }
+        System.exit(30);
+      }
+      inFile_nbest.close();
+      if (outFile_copy != null) outFile_copy.close();
+
+      int decStatus = p.waitFor();
+      if (decStatus != validDecoderExitValue) {
+        println("Call to decoder returned " + decStatus
+              + "; was expecting " + validDecoderExitValue + ".");
+        System.exit(30);
+      }
+
+      waitForEarlyStats(statsPool);
+
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.run_decoder_streaming(int): " + e.getMessage());
+      System.exit(99902);
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException in MertCore.run_decoder_streaming(int): " + e.getMessage());
+      System.exit(99903);
+    }
+  }
 
-      FileOutputStream outStream_sents = new FileOutputStream(sentsFileName, false);
-      OutputStreamWriter outStreamWriter_sents = new OutputStreamWriter(outStream_sents, "utf8");
-      BufferedWriter outFile_sents = new BufferedWriter(outStreamWriter_sents);
+  private void waitForEarlyStats(ExecutorService statsPool) throws InterruptedException
+  {
+    if (statsPool != null) {
+      statsPool.shutdown();
+      statsPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+  }
 
-      PrintWriter outFile_feats = new PrintWriter(featsFileName);
+  // ends the decoder session (if there is one), checking the decoder's exit value
+  private void closeDecoderSession()
+  {
+    if (decSession == null) return;
 
+    try {
+      int decStatus = decSession.close();
+      decSession = null;
+      if (decStatus != validDecoderExitValue) {
+        println("Decoder session returned " + decStatus
+              + "; was expecting " + validDecoderExitValue + ".");
+        System.exit(30);
+      }
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.closeDecoderSession(): " + e.getMessage());
+      System.exit(99902);
+    } catch (InterruptedException e) {
+      System.err.println("InterruptedException in MertCore.closeDecoderSession(): " + e.getMessage());
+      System.exit(99903);
+    }
+  }
 
+  // (package-private, like normalize, for the benchmarks in bench/)
+  void produceTempFiles(String nbestFileName, int iteration)
+  {
+    try {
       InputStream inStream_nbest = null;
       if (nbestFileName.endsWith(".gz")) {
         inStream_nbest = new GZIPInputStream(new FileInputStream(nbestFileName));
@@ -1407,6 +2115,69 @@ public double[] run_single_iteration(
       }
       BufferedReader inFile_nbest = new BufferedReader(new InputStreamReader(inStream_nbest, "utf8"));
 
+      produceTempFiles(inFile_nbest, null, iteration, null);
+
+      inFile_nbest.close();
+
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in MertCore.produceTempFiles(int): " + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.produceTempFiles(int): " + e.getMessage());
+      System.exit(99902);
+    }
+  }
+
+  // reads an n-best list from inFile_nbest (copying it to outFile_copy, unless
+  // null), and writes the temp.sents.itN and temp.cands.itN (or temp.feats.itN)
+  // files.  If statsPool is not null, the sufficient statistics of each
+  // sentence's candidates are calculated there (into earlyStats) once all of
+  // the sentence's candidates have been read.
+  private void produceTempFiles(
+    BufferedReader inFile_nbest, BufferedWriter outFile_copy, int iteration, ExecutorService statsPool)
+    throws IOException
+  {
+      TuningEvents.NbestIngestion event = new TuningEvents.NbestIngestion();
+      event.begin();
+      int numCandsRead_before = numCandsRead;
+
+      String sentsFileName = tmpDirPrefix+"temp.sents.it"+iteration;
+      String featsFileName = tmpDirPrefix+"temp.feats.it"+iteration;
+
+      BufferedWriter outFile_sents = null;
+      if (keepInMemory) {
+        currItSents = new ArrayList<String>(numSentences*sizeOfNBest);
+      } else {
+        FileOutputStream outStream_sents = new FileOutputStream(sentsFileName, false);
+        OutputStreamWriter outStreamWriter_sents = new OutputStreamWriter(outStream_sents, "utf8");
+        outFile_sents = new BufferedWriter(outStreamWriter_sents);
+      }
+
+      // if compressFiles == 0, the feature values are written, as they are read,
+      // straight into the binary store temp.cands.itN rather than to the
+      // temp.feats.itN text file (the sufficient statistics are then kept in
+      // the candidate pool; see processCandidates_pool)
+      boolean binary = (compressFiles == 0);
+      PrintWriter outFile_feats = null;
+      CandidateStore store = null;
+      int[] candOffsets = null;
+      int numCands = 0;
+      if (binary) {
+        candOffsets = new int[numSentences+1];
+        if (keepInMemory) {
+          store = CandidateStore.createInMemory(numSentences, numParams, numSentences*sizeOfNBest);
+        } else {
+          store = CandidateStore.create(
+            tmpDirPrefix+"temp.cands.it"+iteration, numSentences, numParams, numSentences*sizeOfNBest);
+        }
+          // (a sentence never gets more than sizeOfNBest candidates; see below)
+      } else {
+        outFile_feats = new PrintWriter(featsFileName);
+      }
+
+      ArrayList<String> currCands = (statsPool != null) ? new ArrayList<String>() : null;
+        // the normalized candidates of the current sentence
+
       String line; //, prevLine;
       String candidate_str = "";
       String feats_str = "";
@@ -1425,11 +2196,18 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 
         // in a well formed file, we'd find the nth candidate for the ith sentence
 
+        if (outFile_copy != null) {
+          outFile_copy.write(line);
+          outFile_copy.newLine();
+        }
+
         int read_i = Integer.parseInt((line.substring(0,line.indexOf("|||"))).trim());
 
         if (read_i != i) {
-          writeLine("||||||",outFile_sents);
-          outFile_feats.println("||||||");
+          if (currCands != null) submitEarlyStats(statsPool, i, currCands, iteration);
+          if (outFile_sents != null) writeLine("||||||",outFile_sents);
+          if (binary) { if (i < numSentences) candOffsets[i+1] = numCands; }
+          else outFile_feats.println("||||||");
           n = 0; ++i;
         }
 
@@ -1444,13 +2222,29 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
           feats_str = (feats_str.substring(0,junk_i)).trim();
         }
 
-        writeLine(normalize(candidate_str,textNormMethod), outFile_sents);
-        outFile_feats.println(feats_str);
+        String normalized_str = normalize(candidate_str,textNormMethod);
+        if (outFile_sents != null) writeLine(normalized_str, outFile_sents);
+        else currItSents.add(normalized_str);
+        ++numCandsRead;
+        if (currCands != null) currCands.add(normalized_str);
+        if (binary) {
+          if (i < numSentences) { // (the candidates of any extra sentences are dropped)
+            String[] featVal_str = feats_str.split("\\s+");
+            for (int c = 1; c <= numParams; ++c) {
+              store.setFeat(numCands,c,Double.parseDouble(featVal_str[c-1]));
+            }
+            ++numCands;
+          }
+        } else {
+          outFile_feats.println(feats_str);
+        }
 
         ++n;
         if (n == sizeOfNBest) {
-          writeLine("||||||",outFile_sents);
-          outFile_feats.println("||||||");
+          if (currCands != null) submitEarlyStats(statsPool, i, currCands, iteration);
+          if (outFile_sents != null) writeLine("||||||",outFile_sents);
+          if (binary) { if (i < numSentences) candOffsets[i+1] = numCands; }
+          else outFile_feats.println("||||||");
           n = 0; ++i;
         }
 
@@ -1458,27 +2252,66 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       }
 
       if (i != numSentences) { // last sentence had too few candidates
-        writeLine("||||||",outFile_sents);
-        outFile_feats.println("||||||");
+        if (currCands != null) submitEarlyStats(statsPool, i, currCands, iteration);
+        if (outFile_sents != null) writeLine("||||||",outFile_sents);
+        if (!binary) outFile_feats.println("||||||");
       }
 
-      inFile_nbest.close();
-      outFile_sents.close();
-      outFile_feats.close();
+      if (outFile_sents != null) outFile_sents.close();
+
+      if (binary) {
+        for (int i2 = i+1; i2 <= numSentences; ++i2) { candOffsets[i2] = numCands; }
+          // i.e. the last sentence(s) had too few candidates
+
+        store.finish(candOffsets);
+        if (keepInMemory) currItCands = store;
+        else store.close();
+      } else {
+        outFile_feats.close();
+      }
 
       if (compressFiles == 1) {
         gzipFile(sentsFileName);
         gzipFile(featsFileName);
       }
 
-    } catch (FileNotFoundException e) {
-      System.err.println("FileNotFoundException in MertCore.produceTempFiles(int): " + e.getMessage());
-      System.exit(99901);
-    } catch (IOException e) {
-      System.err.println("IOException in MertCore.produceTempFiles(int): " + e.getMessage());
-      System.exit(99902);
-    }
+      event.record(iteration, numCandsRead - numCandsRead_before);
+  }
+
+  // calculates, in statsPool, the sufficient statistics of the i'th sentence's
+  // candidates that are not in the candidate pool, and stores them in earlyStats[i].
+  // cands is cleared, so it can be reused for the next sentence.
+  private void submitEarlyStats(ExecutorService statsPool, final int i, ArrayList<String> cands, int iteration)
+  {
+    if (i >= numSentences) { cands.clear(); return; } // malformed n-best list; left to processCandidates_pool
+    final String[] sents_str = cands.toArray(new String[cands.size()]);
+    final CandidatePool pool = (iteration > 1) ? candPool : null;
+    cands.clear();
+
+    statsPool.execute(new Runnable() {
+      public void run() {
+        HashMap<String,int[]> stats = new HashMap<String,int[]>();
+        ArrayList<String> newCands = new ArrayList<String>();
+        for (String cand_str : sents_str) {
+          if (stats.containsKey(cand_str)) continue;
+          if (pool != null && pool.find(i,FingerprintSet.fingerprint(cand_str),null) >= 0) continue;
+          stats.put(cand_str,null);
+          newCands.add(cand_str);
+        }
 
+        int numNew = newCands.size();
+        if (numNew > 0) {
+          String[] newCands_str = newCands.toArray(new String[numNew]);
+          int[] sentIndices = new int[numNew];
+          Arrays.fill(sentIndices,i);
+          int[][] newStats = evalMetric.suffStats(newCands_str,sentIndices);
+          for (int d = 0; d < numNew; ++d) {
+            stats.put(newCands_str[d],newStats[d]);
+          }
+        }
+        earlyStats[i] = stats;
+      }
+    });
   }
 
   private void createConfigFile(double[] params, String cfgFileName, String templateFileName)
@@ -1889,6 +2722,18 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 
   public void finish()
   {
+    closeDecoderSession();
+
+    if (statsCache != null) {
+      try {
+        statsCache.close();
+      } catch (IOException e) {
+        System.err.println("IOException in MertCore.finish(): " + e.getMessage());
+        System.exit(99902);
+      }
+      statsCache = null;
+    }
+
     // create config file with final values
     createConfigFile(lambda, decoderConfigFileName+".ZMERT.final",decoderConfigFileName+".ZMERT.orig");
 
@@ -2009,8 +2854,14 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 //	/* possibly other early stopping criteria here */
 //
 	numOptThreads = 1;
+	numParamThreads = 1;
 	saveInterFiles = 3;
 	compressFiles = 0;
+	verifyFingerprints = false;
+	statsCacheDirName = null;
+	phaseLogFileName = null;
+	keepInMemory = false;
+	envelopeMethod = 2;
 	initsPerIt = 20;
 	oneModificationPerIteration = false;
 	randInit = false;
@@ -2021,6 +2872,9 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 	passIterationToDecoder = 0;
 	decoderOutFileName = "output.nbest";
 	validDecoderExitValue = 0;
+	decoderStreamMode = 0;
+	numDecoderShards = 1;
+	decoderSessionMode = 0;
 	decoderConfigFileName = "dec_cfg.txt";
 	sizeOfNBest = 100;
 	fakeFileNameTemplate = null;
@@ -2040,6 +2894,7 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 		String option = args[i];
 		// Relevant files
 		if (option.equals("-dir")) { dirPrefix = args[i+1];
+		} else if (option.equals("-s")) { sourceFileName = args[i+1];
 		} else if (option.equals("-r")) { refFileName = args[i+1];
 		} else if (option.equals("-rps")) {
 			refsPerSen = Integer.parseInt(args[i+1]);
@@ -2155,6 +3010,12 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 				println("threadCount must be positive.");
 				System.exit(10);
 			}
+		} else if (option.equals("-thrParams")) {
+			numParamThreads = Integer.parseInt(args[i+1]);
+			if (numParamThreads < 1) {
+				println("paramThreadCount must be positive.");
+				System.exit(10);
+			}
 		} else if (option.equals("-save")) {
 			saveInterFiles = Integer.parseInt(args[i+1]);
 			if (saveInterFiles < 0 || saveInterFiles > 3) {
@@ -2167,6 +3028,30 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 				println("compressFiles should be either 0 or 1"); 
 				System.exit(10);
 			}
+		} else if (option.equals("-fpVerify")) {
+			int fpVerify = Integer.parseInt(args[i+1]);
+			if (fpVerify < 0 || fpVerify > 1) {
+				println("verifyFingerprints should be either 0 or 1");
+				System.exit(10);
+			}
+			verifyFingerprints = (fpVerify == 1);
+		} else if (option.equals("-ssCache")) {
+			statsCacheDirName = args[i+1];
+		} else if (option.equals("-inMemory")) {
+			int inMem = Integer.parseInt(args[i+1]);
+			if (inMem < 0 || inMem > 1) {
+				println("inMemory should be either 0 or 1");
+				System.exit(10);
+			}
+			keepInMemory = (inMem == 1);
+		} else if (option.equals("-phaseLog")) {
+			phaseLogFileName = args[i+1];
+		} else if (option.equals("-envelope")) {
+			envelopeMethod = Integer.parseInt(args[i+1]);
+			if (envelopeMethod < 1 || envelopeMethod > 3) {
+				println("envelopeMethod should be between 1 and 3");
+				System.exit(10);
+			}
 		} else if (option.equals("-ipi")) {
 			initsPerIt = Integer.parseInt(args[i+1]);
 			if (initsPerIt < 1) {
@@ -2222,6 +3107,24 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 			decoderOutFileName = args[i+1];
 		} else if (option.equals("-decExit")) {
 			validDecoderExitValue = Integer.parseInt(args[i+1]);
+		} else if (option.equals("-decStream")) {
+			decoderStreamMode = Integer.parseInt(args[i+1]);
+			if (decoderStreamMode < 0 || decoderStreamMode > 2) {
+				println("decStreamMode should be between 0 and 2");
+				System.exit(10);
+			}
+		} else if (option.equals("-decSession")) {
+			decoderSessionMode = Integer.parseInt(args[i+1]);
+			if (decoderSessionMode < 0 || decoderSessionMode > 1) {
+				println("decSessionMode should be either 0 or 1");
+				System.exit(10);
+			}
+		} else if (option.equals("-shards")) {
+			numDecoderShards = Integer.parseInt(args[i+1]);
+			if (numDecoderShards < 1) {
+				println("numShards must be positive.");
+				System.exit(10);
+			}
 		} else if (option.equals("-dcfg")) {
 			decoderConfigFileName = args[i+1];
 		} else if (option.equals("-N")) {
@@ -2292,6 +3195,27 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       if (finalLambdaFileName != null) { finalLambdaFileName = fullPath(dirPrefix,finalLambdaFileName); }
       if (decoderCommandFileName != null) { decoderCommandFileName = fullPath(dirPrefix,decoderCommandFileName); }
       if (fakeFileNamePrefix != null) { fakeFileNamePrefix = fullPath(dirPrefix,fakeFileNamePrefix); }
+      if (phaseLogFileName != null && !(new File(phaseLogFileName)).isAbsolute()) {
+        phaseLogFileName = fullPath(dirPrefix,phaseLogFileName);
+      }
+      if (statsCacheDirName != null && !(new File(statsCacheDirName)).isAbsolute()) {
+        // (the cache is typically shared by runs in different directories)
+        statsCacheDirName = fullPath(dirPrefix,statsCacheDirName);
+      }
+    }
+
+    if (keepInMemory && compressFiles != 0) {
+      if (firstTime)
+        println("Warning: -inMemory 1 cannot be used with compressed temp files; "
+              + "ignoring it.",1);
+      keepInMemory = false;
+    }
+
+    if (statsCacheDirName != null && compressFiles != 0) {
+      if (firstTime)
+        println("Warning: the stats cache cannot be used with compressed temp files; "
+              + "ignoring -ssCache.",1);
+      statsCacheDirName = null;
     }
 
     // TODO: make this an argument
@@ -2308,6 +3232,26 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
     checkFile(paramsFileName);
     checkFile(decoderConfigFileName);
 
+    if (decoderSessionMode == 1 && numDecoderShards > 1) {
+      if (firstTime)
+        println("Warning: a decoder session cannot be sharded; ignoring -shards.",1);
+      numDecoderShards = 1;
+    }
+
+    if (numDecoderShards > 1) {
+      if (sourceFileName == null) {
+        println("Sharded decoding (-shards) requires a source file (-s).");
+        System.exit(10);
+      }
+      checkFile(sourceFileName);
+      if (decoderStreamMode != 0) {
+        if (firstTime)
+          println("Warning: decoder output cannot be streamed when decoding in shards; "
+                + "ignoring -decStream.",1);
+        decoderStreamMode = 0;
+      }
+    }
+
     boolean canRunCommand = fileExists(decoderCommandFileName);
     if (decoderCommandFileName != null && !canRunCommand) {
       // i.e. a decoder command file was specified, but it was not found
@@ -2583,7 +3527,7 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 
   } // createUnifiedRefFile(String prefix, int numFiles)
 
-  private String normalize(String str, int normMethod)
+  String normalize(String str, int normMethod)
   {
     if (normMethod == 0) return str;
 
@@ -2774,6 +3718,30 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
     return dummyFile.getAbsolutePath();
   }
 
+  // saves the state needed to run iteration+1 in a new process (see main)
+  private void saveState(String stateFileName, int iteration, int earlyStop, double FINAL_score)
+  {
+    double[] serA = new double[4+numParams];
+    serA[0] = iteration;
+    serA[1] = generatedRands;
+    serA[2] = earlyStop;
+    serA[3] = FINAL_score;
+    for (int c = 1; c <= numParams; ++c) { serA[3+c] = lambda[c]; }
+
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(stateFileName));
+      out.writeObject(serA);
+      out.flush();
+      out.close();
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in MertCore.saveState(...): " + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in MertCore.saveState(...): " + e.getMessage());
+      System.exit(99902);
+    }
+  }
+
   @SuppressWarnings("unused")
   private void cleanupMemory()
   {
@@ -2905,31 +3873,6 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
     return 0; // no parameter with that name!
   }
 
-  private void setFeats(
-    double[][][] featVal_array, int i, int[] lastUsedIndex,
-    int[] maxIndex, double[] featVal)
-  {
-    int k = lastUsedIndex[i] + 1;
-
-    if (k > maxIndex[i]) {
-      for (int c = 1; c <= numParams; ++c) {
-        double[] temp = featVal_array[c][i];
-        featVal_array[c][i] = new double[1+maxIndex[i]+sizeOfNBest];
-
-        for (int k2 = 0; k2 <= maxIndex[i]; ++k2) {
-          featVal_array[c][i][k2] = temp[k2];
-        }
-      }
-      maxIndex[i] += sizeOfNBest;
-//      cleanupMemorySilently(); // UNCOMMENT THIS if cleaning up memory
-    }
-
-    for (int c = 1; c <= numParams; ++c) {
-      featVal_array[c][i][k] = featVal[c];
-    }
-    lastUsedIndex[i] += 1;
-  }
-
   @SuppressWarnings("unused")
   private HashSet<Integer> indicesToDiscard(double[] slope, double[] offset)
   {
@@ -2990,18 +3933,40 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 
     String configFileName = args[0];
     String stateFileName = args[1];
+
+    if (args[2].equals("worker")) {
+      // the worker process of ZMERT -maxMem -warmWorker: all the iterations are
+      // run here, in a single process, and the state is saved after each of
+      // them, so that (unless -inMemory 1) the run can also be resumed with one
+      // process per iteration (see below)
+      EvaluationMetric.set_knownMetrics();
+      DMC.processArgsArray(DMC.cfgFileToArgsArray(configFileName),true);
+      DMC.initialize(0);
+      DMC.checkpointFileName = stateFileName;
+      DMC.run_MERT();
+      DMC.finish();
+      DMC.deleteFile(stateFileName);
+      System.exit(90);
+    }
+
     int currIteration = Integer.parseInt(args[2]);
 
 
     int randsToSkip = 0;
     int earlyStop = 0;
     double FINAL_score = 0.0;
-    int[] maxIndex = null;
 
     if (currIteration == 1) {
       EvaluationMetric.set_knownMetrics();
       DMC.processArgsArray(DMC.cfgFileToArgsArray(configFileName),true);
 
+      if (DMC.keepInMemory) {
+        // each iteration runs in its own process, so the pool must be kept in files
+        DMC.println("-inMemory 1 cannot be used when each iteration runs in its own "
+                  + "JVM; use ZMERT -maxMem with -warmWorker, or -inMemory 0.");
+        System.exit(10);
+      }
+
       randsToSkip = 0;
       DMC.initialize(randsToSkip);
 
@@ -3023,8 +3988,6 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       DMC.println("",1);
 
       FINAL_score = DMC.evalMetric.worstPossibleScore();
-      maxIndex = new int[DMC.numSentences];
-      for (int i = 0; i < DMC.numSentences; ++i) { maxIndex[i] = DMC.sizeOfNBest - 1; }
       earlyStop = 0;
     } else {
 
@@ -3042,8 +4005,7 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
         //   (*) earlyStop
         //   (*) FINAL_score
         //   (*) lambda[]
-        //   (*) maxIndex[]
-        // => length should be 4+numParams+numSentences
+        // => length should be 4+numParams
       } catch (FileNotFoundException e) {
         System.err.println("FileNotFoundException in MertCore.main(String[]): " + e.getMessage());
         System.exit(99901);
@@ -3070,9 +4032,9 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       randsToSkip = (int)serA[1];
       DMC.initialize(randsToSkip); // declares lambda[], sets numParams and numSentences
 
-      if (serA.length != 4+DMC.numParams+DMC.numSentences) {
+      if (serA.length != 4+DMC.numParams) {
         DMC.println("State file contains an array of length " + serA.length + "; "
-                  + "was expecting " + (4+DMC.numParams+DMC.numSentences));
+                  + "was expecting " + (4+DMC.numParams));
         System.exit(83);
       }
 
@@ -3080,44 +4042,29 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       FINAL_score = serA[3];
 
       for (int c = 1; c <= DMC.numParams; ++c) { DMC.lambda[c] = serA[3+c]; }
+    }
 
-      maxIndex = new int[DMC.numSentences];
-      for (int i = 0; i < DMC.numSentences; ++i) { maxIndex[i] = (int)serA[3+DMC.numParams+1+i]; }
+    if (DMC.decoderSessionMode == 1) {
+      // this process only runs a single iteration
+      if (currIteration == 1)
+        DMC.println("Warning: a decoder session cannot be kept alive when each iteration is "
+                  + "launched externally; launching the decoder in every iteration instead.",1);
+      DMC.decoderSessionMode = 0;
     }
 
 
     double[] A = DMC.run_single_iteration(currIteration, DMC.minMERTIterations,
-                   DMC.maxMERTIterations, DMC.prevMERTIterations, earlyStop, maxIndex);
+                   DMC.maxMERTIterations, DMC.prevMERTIterations, earlyStop);
 
     if (A != null) {
       FINAL_score = A[0];
       earlyStop = (int)A[1];
-      randsToSkip = DMC.generatedRands;
     }
 
 
     if (A != null && A[2] != 1) {
 
-      double[] serA = new double[4+DMC.numParams+DMC.numSentences];
-      serA[0] = currIteration;
-      serA[1] = randsToSkip;
-      serA[2] = earlyStop;
-      serA[3] = FINAL_score;
-      for (int c = 1; c <= DMC.numParams; ++c) { serA[3+c] = DMC.lambda[c]; }
-      for (int i = 0; i < DMC.numSentences; ++i) { serA[3+DMC.numParams+1+i] = maxIndex[i]; }
-
-      try {
-        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(stateFileName));
-        out.writeObject(serA);
-        out.flush();
-        out.close();
-      } catch (FileNotFoundException e) {
-        System.err.println("FileNotFoundException in MertCore.main(String[]): " + e.getMessage());
-        System.exit(99901);
-      } catch (IOException e) {
-        System.err.println("IOException in MertCore.main(String[]): " + e.getMessage());
-        System.exit(99902);
-      }
+      DMC.saveState(stateFileName, currIteration, earlyStop, FINAL_score);
 
       System.exit(91);
 
@@ -3142,26 +4089,7 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
       }
       DMC.println("",1);
 
-      // delete intermediate .temp.*.it* decoder output files
-      for (int iteration = 1; iteration <= DMC.maxMERTIterations; ++iteration) {
-        if (DMC.compressFiles == 1) {
-          DMC.deleteFile(DMC.tmpDirPrefix+"temp.sents.it"+iteration+".gz");
-          DMC.deleteFile(DMC.tmpDirPrefix+"temp.feats.it"+iteration+".gz");
-          if (DMC.fileExists(DMC.tmpDirPrefix+"temp.stats.it"+iteration+".copy.gz")) {
-            DMC.deleteFile(DMC.tmpDirPrefix+"temp.stats.it"+iteration+".copy.gz");
-          } else {
-            DMC.deleteFile(DMC.tmpDirPrefix+"temp.stats.it"+iteration+".gz");
-          }
-        } else {
-          DMC.deleteFile(DMC.tmpDirPrefix+"temp.sents.it"+iteration);
-          DMC.deleteFile(DMC.tmpDirPrefix+"temp.feats.it"+iteration);
-          if (DMC.fileExists(DMC.tmpDirPrefix+"temp.stats.it"+iteration+".copy")) {
-            DMC.deleteFile(DMC.tmpDirPrefix+"temp.stats.it"+iteration+".copy");
-          } else {
-            DMC.deleteFile(DMC.tmpDirPrefix+"temp.stats.it"+iteration);
-          }
-        }
-      }
+      DMC.deleteTempFiles(DMC.maxMERTIterations);
 
 
       DMC.finish();
@@ -3174,29 +4102,57 @@ i ||| words of candidate translation . ||| feat-1_val feat-2_val ... feat-numPar
 
 }
 
-// based on:
-// http://www.javaworld.com/javaworld/jw-12-2000/jw-1229-traps.html?page=4
-class StreamGobbler extends Thread {
+// reads a file that another process is still writing: at the end of the file,
+// waits for more data for as long as the process is alive (see -decStream)
+class TailInputStream extends InputStream {
+	String fileName;
+	Process proc;
 	InputStream istream;
-	boolean verbose;
-	
-	StreamGobbler(InputStream is, int p) {
-		istream = is;
-		verbose = (p != 0);
+	boolean procDone;
+
+	TailInputStream(String fn, Process p) {
+		fileName = fn;
+		proc = p;
+		istream = null;
+		procDone = false;
 	}
-	
-	public void run() {
-		try {
-			InputStreamReader isreader = new InputStreamReader(istream);
-			BufferedReader br = new BufferedReader(isreader);
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				if (verbose) System.out.println(line);
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		return (len < 0) ? -1 : (b[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		while (true) {
+			if (istream == null) {
+				if (new File(fileName).exists()) {
+					istream = new FileInputStream(fileName);
+				} else if (procDone) {
+					throw new FileNotFoundException(fileName + " was not produced by the decoder");
+				}
+			}
+
+			if (istream != null) {
+				int readLen = istream.read(b, off, len);
+				if (readLen > 0 || procDone) return readLen;
+			}
+
+			// nothing to read yet; once the process is done, try one last time
+			if (!proc.isAlive()) {
+				procDone = true;
+			} else {
+				try { Thread.sleep(20); } catch (InterruptedException e) { throw new InterruptedIOException(); }
 			}
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
 		}
 	}
-}
 
+	// true if the process exited without ever creating the file
+	public boolean outputMissing() {
+		return procDone && istream == null;
+	}
 
+	public void close() throws IOException {
+		if (istream != null) istream.close();
+	}
+}
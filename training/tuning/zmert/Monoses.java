@@ -69,19 +69,20 @@ public class Monoses extends EvaluationMetric {
   }
 
   public double score(int[] stats) {
-    final int lmInts[] = new int[INTS_PER_DOUBLE];
-    final int lmCount = stats[suffStatsCount-1];
-    for (int i = 0; i < INTS_PER_DOUBLE; i++) lmInts[i] = stats[NBLEU*suffStatsCountBleu+i];
-    double lmScore = lmScore(intsToDouble(lmInts), lmCount);
+    return score(stats, 0, null);
+  }
+
+  public double score(int[] stats, int offset, int[] scratch) {
+    final int lmCount = stats[offset+suffStatsCount-1];
+    double lmScore = lmScore(intsToDouble(stats, offset+NBLEU*suffStatsCountBleu), lmCount);
 
     double totalBleu = 0;
     double ratio = 1;
-    final int bleuStats[] = new int[suffStatsCountBleu];
     for (int dir = 0; dir < NBLEU; dir++) {
-      for (int i = 0; i < suffStatsCountBleu; i++) bleuStats[i] = stats[dir*suffStatsCountBleu+i];
-      totalBleu += bleu.score(bleuStats);
-      double c_len = bleuStats[suffStatsCountBleu-2];
-      double r_len = bleuStats[suffStatsCountBleu-1];
+      final int bleuOffset = offset+dir*suffStatsCountBleu;
+      totalBleu += bleu.score(stats, bleuOffset, scratch);
+      double c_len = stats[bleuOffset+suffStatsCountBleu-2];
+      double r_len = stats[bleuOffset+suffStatsCountBleu-1];
       if (c_len > r_len) ratio *= c_len / r_len;
     }
     
@@ -118,7 +119,7 @@ public class Monoses extends EvaluationMetric {
     return ans;
   }
 
-  private static double intsToDouble(int[] ints) {
+  private static double intsToDouble(int[] ints, int offset) {
     double ans = 0;
     for (int i = 0; i < INTS_PER_DOUBLE; i++) {
       final int exp = START_DIV - i*BITS_PER_INT;
@@ -129,7 +130,7 @@ public class Monoses extends EvaluationMetric {
       } else {
         mul <<= -exp;
       }
-      ans += div * ((double)ints[i]) / mul;
+      ans += div * ((double)ints[offset+i]) / mul;
     }
     return ans;
   }
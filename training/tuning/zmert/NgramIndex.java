@@ -0,0 +1,242 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.util.*;
+
+public class NgramIndex
+{
+  /*
+     Maximum reference counts of the n-grams of every sentence, i.e. for each
+     n-gram, the largest number of times it occurs in any one reference of the
+     sentence.  Each sentence has an open-addressing (linear probing) table
+     from 64-bit n-gram keys (see gramKey) to counts, and all the tables are
+     stored in one shared arena: the table of the i'th sentence occupies slots
+     [start[i],start[i+1]) of keys[] and counts[], where a count of 0 marks
+     an empty slot.  Its size is a power of 2.
+
+     If exact is true, the token ids of each n-gram are stored too, so that
+     n-grams with equal keys (i.e. hash collisions) are kept apart, and a
+     lookup only succeeds for the n-gram itself.  Otherwise, n-grams are
+     identified by their keys alone.
+
+     The index is filled once (sentence by sentence, in order) and then only
+     read, so it can be shared by any number of threads.
+  */
+
+  private int numSentences;
+  private boolean exact;
+  private long[] keys;
+  private int[] counts;
+  private int[] start;
+  private int numSlots; // slots used by the sentences added so far
+
+  private int[] gramPos;  // if exact: the ids of the n-gram in slot s are gramIds[gramPos[s]+1..gramPos[s]+n],
+  private int[] gramIds;  // where n = gramIds[gramPos[s]]
+  private int gramIdsSize;
+
+  // totalSlots is the number of slots the tables of all the sentences will
+  // take, i.e. the sum of their tableSize's (if more slots turn out to be
+  // needed, the arena grows)
+  public NgramIndex(int in_numSentences, boolean in_exact, int totalSlots)
+  {
+    numSentences = in_numSentences;
+    exact = in_exact;
+    keys = new long[totalSlots];
+    counts = new int[totalSlots];
+    start = new int[numSentences+1];
+    numSlots = 0;
+    if (exact) {
+      gramPos = new int[totalSlots];
+      gramIds = new int[totalSlots]; // (grows as n-grams are added)
+      gramIdsSize = 0;
+    }
+  }
+
+  public int get_numSentences() { return numSentences; }
+  public boolean isExact() { return exact; }
+
+  // key of the n-gram made of the (n-1)-gram with key prevKey (0 if n is 1),
+  // followed by the token with id tokenId
+  public static long gramKey(long prevKey, int tokenId)
+  {
+    long h = prevKey * 0x9E3779B97F4A7C15L + tokenId;
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+
+  // adds the i'th sentence, whose references have token ids refIds[0..refsPerSen-1],
+  // indexing all their n-grams with n <= maxGramLength.  Sentences must be added
+  // in order.
+  public void addSentence(int i, int[][] refIds, int maxGramLength)
+  {
+    int maxRefGrams = 0;
+    for (int[] ids : refIds) {
+      maxRefGrams = Math.max(maxRefGrams, gramCount(ids,maxGramLength));
+    }
+
+    int capacity = tableSize(refIds,maxGramLength);
+    ensureSlots(numSlots + capacity);
+    start[i] = numSlots;
+    start[i+1] = numSlots + capacity;
+    numSlots += capacity;
+
+    // count the n-grams of each reference (in a temporary table with the same
+    // layout, where a gram's ids are given by its position in the reference),
+    // and keep the maximum counts
+    int tempCapacity = 16;
+    while (tempCapacity < 2*maxRefGrams) tempCapacity <<= 1;
+    long[] tempKeys = new long[tempCapacity];
+    int[] tempCounts = new int[tempCapacity];
+    int[] tempSt = new int[tempCapacity];
+    int[] tempN = new int[tempCapacity];
+    int tempMask = tempCapacity - 1;
+
+    for (int[] ids : refIds) {
+      Arrays.fill(tempCounts,0);
+
+      for (int st = 0; st < ids.length; ++st) {
+        long key = 0;
+        for (int n = 1; n <= maxGramLength && st+n <= ids.length; ++n) {
+          key = gramKey(key,ids[st+n-1]);
+          int slot = (int)key & tempMask;
+          while (tempCounts[slot] != 0
+                 && (tempKeys[slot] != key
+                     || (exact && !sameIds(ids,tempSt[slot],tempN[slot],ids,st,n)))) {
+            slot = (slot + 1) & tempMask;
+          }
+          if (tempCounts[slot] == 0) {
+            tempKeys[slot] = key;
+            tempSt[slot] = st;
+            tempN[slot] = n;
+          }
+          ++tempCounts[slot];
+        }
+      }
+
+      for (int t = 0; t < tempCapacity; ++t) {
+        if (tempCounts[t] == 0) continue;
+        int slot = insert(i,tempKeys[t],ids,tempSt[t],tempN[t]);
+        if (tempCounts[t] > counts[slot]) counts[slot] = tempCounts[t];
+      }
+    }
+  }
+
+  // number of slots the table of a sentence whose references have token ids
+  // refIds[0..refsPerSen-1] takes (see addSentence)
+  public static int tableSize(int[][] refIds, int maxGramLength)
+  {
+    int maxGrams = 0; // upper bound on the number of distinct n-grams
+    for (int[] ids : refIds) maxGrams += gramCount(ids,maxGramLength);
+    if (maxGrams == 0) return 0;
+
+    int capacity = 1;
+    while (capacity < 2*maxGrams) capacity <<= 1;
+    return capacity;
+  }
+
+  // number of n-grams (with n <= maxGramLength) in a sentence with token ids ids
+  private static int gramCount(int[] ids, int maxGramLength)
+  {
+    int grams = 0;
+    for (int n = 1; n <= maxGramLength; ++n) grams += Math.max(ids.length-(n-1),0);
+    return grams;
+  }
+
+  // position of the n-gram ids[from..from+n-1] (whose key is key) in the
+  // i'th sentence's table, or -1 if it does not occur in any reference
+  public int find(int i, long key, int[] ids, int from, int n)
+  {
+    int base = start[i];
+    int mask = start[i+1] - base - 1;
+    if (mask < 0) return -1;
+    int slot = (int)key & mask;
+    while (counts[base+slot] != 0) {
+      if (keys[base+slot] == key
+          && (!exact || sameIds(gramIds,gramPos[base+slot]+1,gramIds[gramPos[base+slot]],ids,from,n))) {
+        return base+slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  // maximum reference count of the n-gram at position pos (as returned by find)
+  public int count(int pos) { return counts[pos]; }
+
+  // position of the given n-gram in the i'th sentence's table, adding it (with
+  // a count of 0, which the caller must then raise) if it is not there yet
+  private int insert(int i, long key, int[] ids, int from, int n)
+  {
+    int base = start[i];
+    int mask = start[i+1] - base - 1;
+    int slot = (int)key & mask;
+    while (counts[base+slot] != 0) {
+      if (keys[base+slot] == key
+          && (!exact || sameIds(gramIds,gramPos[base+slot]+1,gramIds[gramPos[base+slot]],ids,from,n))) {
+        return base+slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    keys[base+slot] = key;
+    if (exact) {
+      if (gramIdsSize+1+n > gramIds.length) {
+        gramIds = Arrays.copyOf(gramIds, Math.max(2*gramIds.length, gramIdsSize+1+n));
+      }
+      gramPos[base+slot] = gramIdsSize;
+      gramIds[gramIdsSize] = n;
+      System.arraycopy(ids,from,gramIds,gramIdsSize+1,n);
+      gramIdsSize += 1+n;
+    }
+    return base+slot;
+  }
+
+  private void ensureSlots(int size)
+  {
+    if (size <= keys.length) return;
+    int capacity = Math.max(2*keys.length, size);
+    keys = Arrays.copyOf(keys, capacity);
+    counts = Arrays.copyOf(counts, capacity);
+    if (exact) gramPos = Arrays.copyOf(gramPos, capacity);
+  }
+
+  private static boolean sameIds(int[] ids1, int from1, int n1, int[] ids2, int from2, int n2)
+  {
+    if (n1 != n2) return false;
+    for (int p = 0; p < n1; ++p) {
+      if (ids1[from1+p] != ids2[from2+p]) return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,295 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.Arrays;
+
+public class StatsCache
+{
+  /*
+     Persistent cache of the sufficient statistics of candidates, shared
+     across runs (e.g. reruns with a different seed, or a series of runs
+     that differ only in some decoder setting).  Stats depend on the metric
+     (and its options) and on the references, so each (metric, references)
+     combination has its own file in the cache directory, named after a
+     digest of both:
+
+       <dir>/<digest>.sscache:  header (int magic, int statsCount, long digest),
+                                then one fixed-size record per candidate
+                                (native byte order):
+                                  int sentence, int textHash, long fingerprint,
+                                  int[statsCount] stats
+
+     where fingerprint is FingerprintSet.fingerprint of the candidate and
+     textHash its String.hashCode(), so that a hit requires 96 bits of hash
+     (plus the sentence index) to agree.
+
+     The file is only ever appended to, whole records at a time and under an
+     exclusive file lock, so concurrent runs on one machine can share it;
+     each run sees the records appended by the others when it refresh()es.
+     Runs that score the same candidate at the same time may both append
+     it; such duplicates are skipped when reading.  A trailing partial record
+     (left by a run killed mid-write) is ignored when reading, and
+     overwritten by the next append.
+
+     A StatsCache object is meant to be used by a single thread.
+  */
+
+  private final static int MAGIC = 0x5A4D5343; // "ZMSC"
+  private final static int HEADER_SIZE = 16;
+  private final static int RECORD_HEADER_SIZE = 16;
+
+  private String fileName;
+  private int statsCount;
+  private int recordSize;
+  private FileChannel channel;
+  private long readOffset;   // how much of the file has been read into memory
+
+  private int numRecords;    // records in memory
+  private int[] recSentence;
+  private int[] recHash;
+  private long[] recFp;
+  private int[] recStats;
+  private FingerprintSet index; // maps key(sentence,fingerprint) to record
+
+  private ByteBuffer pending; // records added since the last flush()
+
+  private StatsCache(String in_fileName, int in_statsCount)
+  {
+    fileName = in_fileName;
+    statsCount = in_statsCount;
+    recordSize = RECORD_HEADER_SIZE + 4 * statsCount;
+
+    recSentence = new int[0];
+    recHash = new int[0];
+    recFp = new long[0];
+    recStats = new int[0];
+    index = new FingerprintSet(0);
+
+    pending = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+  }
+
+  // opens (creating it if needed) the cache file in dirName for metricKey (the metric
+  // name and options) and the given references, and reads what is in it so far
+  public static StatsCache open(String dirName, String metricKey, String[][] refSentences, int statsCount)
+    throws IOException
+  {
+    long digest = digest(metricKey, refSentences, statsCount);
+    Files.createDirectories(Paths.get(dirName));
+    String fileName = new File(dirName, String.format("%016x", digest) + ".sscache").getPath();
+
+    StatsCache cache = new StatsCache(fileName, statsCount);
+    cache.channel = FileChannel.open(Paths.get(fileName),
+                      StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+    FileLock lock = cache.channel.lock();
+    try {
+      if (cache.channel.size() < HEADER_SIZE) { // new (or never fully created) file
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(statsCount).putLong(digest);
+        header.flip();
+        cache.channel.truncate(0);
+        writeFully(cache.channel, header, 0);
+      } else {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        readFully(cache.channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != statsCount || header.getLong() != digest) {
+          throw new IOException("Not a stats cache file for this metric and these references: " + fileName);
+        }
+      }
+    } finally {
+      lock.release();
+    }
+
+    cache.readOffset = HEADER_SIZE;
+    cache.refresh();
+    return cache;
+  }
+
+  public String get_fileName() { return fileName; }
+  public int get_numRecords() { return numRecords; }
+
+  // reads the records appended (by any run) since the last refresh
+  public void refresh() throws IOException
+  {
+    FileLock lock = channel.lock(0, Long.MAX_VALUE, true); // shared
+    try {
+      long size = channel.size();
+      long end = HEADER_SIZE + ((size - HEADER_SIZE) / recordSize) * recordSize;
+      if (end <= readOffset) return;
+
+      ByteBuffer buf = ByteBuffer.allocate((int)Math.min(end - readOffset, 1 << 20) / recordSize * recordSize)
+                                 .order(ByteOrder.nativeOrder());
+      int[] stats = new int[statsCount];
+      while (readOffset < end) {
+        buf.clear();
+        buf.limit((int)Math.min(buf.capacity(), end - readOffset));
+        readFully(channel, buf, readOffset);
+        buf.flip();
+        while (buf.remaining() >= recordSize) {
+          int i = buf.getInt();
+          int textHash = buf.getInt();
+          long fp = buf.getLong();
+          for (int s = 0; s < statsCount; ++s) stats[s] = buf.getInt();
+          if (find(i,fp,textHash) < 0) addToMemory(i,fp,textHash,stats,0);
+        }
+        readOffset += buf.limit();
+      }
+    } finally {
+      lock.release();
+    }
+  }
+
+  // if the candidate text (with fingerprint fp) of the i'th sentence is in the
+  // cache, copies its stats to stats[offset..offset+statsCount-1] and returns true
+  public boolean get(int i, long fp, String text, int[] stats, int offset)
+  {
+    int r = find(i,fp,text.hashCode());
+    if (r < 0) return false;
+    System.arraycopy(recStats, r*statsCount, stats, offset, statsCount);
+    return true;
+  }
+
+  // adds the stats (in stats[offset..offset+statsCount-1]) of a candidate of the
+  // i'th sentence; they are written to the file by the next flush()
+  public void add(int i, long fp, String text, int[] stats, int offset)
+  {
+    int textHash = text.hashCode();
+    if (find(i,fp,textHash) >= 0) return;
+    addToMemory(i,fp,textHash,stats,offset);
+
+    if (pending.remaining() < recordSize) {
+      ByteBuffer newBuf = ByteBuffer.allocate(2*pending.capacity() + recordSize).order(ByteOrder.nativeOrder());
+      pending.flip();
+      newBuf.put(pending);
+      pending = newBuf;
+    }
+    pending.putInt(i).putInt(textHash).putLong(fp);
+    for (int s = 0; s < statsCount; ++s) pending.putInt(stats[offset+s]);
+  }
+
+  // appends the records added since the last flush to the file
+  public void flush() throws IOException
+  {
+    if (pending.position() == 0) return;
+
+    FileLock lock = channel.lock();
+    try {
+      long size = channel.size();
+      long end = HEADER_SIZE + ((size - HEADER_SIZE) / recordSize) * recordSize;
+      if (end < size) channel.truncate(end); // drop a partial record
+      pending.flip();
+      writeFully(channel, pending, end);
+      pending.clear();
+    } finally {
+      lock.release();
+    }
+  }
+
+  public void close() throws IOException
+  {
+    flush();
+    channel.close();
+  }
+
+  private int find(int i, long fp, int textHash)
+  {
+    long key = key(i,fp);
+    for (int slot = index.firstSlot(key); slot >= 0; slot = index.nextSlot(key,slot)) {
+      int r = index.valueAt(slot);
+      if (recSentence[r] == i && recFp[r] == fp && recHash[r] == textHash) return r;
+    }
+    return -1;
+  }
+
+  private void addToMemory(int i, long fp, int textHash, int[] stats, int offset)
+  {
+    if (numRecords == recSentence.length) {
+      int capacity = Math.max(1024, 2*numRecords);
+      recSentence = Arrays.copyOf(recSentence, capacity);
+      recHash = Arrays.copyOf(recHash, capacity);
+      recFp = Arrays.copyOf(recFp, capacity);
+      recStats = Arrays.copyOf(recStats, capacity*statsCount);
+    }
+    recSentence[numRecords] = i;
+    recHash[numRecords] = textHash;
+    recFp[numRecords] = fp;
+    System.arraycopy(stats, offset, recStats, numRecords*statsCount, statsCount);
+    index.add(key(i,fp), numRecords);
+    ++numRecords;
+  }
+
+  private static long key(int i, long fp)
+  {
+    return fp + i * 0x9e3779b97f4a7c15L;
+  }
+
+  // 64-bit digest of the metric (with its options), the references, and statsCount
+  private static long digest(String metricKey, String[][] refSentences, int statsCount)
+  {
+    long h = FingerprintSet.fingerprint(metricKey + " " + statsCount);
+    h = combine(h, refSentences.length);
+    for (int i = 0; i < refSentences.length; ++i) {
+      h = combine(h, refSentences[i].length);
+      for (int r = 0; r < refSentences[i].length; ++r) {
+        h = combine(h, FingerprintSet.fingerprint(refSentences[i][r]));
+      }
+    }
+    return h;
+  }
+
+  private static long combine(long h, long x)
+  {
+    h = (h ^ x) * 0x100000001b3L;
+    return h ^ (h >>> 29);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+  {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position);
+      if (n < 0) throw new EOFException("Unexpected end of stats cache file");
+      position += n;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+  {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+}
@@ -0,0 +1,54 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.io.*;
+
+// based on:
+// http://www.javaworld.com/javaworld/jw-12-2000/jw-1229-traps.html?page=4
+class StreamGobbler extends Thread {
+	InputStream istream;
+	boolean verbose;
+	
+	StreamGobbler(InputStream is, int p) {
+		istream = is;
+		verbose = (p != 0);
+	}
+	
+	public void run() {
+		try {
+			InputStreamReader isreader = new InputStreamReader(istream);
+			BufferedReader br = new BufferedReader(isreader);
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if (verbose) System.out.println(line);
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+}
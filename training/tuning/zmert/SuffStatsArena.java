@@ -0,0 +1,101 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+import java.io.*;
+
+public class SuffStatsArena
+{
+  /*
+     Sufficient statistics of the (merged) candidates of all the sentences,
+     in a single flat array with one row of statsCount ints per candidate:
+     the s'th statistic of the k'th candidate of the i'th sentence is
+
+       data[(start[i]+k)*statsCount + s]
+
+     The arena is filled once per iteration and then only read, so it can be
+     shared by all the IntermediateOptimizer threads.
+  */
+
+  private int numSentences;
+  private int statsCount;
+  private int[] data;
+  private int[] start;
+
+  // an arena for candCount[i] candidates for the i'th sentence, all stats 0
+  public SuffStatsArena(int[] candCount, int in_statsCount)
+  {
+    numSentences = candCount.length;
+    statsCount = in_statsCount;
+    start = new int[numSentences+1];
+    for (int i = 0; i < numSentences; ++i) {
+      start[i+1] = start[i] + candCount[i];
+    }
+    data = new int[start[numSentences]*statsCount];
+  }
+
+  // reads a merged stats text file: one line of statsCount ints per candidate,
+  // sentence after sentence, with candCount[i] lines for the i'th sentence
+  public static SuffStatsArena load(String fileName, int[] candCount, int statsCount)
+    throws IOException
+  {
+    SuffStatsArena arena = new SuffStatsArena(candCount, statsCount);
+    BufferedReader inFile = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "utf8"));
+    int numCands = arena.start[arena.numSentences];
+    for (int k = 0; k < numCands; ++k) {
+      String[] stats_str = inFile.readLine().split("\\s+");
+      for (int s = 0; s < statsCount; ++s) {
+        arena.data[k*statsCount+s] = Integer.parseInt(stats_str[s]);
+      }
+    }
+    inFile.close();
+    return arena;
+  }
+
+  public int get_statsCount() { return statsCount; }
+  public int get_numCands() { return start[numSentences]; }
+
+  public int candCount(int i) { return start[i+1] - start[i]; }
+
+  // position in get_data() of the first statistic of the k'th candidate of the i'th sentence
+  public int rowStart(int i, int k) { return (start[i]+k)*statsCount; }
+
+  // the underlying array; see above for its layout
+  public int[] get_data() { return data; }
+
+  // stores the stats of the k'th candidate of the i'th sentence in stats[0..statsCount-1]
+  public void get(int i, int k, int[] stats)
+  {
+    System.arraycopy(data, rowStart(i,k), stats, 0, statsCount);
+  }
+
+  public void set(int i, int k, int[] stats)
+  {
+    System.arraycopy(stats, 0, data, rowStart(i,k), statsCount);
+  }
+
+}
@@ -120,6 +120,12 @@ public class TER extends EvaluationMetric
   public double bestPossibleScore() { return 0.0; }
   public double worstPossibleScore() { return (+1.0 / 0.0); }
 
+  // suffStats(String[],int[]) runs tercom on fixed temp files
+  public boolean suffStatsThreadSafe() { return false; }
+
+  // tercom reads and writes files (batched by createSuffStatsFile)
+  protected boolean suffStatsNeedFiles() { return true; }
+
   public int[] suffStats(String cand_str, int i)
   {
     // this method should never be used when the metric is TER,
@@ -424,16 +430,17 @@ public class TER extends EvaluationMetric
 
   public double score(int[] stats)
   {
-    if (stats.length != suffStatsCount) {
-      System.out.println("Mismatch between stats.length and suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in TER.score(int[])");
+    if (stats.length < suffStatsCount) {
+      System.out.println("stats.length is less than suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in TER.score(int[])");
       System.exit(2);
     }
 
-    double sc = 0.0;
-
-    sc = stats[0]/(double)stats[1];
+    return score(stats,0,null);
+  }
 
-    return sc;
+  public double score(int[] stats, int offset, int[] scratch)
+  {
+    return stats[offset]/(double)stats[offset+1];
   }
 
   public void printDetailedScore_fromStats(int[] stats, boolean oneLiner)
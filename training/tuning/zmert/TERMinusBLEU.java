@@ -71,6 +71,10 @@ public class TERMinusBLEU extends EvaluationMetric
   public double bestPossibleScore() { return -1.0; }
   public double worstPossibleScore() { return (+1.0 / 0.0); }
 
+  // the TER part runs tercom on fixed temp files
+  public boolean suffStatsThreadSafe() { return myTER.suffStatsThreadSafe(); }
+  protected boolean suffStatsNeedFiles() { return myTER.suffStatsNeedFiles(); }
+
   public int[] suffStats(String cand_str, int i)
   {
     // this method should never be used when the metric is TER-BLEU,
@@ -154,24 +158,21 @@ public class TERMinusBLEU extends EvaluationMetric
 
   public double score(int[] stats)
   {
-    if (stats.length != suffStatsCount) {
-      System.out.println("Mismatch between stats.length and suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in TERMinusBLEU.score(int[])");
+    if (stats.length < suffStatsCount) {
+      System.out.println("stats.length is less than suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in TERMinusBLEU.score(int[])");
       System.exit(1);
     }
 
-    double sc = 0.0;
-
-    int[] stats_TER = new int[suffStatsCount_TER];
-    int[] stats_BLEU = new int[suffStatsCount_BLEU];
-    for (int s = 0; s < suffStatsCount_TER; ++s) { stats_TER[s] = stats[s]; }
-    for (int s = 0; s < suffStatsCount_BLEU; ++s) { stats_BLEU[s] = stats[s+suffStatsCount_TER]; }
-
-    double sc_T = myTER.score(stats_TER);
-    double sc_B = myBLEU.score(stats_BLEU);
+    return score(stats,0,null);
+  }
 
-    sc = sc_T - sc_B;
+  public double score(int[] stats, int offset, int[] scratch)
+  {
+    // the TER stats come first, then the BLEU stats
+    double sc_T = myTER.score(stats,offset,scratch);
+    double sc_B = myBLEU.score(stats,offset+suffStatsCount_TER,scratch);
 
-    return sc;
+    return sc_T - sc_B;
   }
 
   public void printDetailedScore_fromStats(int[] stats, boolean oneLiner)
@@ -0,0 +1,411 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.util.*;
+
+public class TercomEngine
+{
+  /*
+     In-process calculation of TER, following the algorithm of tercom 0.7.25
+     (with its default costs, i.e. 1 per insertion, deletion, substitution,
+     or shift):
+
+       (1) Tokens are lowercased (unless case sensitive), and the punctuation
+           characters . , ? : ; ! " ( ) are removed (unless punctuation is kept).
+       (2) The edit distance is calculated by a DP that is pruned to a beam of
+           beamWidth around the best cost of the previous column.
+       (3) Shifts are then applied greedily: every shift of a phrase (of up to
+           MAX_SHIFT_SIZE words, by at most maxShiftDist positions) that lines
+           it up with an identical reference phrase is considered, longest
+           phrases first, and the one that reduces the number of edits the most
+           is applied, until no shift helps.
+       (4) With several references, the number of edits is that of the
+           reference with the fewest edits (the first one, in case of a tie),
+           and the reference length is the average length of the references.
+
+     Shifts are considered in the same order as tercom considers them, and
+     ties are broken the same way, so the results should be the same as
+     tercom's.  That has not been checked against tercom itself yet (see
+     test/TercomCheck), so TER does not use the engine, and still runs tercom.
+     An engine has no mutable state, so one engine can be used by any number
+     of threads.
+  */
+
+  private final static int MAX_SHIFT_SIZE = 10; // tercom's default
+  private final static int INF = Integer.MAX_VALUE / 2;
+
+  private boolean caseSensitive;
+  private boolean withPunctuation;
+  private int beamWidth;
+  private int maxShiftDist;
+
+  public TercomEngine(boolean in_caseSensitive, boolean in_withPunctuation, int in_beamWidth, int in_maxShiftDist)
+  {
+    caseSensitive = in_caseSensitive;
+    withPunctuation = in_withPunctuation;
+    beamWidth = in_beamWidth;
+    maxShiftDist = in_maxShiftDist;
+  }
+
+  // the TER sufficient statistics of hyp against refs, as tercom reports them
+  // (truncated to ints): {number of edits, average reference length}
+  public int[] suffStats(String hyp, String[] refs)
+  {
+    HashMap<String,Integer> ids = new HashMap<String,Integer>();
+    int[] hypIds = tokenIds(hyp,ids);
+
+    int bestEdits = -1;
+    int totWords = 0;
+    for (int r = 0; r < refs.length; ++r) {
+      int[] refIds = tokenIds(refs[r],ids);
+      int edits = numEdits(hypIds,refIds);
+      if (bestEdits < 0 || edits < bestEdits) bestEdits = edits;
+      totWords += refIds.length;
+    }
+
+    int[] stats = new int[2];
+    stats[0] = bestEdits;
+    stats[1] = (int)(totWords / (double)refs.length);
+    return stats;
+  }
+
+  // the tokens of str (normalized as in (1) above), as ids assigned in ids
+  private int[] tokenIds(String str, HashMap<String,Integer> ids)
+  {
+    if (!caseSensitive) str = str.toLowerCase();
+    if (!withPunctuation) str = str.replaceAll("[\\.,\\?:;!\"\\(\\)]", "");
+    str = str.trim();
+    if (str.equals("")) return new int[0];
+
+    String[] tokens = str.split("\\s+");
+    int[] tokenIds = new int[tokens.length];
+    for (int t = 0; t < tokens.length; ++t) {
+      Integer id = ids.get(tokens[t]);
+      if (id == null) {
+        id = ids.size();
+        ids.put(tokens[t],id);
+      }
+      tokenIds[t] = id;
+    }
+    return tokenIds;
+  }
+
+  // the number of edits (including shifts) needed to turn hyp into ref
+  private int numEdits(int[] hyp, int[] ref)
+  {
+    EditDist dist = new EditDist(hyp.length, ref.length);
+
+    int[] cur = hyp;
+    int curEdits = dist.run(cur,ref);
+    int numShifts = 0;
+
+    while (true) {
+      int[] shifted = bestShift(cur,ref,dist,curEdits);
+      if (shifted == null) break;
+      ++numShifts;
+      cur = shifted;
+      curEdits = dist.run(cur,ref);
+    }
+
+    return curEdits + numShifts;
+  }
+
+  // applies the best shift to cur (whose alignment with ref is the current one in
+  // dist, with curEdits edits), or returns null if no shift reduces the edits
+  private int[] bestShift(int[] cur, int[] ref, EditDist dist, int curEdits)
+  {
+    int hypLen = cur.length;
+    int refLen = ref.length;
+
+    // which words are currently wrong, and which hyp position each ref word is aligned with
+    boolean[] herr = new boolean[hypLen];
+    boolean[] rerr = new boolean[refLen];
+    int[] ralign = new int[refLen];
+    char[] path = dist.path();
+    int hpos = -1, rpos = -1;
+    for (char sym : path) {
+      if (sym == ' ' || sym == 'S') {
+        ++hpos; ++rpos;
+        herr[hpos] = (sym == 'S');
+        rerr[rpos] = (sym == 'S');
+        ralign[rpos] = hpos;
+      } else if (sym == 'I') {
+        ++hpos;
+        herr[hpos] = true;
+      } else { // 'D'
+        ++rpos;
+        rerr[rpos] = true;
+        ralign[rpos] = hpos;
+      }
+    }
+
+    ArrayList<int[]>[] shifts = possibleShifts(cur,ref,herr,rerr,ralign);
+
+    int bestShiftCost = 0;
+    int bestEdits = curEdits;
+    int[] bestShifted = null;
+    EditDist shiftDist = new EditDist(hypLen, refLen);
+
+    for (int len = shifts.length - 1; len >= 0; --len) {
+      // consider shifts of len+1 words
+      int maxfix = 2 * (1 + len);
+      int curfix = curEdits - (bestShiftCost + bestEdits);
+      if (curfix > maxfix || (bestShiftCost != 0 && curfix == maxfix)) break;
+
+      for (int[] shift : shifts[len]) {
+        curfix = curEdits - (bestShiftCost + bestEdits);
+        if (curfix > maxfix || (bestShiftCost != 0 && curfix == maxfix)) break;
+
+        int[] shifted = performShift(cur,shift[0],shift[1],shift[3]);
+        int edits = shiftDist.run(shifted,ref);
+        int gain = (bestEdits + bestShiftCost) - (edits + 1);
+
+        if (gain > 0 || (bestShiftCost == 0 && gain == 0)) {
+          bestShiftCost = 1;
+          bestEdits = edits;
+          bestShifted = shifted;
+        }
+      }
+    }
+
+    return bestShifted;
+  }
+
+  // the shifts worth trying, by length-1: each is {start, end, moveto, newloc}, i.e.
+  // move cur[start..end] to after position newloc (to the front, if newloc is -1)
+  private ArrayList<int[]>[] possibleShifts(int[] cur, int[] ref, boolean[] herr, boolean[] rerr, int[] ralign)
+  {
+    @SuppressWarnings({"unchecked","rawtypes"})
+    ArrayList<int[]>[] shifts = new ArrayList[MAX_SHIFT_SIZE+1];
+    for (int len = 0; len <= MAX_SHIFT_SIZE; ++len) shifts[len] = new ArrayList<int[]>();
+    if (maxShiftDist <= 0) return shifts;
+
+    int hypLen = cur.length;
+    int refLen = ref.length;
+    int[] matches = new int[refLen]; // ref positions where cur[start..end] occurs
+    int[] nextMatches = new int[refLen];
+
+    for (int start = 0; start < hypLen; ++start) {
+      int numMatches = 0;
+      for (int p = 0; p < refLen; ++p) {
+        if (ref[p] == cur[start]) matches[numMatches++] = p;
+      }
+      if (numMatches == 0) continue;
+
+      boolean ok = false;
+      for (int m = 0; m < numMatches && !ok; ++m) {
+        int moveto = matches[m];
+        if (start != ralign[moveto]
+            && (ralign[moveto] - start) <= maxShiftDist
+            && (start - ralign[moveto] - 1) <= maxShiftDist) {
+          ok = true;
+        }
+      }
+      if (!ok) continue;
+
+      for (int end = start; ok && end < hypLen && end < start + MAX_SHIFT_SIZE; ++end) {
+        ok = false;
+        if (end > start) { // keep the matches that extend to cur[end]
+          int numNext = 0;
+          for (int m = 0; m < numMatches; ++m) {
+            int p = matches[m] + (end - start);
+            if (p < refLen && ref[p] == cur[end]) nextMatches[numNext++] = matches[m];
+          }
+          int[] temp = matches; matches = nextMatches; nextMatches = temp;
+          numMatches = numNext;
+        }
+        if (numMatches == 0) continue;
+
+        boolean anyHerr = false;
+        for (int i = start; i <= end && !anyHerr; ++i) {
+          if (herr[i]) anyHerr = true;
+        }
+        if (!anyHerr) {
+          ok = true;
+          continue;
+        }
+
+        for (int m = 0; m < numMatches; ++m) {
+          int moveto = matches[m];
+          if (!(ralign[moveto] != start
+                && (ralign[moveto] < start || ralign[moveto] > end)
+                && (ralign[moveto] - start) <= maxShiftDist
+                && (start - ralign[moveto]) <= maxShiftDist)) {
+            continue;
+          }
+          ok = true;
+
+          boolean anyRerr = false;
+          for (int i = 0; i <= end - start && !anyRerr; ++i) {
+            if (rerr[moveto+i]) anyRerr = true;
+          }
+          if (!anyRerr) continue;
+
+          for (int roff = -1; roff <= end - start; ++roff) {
+            if (roff == -1 && moveto == 0) {
+              shifts[end-start].add(new int[] {start, end, -1, -1});
+            } else if (moveto+roff >= 0
+                       && start != ralign[moveto+roff]
+                       && (roff == 0 || ralign[moveto+roff] != ralign[moveto])) {
+              shifts[end-start].add(new int[] {start, end, moveto+roff, ralign[moveto+roff]});
+            }
+          }
+        }
+      }
+    }
+
+    return shifts;
+  }
+
+  // words, with words[start..end] moved to after position newloc (to the front if newloc is -1)
+  private static int[] performShift(int[] words, int start, int end, int newloc)
+  {
+    int[] nwords = new int[words.length];
+    int c = 0;
+
+    if (newloc == -1) {
+      for (int i = start; i <= end; ++i) nwords[c++] = words[i];
+      for (int i = 0; i <= start-1; ++i) nwords[c++] = words[i];
+      for (int i = end+1; i < words.length; ++i) nwords[c++] = words[i];
+    } else if (newloc < start) {
+      for (int i = 0; i <= newloc; ++i) nwords[c++] = words[i];
+      for (int i = start; i <= end; ++i) nwords[c++] = words[i];
+      for (int i = newloc+1; i <= start-1; ++i) nwords[c++] = words[i];
+      for (int i = end+1; i < words.length; ++i) nwords[c++] = words[i];
+    } else if (newloc > end) {
+      for (int i = 0; i <= start-1; ++i) nwords[c++] = words[i];
+      for (int i = end+1; i <= newloc; ++i) nwords[c++] = words[i];
+      for (int i = start; i <= end; ++i) nwords[c++] = words[i];
+      for (int i = newloc+1; i < words.length; ++i) nwords[c++] = words[i];
+    } else { // moving inside itself
+      for (int i = 0; i <= start-1; ++i) nwords[c++] = words[i];
+      for (int i = end+1; i < words.length && i <= end + (newloc - start); ++i) nwords[c++] = words[i];
+      for (int i = start; i <= end; ++i) nwords[c++] = words[i];
+      for (int i = end + (newloc - start) + 1; i < words.length; ++i) nwords[c++] = words[i];
+    }
+
+    return nwords;
+  }
+
+  // beam-pruned edit distance DP (with tables reused across runs on same-length inputs)
+  private class EditDist
+  {
+    private int hypLen, refLen;
+    private int[] S;  // S[i*(hypLen+1)+j]: cost of aligning ref[0..i-1] with hyp[0..j-1]; -1 if not reached
+    private char[] P; // the last step of that alignment: ' ' (match), 'S', 'I', or 'D'
+
+    EditDist(int in_hypLen, int in_refLen)
+    {
+      hypLen = in_hypLen;
+      refLen = in_refLen;
+      S = new int[(refLen+1)*(hypLen+1)];
+      P = new char[(refLen+1)*(hypLen+1)];
+    }
+
+    // the number of edits (without shifts) needed to turn hyp into ref
+    int run(int[] hyp, int[] ref)
+    {
+      int W = hypLen + 1;
+      Arrays.fill(S,-1);
+      Arrays.fill(P,'0');
+      S[0] = 0;
+
+      int currentBest = INF, lastBest;
+      int currentFirstGood = 0, firstGood;
+      int curLastGood = 0, lastGood;
+
+      for (int j = 0; j <= hypLen; ++j) {
+        lastBest = currentBest;
+        currentBest = INF;
+        firstGood = currentFirstGood;
+        currentFirstGood = -1;
+        lastGood = curLastGood;
+        curLastGood = -1;
+
+        for (int i = firstGood; i <= refLen; ++i) {
+          if (i > lastGood) break;
+          int score = S[i*W+j];
+          if (score < 0) continue;
+          if (j < hypLen && score > lastBest + beamWidth) continue;
+
+          if (currentFirstGood == -1) currentFirstGood = i;
+
+          if (i < refLen && j < hypLen) {
+            int next = (i+1)*W + (j+1);
+            int cost = score + ((ref[i] == hyp[j]) ? 0 : 1);
+            if (S[next] < 0 || cost < S[next]) {
+              S[next] = cost;
+              P[next] = (ref[i] == hyp[j]) ? ' ' : 'S';
+            }
+            if (cost < currentBest) currentBest = cost;
+            if (curLastGood < i+1) curLastGood = i+1;
+          }
+
+          if (j < hypLen) {
+            int icost = score + 1;
+            if (S[i*W+j+1] < 0 || S[i*W+j+1] > icost) {
+              S[i*W+j+1] = icost;
+              P[i*W+j+1] = 'I';
+            }
+            if (icost < currentBest) currentBest = icost;
+            if (curLastGood < i) curLastGood = i;
+          }
+
+          if (i < refLen) {
+            int dcost = score + 1;
+            if (S[(i+1)*W+j] < 0 || S[(i+1)*W+j] > dcost) {
+              S[(i+1)*W+j] = dcost;
+              P[(i+1)*W+j] = 'D';
+              if (i >= lastGood) lastGood = i+1;
+            }
+          }
+        }
+      }
+
+      return S[refLen*W+hypLen];
+    }
+
+    // the alignment found by the last run, from the start of both strings
+    char[] path()
+    {
+      int W = hypLen + 1;
+      StringBuilder rev = new StringBuilder();
+      int i = refLen, j = hypLen;
+      while (i > 0 || j > 0) {
+        char sym = P[i*W+j];
+        rev.append(sym);
+        if (sym == ' ' || sym == 'S') { --i; --j; }
+        else if (sym == 'D') { --i; }
+        else { --j; } // 'I'
+      }
+      return rev.reverse().toString().toCharArray();
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.util.*;
+
+public class ThresholdBuffer
+{
+  /*
+     The thresholds of a parameter lambda_c, i.e. the values of lambda_c at
+     which the 1-best candidate of some sentence changes, kept in parallel
+     primitive arrays: at threshold(n), the 1-best of sentence(n) changes
+     from candidate oldK(n) to candidate newK(n).
+
+     Transitions are added in any order of threshold, but sentence by
+     sentence (i.e. in non-decreasing order of sentence).  sort() then orders
+     them by threshold (and, for the same threshold, by sentence).  If a
+     sentence has more than one transition at the same threshold (which
+     happens when two consecutive intersection points are so close to each
+     other as to have the same value), only the last one added is kept, so
+     that, for a k_a -> k_b transition followed by a k_b -> k_c one, the
+     1-best goes straight to k_c.
+
+     After sorting, an end threshold (with no transitions) can be added
+     with addEnd(), to mark the right end of the last interval.
+  */
+
+  private int size;
+  private double[] th;
+  private int[] sentence;
+  private int[] oldK;
+  private int[] newK;
+  private int numThresholds; // number of distinct thresholds (set by sort())
+
+  // work arrays of sort(), kept (and only grown) so that sorting a reused
+  // buffer allocates nothing; the spare_* arrays are swapped with the ones above
+  private double[] spare_th = new double[0];
+  private int[] spare_sentence = new int[0];
+  private int[] spare_oldK = new int[0];
+  private int[] spare_newK = new int[0];
+  private int[] sortOrder = new int[0];
+  private int[] sortBuffer = new int[0];
+
+  public ThresholdBuffer()
+  {
+    this(1024);
+  }
+
+  public ThresholdBuffer(int capacity)
+  {
+    capacity = Math.max(1,capacity);
+    th = new double[capacity];
+    sentence = new int[capacity];
+    oldK = new int[capacity];
+    newK = new int[capacity];
+    size = 0;
+    numThresholds = 0;
+  }
+
+  public void clear()
+  {
+    size = 0;
+    numThresholds = 0;
+  }
+
+  public void add(double ip, int i, int old_k, int new_k)
+  {
+    if (size == th.length) {
+      int capacity = 2*th.length;
+      th = Arrays.copyOf(th,capacity);
+      sentence = Arrays.copyOf(sentence,capacity);
+      oldK = Arrays.copyOf(oldK,capacity);
+      newK = Arrays.copyOf(newK,capacity);
+    }
+    th[size] = ip;
+    sentence[size] = i;
+    oldK[size] = old_k;
+    newK[size] = new_k;
+    ++size;
+  }
+
+  // marks the end of the last interval; has no transitions (sentence(n) is -1)
+  public void addEnd(double ip)
+  {
+    add(ip,-1,-1,-1);
+    ++numThresholds;
+  }
+
+  // sorts the transitions by threshold, keeping only the last transition
+  // added for a sentence at any given threshold
+  public void sort()
+  {
+    if (sortOrder.length < size) {
+      int capacity = Math.max(size,2*sortOrder.length);
+      sortOrder = new int[capacity];
+      sortBuffer = new int[capacity];
+    }
+    if (spare_th.length < size) {
+      int capacity = Math.max(size,2*spare_th.length);
+      spare_th = new double[capacity];
+      spare_sentence = new int[capacity];
+      spare_oldK = new int[capacity];
+      spare_newK = new int[capacity];
+    }
+
+    for (int n = 0; n < size; ++n) { sortOrder[n] = n; }
+    sortByThreshold(sortOrder,sortBuffer,0,size);
+      // stable, so transitions at the same threshold stay in sentence order
+
+    double[] new_th = spare_th;
+    int[] new_sentence = spare_sentence;
+    int[] new_oldK = spare_oldK;
+    int[] new_newK = spare_newK;
+
+    int newSize = 0;
+    numThresholds = 0;
+    for (int n = 0; n < size; ++n) {
+      int src = sortOrder[n];
+      if (newSize > 0 && Double.compare(new_th[newSize-1],th[src]) == 0) {
+        if (new_sentence[newSize-1] == sentence[src]) --newSize; // overwritten
+      } else {
+        ++numThresholds;
+      }
+      new_th[newSize] = th[src];
+      new_sentence[newSize] = sentence[src];
+      new_oldK[newSize] = oldK[src];
+      new_newK[newSize] = newK[src];
+      ++newSize;
+    }
+
+    spare_th = th;
+    spare_sentence = sentence;
+    spare_oldK = oldK;
+    spare_newK = newK;
+    th = new_th;
+    sentence = new_sentence;
+    oldK = new_oldK;
+    newK = new_newK;
+    size = newSize;
+  }
+
+  public int size() { return size; }
+  public int get_numThresholds() { return numThresholds; }
+  public boolean isEmpty() { return size == 0; }
+
+  public double threshold(int n) { return th[n]; }
+  public int sentence(int n) { return sentence[n]; }
+  public int oldK(int n) { return oldK[n]; }
+  public int newK(int n) { return newK[n]; }
+
+  public double firstThreshold() { return th[0]; }
+  public double lastThreshold() { return th[size-1]; }
+
+  // stable merge sort of order[from..to-1] by threshold
+  // (Double.compare, just like the keys of a TreeMap<Double,...>)
+  private void sortByThreshold(int[] order, int[] buffer, int from, int to)
+  {
+    if (to - from < 2) return;
+    int mid = (from + to) >>> 1;
+    sortByThreshold(order,buffer,from,mid);
+    sortByThreshold(order,buffer,mid,to);
+    if (Double.compare(th[order[mid-1]],th[order[mid]]) <= 0) return; // already in order
+
+    int p = from, q = mid, n = from;
+    while (p < mid && q < to) {
+      if (Double.compare(th[order[q]],th[order[p]]) < 0) buffer[n++] = order[q++];
+      else buffer[n++] = order[p++];
+    }
+    while (p < mid) { buffer[n++] = order[p++]; }
+    while (q < to) { buffer[n++] = order[q++]; }
+    System.arraycopy(buffer,from,order,from,to-from);
+  }
+
+}
@@ -0,0 +1,161 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import jdk.jfr.*;
+
+public class TuningEvents
+{
+  /*
+     Java Flight Recorder events for the main steps of a Z-MERT run, so that
+     a recording (e.g. java -XX:StartFlightRecording=filename=zmert.jfr ...)
+     shows which iteration, restart (j) and parameter (c) the time went to.
+
+     Each event is used as
+
+       TuningEvents.X event = new TuningEvents.X();
+       event.begin();
+       ...
+       event.record(...);
+
+     where record sets the fields and commits the event only if it is enabled
+     (shouldCommit()), so when nothing is recording, the events cost no more
+     than a few inlined checks (and the JIT removes the allocation).
+  */
+
+  @Name("zmert.DecoderRun")
+  @Label("Decoder Run")
+  @Category("Z-MERT")
+  @Description("A run of the decoder (or fake decoder) on all the sentences")
+  public static class DecoderRun extends Event
+  {
+    @Label("Iteration") public int iteration;
+    @Label("Candidates") public int candidates;
+    @Label("Mode") public String mode;
+
+    public void record(int in_iteration, int in_candidates, String in_mode)
+    {
+      if (!shouldCommit()) return;
+      iteration = in_iteration;
+      candidates = in_candidates;
+      mode = in_mode;
+      commit();
+    }
+  }
+
+  @Name("zmert.NbestIngestion")
+  @Label("N-best Ingestion")
+  @Category("Z-MERT")
+  @Description("Reading an n-best list into the temp files of an iteration")
+  public static class NbestIngestion extends Event
+  {
+    @Label("Iteration") public int iteration;
+    @Label("Candidates") public int candidates;
+
+    public void record(int in_iteration, int in_candidates)
+    {
+      if (!shouldCommit()) return;
+      iteration = in_iteration;
+      candidates = in_candidates;
+      commit();
+    }
+  }
+
+  @Name("zmert.SuffStatsBatch")
+  @Label("Sufficient Statistics Batch")
+  @Category("Z-MERT")
+  @Description("A createSuffStatsFile call, for the new candidates of an iteration")
+  public static class SuffStatsBatch extends Event
+  {
+    @Label("Iteration") public int iteration;
+    @Label("Candidates") public int candidates;
+    @Label("Metric") public String metric;
+
+    public void record(int in_iteration, int in_candidates, String in_metric)
+    {
+      if (!shouldCommit()) return;
+      iteration = in_iteration;
+      candidates = in_candidates;
+      metric = in_metric;
+      commit();
+    }
+  }
+
+  @Name("zmert.BestParamToChange")
+  @Label("Best Parameter Search")
+  @Category("Z-MERT")
+  @Description("One step of an optimization restart: a line search along every parameter")
+  @StackTrace(false)
+  public static class BestParamToChange extends Event
+  {
+    @Label("Iteration") public int iteration;
+    @Label("Restart") public int j;
+    @Label("Chosen Parameter") @Description("0 if no parameter improves the score")
+    public int c;
+    @Label("Candidates") public int candidates;
+    @Label("Thresholds") @Description("Total over all the parameters")
+    public int thresholds;
+
+    public void record(int in_iteration, int in_j, int in_c, int in_candidates, int in_thresholds)
+    {
+      if (!shouldCommit()) return;
+      iteration = in_iteration;
+      j = in_j;
+      c = in_c;
+      candidates = in_candidates;
+      thresholds = in_thresholds;
+      commit();
+    }
+  }
+
+  @Name("zmert.LineSearch")
+  @Label("Line Search")
+  @Category("Z-MERT")
+  @Description("A line_opt call: the best value of one parameter, given its thresholds")
+  @StackTrace(false)
+  public static class LineSearch extends Event
+  {
+    @Label("Iteration") public int iteration;
+    @Label("Restart") public int j;
+    @Label("Parameter") public int c;
+    @Label("Candidates") public int candidates;
+    @Label("Thresholds") public int thresholds;
+
+    public void record(int in_iteration, int in_j, int in_c, int in_candidates, int in_thresholds)
+    {
+      if (!shouldCommit()) return;
+      iteration = in_iteration;
+      j = in_j;
+      c = in_c;
+      candidates = in_candidates;
+      thresholds = in_thresholds;
+      commit();
+    }
+  }
+
+}
@@ -0,0 +1,201 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.util.*;
+
+public class Vocabulary
+{
+  /*
+     Maps tokens to int ids 1..size(); id 0 stands for any token that is not
+     in the vocabulary.  Sentences are tokenized exactly like
+     sentence.split("\\s+") would tokenize them, but lookups take a range of
+     the sentence, so looking up the ids of a sentence's tokens creates no
+     Strings at all.
+
+     Tokens are added (e.g. from the reference translations) before any
+     lookups are done; once filled, a vocabulary can be shared by any number
+     of threads doing lookups.
+  */
+
+  private String[] tokens; // tokens[id], for id >= 1
+  private int[] table;     // open addressing (linear probing); 0 marks an empty slot
+  private int size;
+  private int mask;
+
+  public Vocabulary(int expectedSize)
+  {
+    int capacity = 16;
+    while (capacity < 2*expectedSize) capacity <<= 1;
+    table = new int[capacity];
+    mask = capacity - 1;
+    tokens = new String[1+expectedSize];
+    size = 0;
+  }
+
+  public int size() { return size; }
+
+  public String token(int id) { return tokens[id]; }
+
+  // id of token, which is added to the vocabulary if it is not there yet
+  public int add(String token)
+  {
+    int id = id(token,0,token.length());
+    if (id > 0) return id;
+
+    if (2*(size+1) > table.length) rehash(2*table.length);
+    ++size;
+    if (size >= tokens.length) tokens = Arrays.copyOf(tokens, 2*tokens.length);
+    tokens[size] = token;
+
+    int slot = hash(token,0,token.length()) & mask;
+    while (table[slot] != 0) slot = (slot + 1) & mask;
+    table[slot] = size;
+
+    return size;
+  }
+
+  // id of the token str.substring(from,to), or 0 if it is not in the vocabulary
+  public int id(String str, int from, int to)
+  {
+    int len = to - from;
+    int slot = hash(str,from,to) & mask;
+    while (table[slot] != 0) {
+      String token = tokens[table[slot]];
+      if (token.length() == len && token.regionMatches(0,str,from,len)) return table[slot];
+      slot = (slot + 1) & mask;
+    }
+    return 0;
+  }
+
+  // ids of the tokens of sentence, adding new tokens to the vocabulary
+  public int[] addAll(String sentence)
+  {
+    int[] bounds = tokenBounds(sentence);
+    int[] ids = new int[bounds.length/2];
+    for (int t = 0; t < ids.length; ++t) {
+      ids[t] = add(sentence.substring(bounds[2*t],bounds[2*t+1]));
+    }
+    return ids;
+  }
+
+  // Puts the ids of the tokens of sentence (0 for tokens not in the
+  // vocabulary) in ids[0..], and returns how many tokens there are.  ids
+  // needs room for maxTokens(sentence.length()) ids, so that a caller can
+  // reuse one array for many sentences.
+  public int lookup(String sentence, int[] ids)
+  {
+    int len = sentence.length();
+    int t = 0;
+    int p = 0;
+    while (p < len && isSpace(sentence.charAt(p))) ++p;
+    if (len == 0 || (p > 0 && p < len)) {
+      ids[t++] = id(sentence,0,0); // the empty first token split would return
+    }
+
+    while (p < len) {
+      int from = p;
+      while (p < len && !isSpace(sentence.charAt(p))) ++p;
+      ids[t++] = id(sentence,from,p);
+      while (p < len && isSpace(sentence.charAt(p))) ++p;
+    }
+
+    return t;
+  }
+
+  // an upper bound on the number of tokens of a sentence of length chars
+  // (every token but an empty first one takes a char, and all but the first
+  // one follow a space)
+  public static int maxTokens(int length)
+  {
+    return length/2 + 1;
+  }
+
+  // [from,to) ranges of the tokens that sentence.split("\\s+") would return,
+  // as {from_0,to_0,from_1,to_1,...}.  (Like split, an empty first token is
+  // returned if the sentence starts with whitespace, but not if the sentence
+  // is nothing but whitespace.)
+  public static int[] tokenBounds(String sentence)
+  {
+    int len = sentence.length();
+    int count = 0;
+    for (int p = 0; p < len; ++p) {
+      if (!isSpace(sentence.charAt(p)) && (p == 0 || isSpace(sentence.charAt(p-1)))) ++count;
+    }
+
+    boolean leadingEmpty = (count > 0 && isSpace(sentence.charAt(0)));
+    if (len == 0) count = 1; // "".split("\\s+") is {""}
+
+    int[] bounds = new int[2*(count + (leadingEmpty ? 1 : 0))];
+    int t = 0;
+    if (leadingEmpty) { t = 2; } // i.e. bounds[0] = bounds[1] = 0
+
+    int p = 0;
+    while (p < len) {
+      while (p < len && isSpace(sentence.charAt(p))) ++p;
+      if (p == len) break;
+      bounds[t++] = p;
+      while (p < len && !isSpace(sentence.charAt(p))) ++p;
+      bounds[t++] = p;
+    }
+
+    return bounds;
+  }
+
+  // the characters matched by \s in a regular expression
+  private static boolean isSpace(char ch)
+  {
+    return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+  }
+
+  private static int hash(String str, int from, int to)
+  {
+    int h = 0x811c9dc5;
+    for (int p = from; p < to; ++p) {
+      h ^= str.charAt(p);
+      h *= 0x01000193;
+    }
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  private void rehash(int capacity)
+  {
+    table = new int[capacity];
+    mask = capacity - 1;
+    for (int id = 1; id <= size; ++id) {
+      String token = tokens[id];
+      int slot = hash(token,0,token.length()) & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = id;
+    }
+  }
+
+}
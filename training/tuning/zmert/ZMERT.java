@@ -32,12 +32,14 @@ public class ZMERT
 {
   public static void main(String[] args) throws Exception
   {
-    boolean external = false; // should each MERT iteration be launched externally?
+    boolean external = false; // should the MERT iterations be launched externally?
+    boolean warmWorker = false; // if so, should they all be run by one worker JVM?
 
     if (args.length == 1) {
       if (args[0].equals("-h")) { printZMERTUsage(args.length,true); System.exit(2); }
       else { external = false; }
     } else if (args.length == 3) { external = true; }
+    else if (args.length == 4 && args[2].equals("-warmWorker")) { external = true; warmWorker = true; }
     else { printZMERTUsage(args.length,false); System.exit(1); }
 
     if (!external) {
@@ -46,25 +48,34 @@ public class ZMERT
       myMert.finish();
     } else {
       int maxMem = Integer.parseInt(args[1]);
-      String configFileName = args[2];
+      String configFileName = args[args.length-1];
       String stateFileName = "ZMERT.temp.state";
       String cp = System.getProperty("java.class.path");
-      boolean done = false;
-      int iteration = 0;
-      while (!done) {
-        ++iteration;
-        Runtime rt = Runtime.getRuntime();
-        Process p = rt.exec("java -Xmx" + maxMem + "m -cp " + cp + " MertCore " + configFileName + " " + stateFileName + " " + iteration);
-        BufferedReader br_i = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        BufferedReader br_e = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-        String dummy_line = null;
-        while ((dummy_line = br_i.readLine()) != null) { System.out.println(dummy_line); }
-        while ((dummy_line = br_e.readLine()) != null) { System.out.println(dummy_line); }
-        int status = p.waitFor();
 
-        if (status == 90) { done = true; }
-        else if (status == 91) { done = false; }
-        else { System.out.println("Z-MERT exiting prematurely (MertCore returned " + status + ")..."); break; }
+      if (warmWorker) {
+        // all the iterations are run by a single worker process, which releases
+        // the memory of each iteration before the decoder is launched again; the
+        // heap free ratios let the JVM return that memory to the OS
+        int status = runMertCore(new ProcessBuilder("java", "-Xmx" + maxMem + "m",
+                                   "-XX:MinHeapFreeRatio=10", "-XX:MaxHeapFreeRatio=30",
+                                   "-cp", cp, "MertCore", configFileName, stateFileName, "worker"));
+        if (status != 90) {
+          System.out.println("Z-MERT exiting prematurely (MertCore returned " + status + ")...");
+        }
+      } else {
+        // each iteration is run in its own process, which gives all its memory
+        // back when it exits (the state is passed on in the state file)
+        boolean done = false;
+        int iteration = 0;
+        while (!done) {
+          ++iteration;
+          int status = runMertCore(new ProcessBuilder("java", "-Xmx" + maxMem + "m",
+                                     "-cp", cp, "MertCore", configFileName, stateFileName, "" + iteration));
+
+          if (status == 90) { done = true; }
+          else if (status == 91) { done = false; }
+          else { System.out.println("Z-MERT exiting prematurely (MertCore returned " + status + ")..."); break; }
+        }
       }
     }
 
@@ -72,31 +83,50 @@ public class ZMERT
 
   } // main(String[] args)
 
+  // launches a MertCore process, prints its output (and error) as it is
+  // produced, and returns its exit value
+  private static int runMertCore(ProcessBuilder pb) throws Exception
+  {
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+    BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    String dummy_line = null;
+    while ((dummy_line = br.readLine()) != null) { System.out.println(dummy_line); }
+    return p.waitFor();
+  }
+
   public static void printZMERTUsage(int argsLen, boolean detailed)
   {
     if (!detailed) {
       println("Oops, you provided " + argsLen + " args!");
       println("");
       println("Usage:");
-      println("           ZMERT -maxMem maxMemoryInMB MERT_configFile");
+      println("           ZMERT -maxMem maxMemoryInMB [-warmWorker] MERT_configFile");
       println("");
       println("Where -maxMem specifies the maximum amount of memory (in MB) Z-MERT is");
-      println("allowed to use when performing its calculations (no memroy is needed while");
-      println("the decoder is running),");
+      println("allowed to use when performing its calculations.  Each iteration is run");
+      println("in its own JVM, which gives all of its memory back before the decoder is");
+      println("launched again (with -warmWorker, the iterations are all run in a single");
+      println("JVM instead, which saves the JVM startups and -inMemory 1 can be used,");
+      println("but only tries to give the memory back, as the garbage collector allows),");
       println("and the config file contains any subset of Z-MERT's 20-some parameters,");
       println("one per line.  Run   ZMERT -h   for more details on those parameters.");
     } else {
       println("Usage:");
-      println("           ZMERT -maxMem maxMemoryInMB MERT_configFile");
+      println("           ZMERT -maxMem maxMemoryInMB [-warmWorker] MERT_configFile");
       println("");
       println("Where -maxMem specifies the maximum amount of memory (in MB) Z-MERT is");
-      println("allowed to use when performing its calculations (no memroy is needed while");
-      println("the decoder is running),");
+      println("allowed to use when performing its calculations.  Each iteration is run");
+      println("in its own JVM, which gives all of its memory back before the decoder is");
+      println("launched again (with -warmWorker, the iterations are all run in a single");
+      println("JVM instead, which saves the JVM startups and -inMemory 1 can be used,");
+      println("but only tries to give the memory back, as the garbage collector allows),");
       println("and the config file contains any subset of Z-MERT's 20-some parameters,");
       println("one per line.  Those parameters, and their default values, are:");
       println("");
       println("Relevant files:");
       println("  -dir dirPrefix: working directory\n    [[default: null string (i.e. they are in the current directory)]]");
+      println("  -s sourceFile: source sentences of the MERT dataset (needed for -shards)\n    [[default: null string (i.e. no such file)]]");
       println("  -r refFile: target sentences (reference translations) of the MERT dataset\n    [[default: reference.txt]]");
       println("  -rps refsPerSen: number of reference translations per sentence\n    [[default: 1]]");
       println("  -txtNrm textNormMethod: how should text be normalized?\n       (0) don't normalize text,\n    or (1) \"NIST-style\", and also rejoin 're, *'s, n't, etc,\n    or (2) apply 1 and also rejoin dashes between letters,\n    or (3) apply 1 and also drop non-ASCII characters,\n    or (4) apply 1+2+3\n    [[default: 1]]");
@@ -111,9 +141,15 @@ public class ZMERT
       println("  -minIt minMERTIts: number of iterations before considering an early exit\n    [[default: 5]]");
       println("  -stopIt stopMinIts: some early stopping criterion must be satisfied in\n    stopMinIts *consecutive* iterations before an early exit\n    [[default: 3]]");
       println("  -stopSig sigValue: early MERT exit if no weight changes by more than sigValue\n    [[default: -1 (i.e. this criterion is never investigated)]]");
-      println("  -thrCnt threadCount: number of threads to run in parallel when optimizing\n    [[default: 1]]");
+      println("  -thrCnt threadCount: number of threads to run in parallel when optimizing\n    and when calculating sufficient statistics\n    [[default: 1]]");
+      println("  -thrParams paramThreadCount: number of threads (shared by all optimizing\n    threads) investigating the parameters of a single optimization in parallel\n    [[default: 1 (i.e. parameters are investigated one after the other)]]");
       println("  -save saveInter: save intermediate cfg files (1) or decoder outputs (2)\n    or both (3) or neither (0)\n    [[default: 3]]");
-      println("  -compress compressFiles: should Z-MERT compress the files it produces (1)\n    or not (0)\n    [[default: 0]]");
+      println("  -compress compressFiles: should Z-MERT compress the files it produces (1)\n    or not (0; features and statistics are then kept in binary, memory-mapped\n    files)\n    [[default: 0]]");
+      println("  -fpVerify verifyFingerprints: when deciding whether a candidate is new,\n    also compare candidates with equal 64-bit fingerprints as strings (1)\n    or rely on the fingerprints alone (0); likewise for BLEU's reference\n    n-gram hashes\n    [[default: 0]]");
+      println("  -inMemory inMemory: keep the candidate pool, the candidates of the current\n    iteration and their statistics in memory (1), or in temp files (0); with 1,\n    no temp files are written (not used with -compress 1; with -maxMem, needs\n    -warmWorker)\n    [[default: 0]]");
+      println("  -ssCache cacheDir: directory of a persistent cache of sufficient statistics,\n    shared across runs (and safe for concurrent runs on one machine); stats of\n    candidates found there are not recalculated (not used with -compress 1)\n    [[default: no cache]]");
+      println("  -phaseLog fileName: file to which the wall time, CPU time, candidates/sec, and\n    bytes read and written of each phase of an iteration are appended, as one\n    JSON line per iteration\n    [[default: none]]");
+      println("  -envelope envelopeMethod: how thresholds are extracted from the candidates\n       (1) scan all candidates at each intersection point (O(K^2)),\n    or (2) sort candidates by slope and sweep the upper envelope (O(K log K)),\n    or (3) do both and warn if they disagree\n    [[default: 2]]");
       println("  -ipi initsPerIt: number of intermediate initial points per iteration\n    [[default: 20]]");
       println("  -opi oncePerIt: modify a parameter only once per iteration (1) or not (0)\n    [[default: 0]]");
       println("  -rand randInit: choose initial point randomly (1) or from paramsFile (0)\n    [[default: 0]]");
@@ -125,6 +161,9 @@ public class ZMERT
       println("  -passIt passIterationToDecoder: should iteration number be passed\n    to command file (1) or not (0)\n    [[default: 0]]");
       println("  -decOut decoderOutFile: name of the output file produced by the decoder\n    [[default: output.nbest]]");
       println("  -decExit validExit: value returned by decoder to indicate success\n    [[default: 0]]");
+      println("  -decStream mode: how the decoder's output is read: 0 (from decOut, once the decoder\n    is done), 1 (from decOut, as the decoder writes it), or 2 (from the decoder's\n    standard output, as it is produced; also copied to decOut)\n    [[default: 0]]");
+      println("  -decSession decSession: launch the decoder once and keep it alive, sending it\n    lambda[] and reading its n-best list over its standard input and output\n    (1), or launch it in every iteration (0); see DecoderSession.java\n    [[default: 0]]");
+      println("  -shards numShards: number of decoder processes to run in parallel, each on\n    a contiguous range of the source sentences; each is run as: commandFile\n    [iteration] srcShardFile outShardFile, and numbers its sentences from 0\n    [[default: 1]]");
       println("  -dcfg decConfigFile: name of decoder config file\n    [[default: dec_cfg.txt]]");
       println("  -N N: size of N-best list (per sentence) generated in each MERT iteration\n    [[default: 100]]");
       println("");
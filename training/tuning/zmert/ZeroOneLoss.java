@@ -74,12 +74,17 @@ public class ZeroOneLoss extends EvaluationMetric
 
   public double score(int[] stats)
   {
-    if (stats.length != suffStatsCount) {
-      System.out.println("Mismatch between stats.length and suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in ZeroOneLoss.score(int[])");
+    if (stats.length < suffStatsCount) {
+      System.out.println("stats.length is less than suffStatsCount (" + stats.length + " vs. " + suffStatsCount + ") in ZeroOneLoss.score(int[])");
       System.exit(1);
     }
 
-    return 1.0 - (stats[0]/(double)stats[1]);
+    return score(stats,0,null);
+  }
+
+  public double score(int[] stats, int offset, int[] scratch)
+  {
+    return 1.0 - (stats[offset]/(double)stats[offset+1]);
   }
 
   public void printDetailedScore_fromStats(int[] stats, boolean oneLiner)
@@ -0,0 +1,205 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.util.*;
+
+public class SyntheticData
+{
+  /*
+     Reproducible synthetic tuning data for the benchmarks: references,
+     n-best lists and feature values, all drawn from a Random seeded with
+     the given seed, so the same parameters always give the same data.
+
+     Words are "w0", "w1", ... drawn from a Zipf-like distribution (with a
+     few punctuation tokens and function words mixed in, so that text
+     normalization has something to do), references are 10-40 words long,
+     and each candidate is a noisy copy of the sentence's first reference
+     (substituted, deleted, inserted and swapped words), so that candidates
+     share realistic amounts of n-grams with the references.  Feature values
+     are Gaussian, shifted by the candidate's amount of noise, so that the
+     line search finds a useful signal.
+  */
+
+  private final static String[] SPECIAL = { "the", "a", "of", ",", ".", "\"", "i'm", "3.5", "(", ")" };
+
+  public final int numSentences;
+  public final int nbestSize;
+  public final int numFeats;
+  public final int refsPerSen;
+  public final long seed;
+
+  public final String[][] refs;   // refs[i][r]
+  public final String[][] cands;  // cands[i][k]
+  public final double[] feats;    // feature c (0-indexed) of cands[i][k] is feats[(i*nbestSize+k)*numFeats+c]
+
+  public SyntheticData(int in_numSentences, int in_nbestSize, int in_numFeats, int in_refsPerSen, long in_seed)
+  {
+    numSentences = in_numSentences;
+    nbestSize = in_nbestSize;
+    numFeats = in_numFeats;
+    refsPerSen = in_refsPerSen;
+    seed = in_seed;
+
+    Random rand = new Random(seed);
+    int vocabSize = 2000;
+
+    refs = new String[numSentences][refsPerSen];
+    cands = new String[numSentences][nbestSize];
+    feats = new double[numSentences*nbestSize*numFeats];
+
+    double[] featShift = new double[numFeats];
+    for (int c = 0; c < numFeats; ++c) featShift[c] = rand.nextGaussian();
+
+    for (int i = 0; i < numSentences; ++i) {
+      String[] ref0 = randomSentence(rand, vocabSize, 10 + rand.nextInt(31));
+      refs[i][0] = join(ref0);
+      for (int r = 1; r < refsPerSen; ++r) {
+        refs[i][r] = join(noisyCopy(rand, ref0, vocabSize, 0.2));
+      }
+
+      for (int k = 0; k < nbestSize; ++k) {
+        double noise = 0.05 + 0.45 * rand.nextDouble();
+        cands[i][k] = join(noisyCopy(rand, ref0, vocabSize, noise));
+        int row = (i*nbestSize+k)*numFeats;
+        for (int c = 0; c < numFeats; ++c) {
+          feats[row+c] = rand.nextGaussian() - featShift[c]*noise;
+        }
+      }
+    }
+  }
+
+  // the k'th candidate of the i'th sentence as a line of an n-best file
+  public String nbestLine(int i, int k)
+  {
+    StringBuilder line = new StringBuilder();
+    line.append(i).append(" ||| ").append(cands[i][k]).append(" |||");
+    int row = (i*nbestSize+k)*numFeats;
+    for (int c = 0; c < numFeats; ++c) {
+      line.append(' ').append(String.format(Locale.ROOT, "%.4f", feats[row+c]));
+    }
+    return line.toString();
+  }
+
+  // the k'th candidate of the i'th sentence in the format Monoses.suffStats expects:
+  // id, direction, translation, LM score, and the candidate whose LM score it is
+  public String monosesCandidate(int i, int k)
+  {
+    int row = (i*nbestSize+k)*numFeats;
+    return "-\t" + (k % 2) + "\t" + cands[i][k] + "\t" + String.format(Locale.ROOT, "%.4f", -20 + feats[row])
+         + "\t" + ((k % 3 == 0) ? "-" : cands[i][k]);
+  }
+
+  // writes the references (refsPerSen consecutive lines per sentence)
+  public void writeRefs(String fileName) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf8"));
+    for (int i = 0; i < numSentences; ++i) {
+      for (int r = 0; r < refsPerSen; ++r) out.println(refs[i][r]);
+    }
+    out.close();
+  }
+
+  public void writeNbest(String fileName) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf8"));
+    for (int i = 0; i < numSentences; ++i) {
+      for (int k = 0; k < nbestSize; ++k) out.println(nbestLine(i,k));
+    }
+    out.close();
+  }
+
+  // writes a Z-MERT parameter file and decoder config file for the features F0, F1, ...
+  public void writeParams(String paramsFileName, String decoderConfigFileName) throws IOException
+  {
+    writeParams(numFeats, paramsFileName, decoderConfigFileName);
+  }
+
+  public static void writeParams(int numFeats, String paramsFileName, String decoderConfigFileName)
+    throws IOException
+  {
+    PrintWriter params = new PrintWriter(paramsFileName);
+    PrintWriter dcfg = new PrintWriter(decoderConfigFileName);
+    for (int c = 0; c < numFeats; ++c) {
+      params.println("F" + c + " ||| " + (c == 0 ? "1.0" : "0.1") + " Opt -Inf +Inf -1 +1");
+      dcfg.println("F" + c + " " + (c == 0 ? "1.0" : "0.1"));
+    }
+    params.println("normalization = none");
+    params.close();
+    dcfg.close();
+  }
+
+  // (the following are package-private for SyntheticTuningSet)
+
+  static String[] randomSentence(Random rand, int vocabSize, int length)
+  {
+    String[] words = new String[length];
+    for (int w = 0; w < length; ++w) words[w] = randomWord(rand, vocabSize);
+    return words;
+  }
+
+  static String randomWord(Random rand, int vocabSize)
+  {
+    if (rand.nextInt(5) == 0) return SPECIAL[rand.nextInt(SPECIAL.length)];
+    // roughly Zipfian: small ids are much more frequent
+    int id = (int)Math.floor(Math.pow(vocabSize, rand.nextDouble())) - 1;
+    return "w" + id;
+  }
+
+  static String[] noisyCopy(Random rand, String[] words, int vocabSize, double noise)
+  {
+    ArrayList<String> copy = new ArrayList<String>(words.length + 4);
+    for (String word : words) {
+      double x = rand.nextDouble();
+      if (x < noise / 3) {
+        copy.add(randomWord(rand, vocabSize));  // substitution
+      } else if (x < 2 * noise / 3) {
+        continue;                               // deletion
+      } else {
+        copy.add(word);
+        if (x > 1 - noise / 3) copy.add(randomWord(rand, vocabSize)); // insertion
+      }
+    }
+    for (int p = 0; p + 1 < copy.size(); ++p) {
+      if (rand.nextDouble() < noise / 4) Collections.swap(copy, p, p+1);
+    }
+    return copy.toArray(new String[copy.size()]);
+  }
+
+  static String join(String[] words)
+  {
+    StringBuilder str = new StringBuilder();
+    for (int w = 0; w < words.length; ++w) {
+      if (w > 0) str.append(' ');
+      str.append(words[w]);
+    }
+    return str.toString();
+  }
+
+}
@@ -0,0 +1,191 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.util.*;
+
+public class SyntheticTuningSet
+{
+  /*
+     A synthetic dev set for complete tuning runs with the fake decoder (-fake):
+     source sentences, references, and an n-best file for each iteration.
+     Sentences and candidates look like those of SyntheticData, but nothing is
+     kept in memory: each sentence, and each candidate of a sentence, is
+     generated from its own seed (derived from the set's seed) whenever it is
+     written, so the files can be made as large as the disk allows, and the
+     same parameters always give the same files.
+
+     The candidates of a sentence are numbered, and the text and feature
+     values of a candidate depend only on its number, so a candidate that is
+     produced again in a later iteration is an exact repeat, as with a real
+     decoder whose n-best lists overlap from one iteration to the next.  In
+     iteration 1, the N candidates are new; in every later iteration, each
+     candidate is, with probability overlap, one of those of the earlier
+     iterations (picked uniformly), and otherwise a new one.  An overlap of
+     1 thus makes Z-MERT stop after the first iteration (no new candidates).
+  */
+
+  public final int numSentences;
+  public final int nbestSize;
+  public final int numFeats;
+  public final int refsPerSen;
+  public final int vocabSize;
+  public final double overlap;
+  public final long seed;
+
+  private double[] featShift;
+
+  public SyntheticTuningSet(
+      int in_numSentences, int in_nbestSize, int in_numFeats, int in_refsPerSen,
+      int in_vocabSize, double in_overlap, long in_seed)
+  {
+    numSentences = in_numSentences;
+    nbestSize = in_nbestSize;
+    numFeats = in_numFeats;
+    refsPerSen = in_refsPerSen;
+    vocabSize = in_vocabSize;
+    overlap = in_overlap;
+    seed = in_seed;
+
+    Random rand = new Random(seed);
+    featShift = new double[numFeats];
+    for (int c = 0; c < numFeats; ++c) featShift[c] = rand.nextGaussian();
+  }
+
+  // the first reference of the i'th sentence, which its source and candidates are derived from
+  private String[] ref0(int i)
+  {
+    Random rand = new Random(mix(seed, i, -1));
+    return SyntheticData.randomSentence(rand, vocabSize, 10 + rand.nextInt(31));
+  }
+
+  // the source of the i'th sentence: a noisy copy of its first reference, in
+  // a "source language" whose words are s0, s1, ... instead of w0, w1, ...
+  public String source(int i)
+  {
+    String[] ref0 = ref0(i);
+    String[] words = SyntheticData.noisyCopy(new Random(mix(seed, i, -2)), ref0, vocabSize, 0.3);
+    for (int w = 0; w < words.length; ++w) {
+      if (words[w].startsWith("w")) words[w] = "s" + words[w].substring(1);
+    }
+    return SyntheticData.join(words);
+  }
+
+  public String[] refs(int i)
+  {
+    String[] ref0 = ref0(i);
+    Random rand = new Random(mix(seed, i, -3));
+    String[] refs = new String[refsPerSen];
+    refs[0] = SyntheticData.join(ref0);
+    for (int r = 1; r < refsPerSen; ++r) {
+      refs[r] = SyntheticData.join(SyntheticData.noisyCopy(rand, ref0, vocabSize, 0.2));
+    }
+    return refs;
+  }
+
+  // numbers of the candidates of the i'th sentence in the given iteration (1-indexed)
+  public int[] candidateIds(int i, int iteration)
+  {
+    Random rand = new Random(mix(seed, i, -3-iteration));
+    int numEarlier = (iteration-1)*nbestSize;
+    int[] ids = new int[nbestSize];
+    for (int k = 0; k < nbestSize; ++k) {
+      if (numEarlier > 0 && rand.nextDouble() < overlap) {
+        ids[k] = rand.nextInt(numEarlier);
+      } else {
+        ids[k] = numEarlier + k;
+      }
+    }
+    return ids;
+  }
+
+  // the candidate of the i'th sentence numbered id, as a line of an n-best file
+  public String nbestLine(int i, String[] ref0, int id)
+  {
+    Random rand = new Random(mix(seed, i, id));
+    double noise = 0.05 + 0.45 * rand.nextDouble();
+    StringBuilder line = new StringBuilder();
+    line.append(i).append(" ||| ");
+    line.append(SyntheticData.join(SyntheticData.noisyCopy(rand, ref0, vocabSize, noise)));
+    line.append(" |||");
+    for (int c = 0; c < numFeats; ++c) {
+      line.append(' ').append(String.format(Locale.ROOT, "%.4f", rand.nextGaussian() - featShift[c]*noise));
+    }
+    return line.toString();
+  }
+
+  public void writeSource(String fileName) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf8")));
+    for (int i = 0; i < numSentences; ++i) out.println(source(i));
+    out.close();
+  }
+
+  // writes the references (refsPerSen consecutive lines per sentence)
+  public void writeRefs(String fileName) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf8")));
+    for (int i = 0; i < numSentences; ++i) {
+      for (String ref : refs(i)) out.println(ref);
+    }
+    out.close();
+  }
+
+  // writes the n-best list of the given iteration (1-indexed)
+  public void writeNbest(String fileName, int iteration) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf8")));
+    for (int i = 0; i < numSentences; ++i) {
+      String[] ref0 = ref0(i);
+      for (int id : candidateIds(i, iteration)) out.println(nbestLine(i, ref0, id));
+    }
+    out.close();
+  }
+
+  public void writeParams(String paramsFileName, String decoderConfigFileName) throws IOException
+  {
+    SyntheticData.writeParams(numFeats, paramsFileName, decoderConfigFileName);
+  }
+
+  // a seed for item b of sentence a (SplitMix64's finalizer, so nearby
+  // arguments give unrelated seeds)
+  private static long mix(long seed, long a, long b)
+  {
+    long h = seed;
+    h = h * 0x9e3779b97f4a7c15L + a;
+    h = h * 0x9e3779b97f4a7c15L + b;
+    h ^= (h >>> 30);
+    h *= 0xbf58476d1ce4e5b9L;
+    h ^= (h >>> 27);
+    h *= 0x94d049bb133111ebL;
+    h ^= (h >>> 31);
+    return h;
+  }
+
+}
@@ -0,0 +1,529 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+public class ZMERTBench
+{
+  /*
+     Micro-benchmarks of the Z-MERT hot paths, on SyntheticData at several
+     scales, with JSON output.
+
+     Each benchmark is run for every combination of the scale parameters it
+     depends on (sentences, N-best size, feature count, maximum gram length).
+     As with JMH, a run consists of warmup iterations, whose results are
+     discarded, followed by measurement iterations; each iteration calls the
+     benchmarked operation repeatedly for (at least) the iteration time, and
+     reports the average time per operation.  The JSON output follows JMH's
+     layout (benchmark, mode, params, primaryMetric with score, scoreError
+     (99.9% confidence half-width), scoreUnit and rawData), so the usual
+     JMH result tooling can read it.
+
+     Unlike JMH, all benchmarks run in the same JVM, one after the other;
+     for stricter isolation, run one benchmark per invocation (-b).
+
+     Usage: java -cp build:bench/build ZMERTBench [options]
+       -b regex             only run benchmarks whose name matches regex
+       -sents n1,n2,...     numbers of sentences             [[default: 500,2000]]
+       -N n1,n2,...         N-best list sizes                [[default: 100,300]]
+       -feats n1,n2,...     numbers of features              [[default: 10,30]]
+       -maxGram n1,n2,...   maximum gram lengths (BLEU)      [[default: 4]]
+       -rps refsPerSen      references per sentence          [[default: 1]]
+       -wi warmupIts        warmup iterations                [[default: 3]]
+       -i measurementIts    measurement iterations           [[default: 5]]
+       -t iterationSecs     minimum time per iteration       [[default: 1.0]]
+       -seed seed           seed of the synthetic data       [[default: 1]]
+       -o fileName          where to write the JSON results  [[default: stdout]]
+       -l                   list the benchmarks and exit
+  */
+
+  private static abstract class Benchmark
+  {
+    String name;
+    String[] paramNames; // the scale parameters the benchmark depends on
+    String unit;         // of the reported time per operation: "ns/op", "us/op" or "ms/op"
+
+    Benchmark(String in_name, String in_unit, String... in_paramNames)
+    {
+      name = in_name;
+      unit = in_unit;
+      paramNames = in_paramNames;
+    }
+
+    // prepares the state for the given scale; called once per parameter combination
+    abstract void setup(Map<String,Integer> params) throws Exception;
+    // the benchmarked operation; its result is consumed so it cannot be optimized away
+    abstract Object op() throws Exception;
+    void tearDown() throws Exception { }
+  }
+
+  private static int refsPerSen = 1;
+  private static long seed = 1;
+  private static double iterationSecs = 1.0;
+  private static int warmupIts = 3;
+  private static int measurementIts = 5;
+
+  private static SyntheticData data; // the current data, shared by consecutive benchmarks of the same scale
+  private static volatile Object blackhole;
+
+  public static void main(String[] args) throws Exception
+  {
+    String benchRegex = ".*";
+    String outFileName = null;
+    boolean listOnly = false;
+    Map<String,int[]> scales = new LinkedHashMap<String,int[]>();
+    scales.put("sents", new int[] {500, 2000});
+    scales.put("N", new int[] {100, 300});
+    scales.put("feats", new int[] {10, 30});
+    scales.put("maxGram", new int[] {4});
+
+    for (int a = 0; a < args.length; ++a) {
+      String opt = args[a];
+      if (opt.equals("-l")) { listOnly = true; continue; }
+      if (a+1 >= args.length) usage("Missing value for " + opt);
+      String val = args[++a];
+      if (opt.equals("-b")) benchRegex = val;
+      else if (opt.equals("-sents")) scales.put("sents", parseList(val));
+      else if (opt.equals("-N")) scales.put("N", parseList(val));
+      else if (opt.equals("-feats")) scales.put("feats", parseList(val));
+      else if (opt.equals("-maxGram")) scales.put("maxGram", parseList(val));
+      else if (opt.equals("-rps")) refsPerSen = Integer.parseInt(val);
+      else if (opt.equals("-wi")) warmupIts = Integer.parseInt(val);
+      else if (opt.equals("-i")) measurementIts = Integer.parseInt(val);
+      else if (opt.equals("-t")) iterationSecs = Double.parseDouble(val);
+      else if (opt.equals("-seed")) seed = Long.parseLong(val);
+      else if (opt.equals("-o")) outFileName = val;
+      else usage("Unknown option " + opt);
+    }
+    if (measurementIts < 1 || warmupIts < 0 || iterationSecs <= 0) usage("Bad iteration settings");
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (Benchmark b : allBenchmarks()) {
+      if (b.name.matches(benchRegex)) benchmarks.add(b);
+    }
+
+    if (listOnly) {
+      for (Benchmark b : benchmarks) {
+        System.out.println(b.name + "  " + Arrays.toString(b.paramNames) + "  " + b.unit);
+      }
+      return;
+    }
+
+    StringBuilder json = new StringBuilder("[\n");
+    boolean first = true;
+
+    for (Benchmark b : benchmarks) {
+      for (Map<String,Integer> params : combinations(b.paramNames, scales)) {
+        System.err.println("# " + b.name + " " + params);
+        b.setup(params);
+        double[] raw = run(b);
+        b.tearDown();
+
+        if (!first) json.append(",\n");
+        first = false;
+        appendResult(json, b, params, raw);
+      }
+    }
+    json.append("\n]\n");
+
+    if (outFileName == null) {
+      System.out.print(json);
+    } else {
+      PrintWriter out = new PrintWriter(outFileName);
+      out.print(json);
+      out.close();
+      System.err.println("# results written to " + outFileName);
+    }
+  }
+
+  // warmup and measurement iterations; returns the time per operation (in b.unit)
+  // of each measurement iteration
+  private static double[] run(Benchmark b) throws Exception
+  {
+    double unitNanos = b.unit.equals("ms/op") ? 1e6 : (b.unit.equals("us/op") ? 1e3 : 1.0);
+    long iterationNanos = (long)(iterationSecs * 1e9);
+    double[] raw = new double[measurementIts];
+
+    for (int it = 0; it < warmupIts + measurementIts; ++it) {
+      long ops = 0;
+      long start = System.nanoTime();
+      long elapsed;
+      do {
+        blackhole = b.op();
+        ++ops;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < iterationNanos);
+
+      double perOp = elapsed / (double)ops / unitNanos;
+      boolean warmup = (it < warmupIts);
+      System.err.println(String.format(Locale.ROOT, "%s iteration %d: %.3f %s",
+                         (warmup ? "Warmup" : "Measurement"), (warmup ? it+1 : it-warmupIts+1), perOp, b.unit));
+      if (!warmup) raw[it-warmupIts] = perOp;
+    }
+
+    return raw;
+  }
+
+  private static List<Benchmark> allBenchmarks()
+  {
+    List<Benchmark> list = new ArrayList<Benchmark>();
+
+    // BLEU sufficient statistics of one candidate (cycling through all of them)
+    list.add(new Benchmark("BLEU.suffStats", "us/op", "sents", "N", "maxGram") {
+      BLEU bleu;
+      int i, k;
+      void setup(Map<String,Integer> p)
+      {
+        useData(p.get("sents"), p.get("N"), 1);
+        bleu = new BLEU(p.get("maxGram"), "closest");
+        i = 0; k = 0;
+      }
+      Object op()
+      {
+        int[] stats = bleu.suffStats(data.cands[i][k], i);
+        if (++k == data.nbestSize) { k = 0; if (++i == data.numSentences) i = 0; }
+        return stats;
+      }
+    });
+
+    // Monoses sufficient statistics of one candidate (cycling through all of them)
+    list.add(new Benchmark("Monoses.suffStats", "us/op", "sents", "N", "maxGram") {
+      Monoses monoses;
+      String[][] lines;
+      int i, k;
+      void setup(Map<String,Integer> p)
+      {
+        useData(p.get("sents"), p.get("N"), 1);
+        monoses = new Monoses(new String[] {"" + p.get("maxGram"), "closest", "3.5"});
+        lines = new String[data.numSentences][data.nbestSize];
+        for (int i = 0; i < data.numSentences; ++i) {
+          for (int k = 0; k < data.nbestSize; ++k) lines[i][k] = data.monosesCandidate(i,k);
+        }
+        i = 0; k = 0;
+      }
+      Object op()
+      {
+        int[] stats = monoses.suffStats(lines[i][k], i);
+        if (++k == data.nbestSize) { k = 0; if (++i == data.numSentences) i = 0; }
+        return stats;
+      }
+    });
+
+    // threshold extraction for one parameter, over all the sentences
+    list.add(new Benchmark("IntermediateOptimizer.set_thresholdsForParam", "ms/op", "sents", "N", "feats") {
+      OptimizerState state;
+      int c;
+      void setup(Map<String,Integer> p)
+      {
+        useData(p.get("sents"), p.get("N"), p.get("feats"));
+        state = new OptimizerState(4);
+        c = 0;
+      }
+      Object op()
+      {
+        c = (c % data.numFeats) + 1; // cycle through the parameters
+        state.optimizer.set_thresholdsForParam(state.thresholds, c, state.lambda, state.candScore);
+        return state.thresholds;
+      }
+    });
+
+    // line search along one parameter (with its thresholds already extracted)
+    list.add(new Benchmark("IntermediateOptimizer.line_opt", "ms/op", "sents", "N", "feats", "maxGram") {
+      OptimizerState state;
+      int[] indexOfCurrBest;
+      int c;
+      void setup(Map<String,Integer> p)
+      {
+        useData(p.get("sents"), p.get("N"), p.get("feats"));
+        state = new OptimizerState(p.get("maxGram"));
+        c = 1;
+        indexOfCurrBest = state.optimizer.prep_line_opt(state.thresholds, c, 0, state.lambda, state.candScore);
+      }
+      Object op()
+      {
+        return state.optimizer.line_opt(state.thresholds, indexOfCurrBest.clone(), c, state.lambda);
+      }
+    });
+
+    // text normalization (-txtNrm 1) of one candidate (cycling through all of them)
+    list.add(new Benchmark("MertCore.normalize", "us/op", "sents", "N") {
+      MertCore mert;
+      int i, k;
+      void setup(Map<String,Integer> p)
+      {
+        useData(p.get("sents"), p.get("N"), 1);
+        mert = new MertCore();
+        i = 0; k = 0;
+      }
+      Object op()
+      {
+        String str = mert.normalize(data.cands[i][k], 1);
+        if (++k == data.nbestSize) { k = 0; if (++i == data.numSentences) i = 0; }
+        return str;
+      }
+    });
+
+    // parsing a whole n-best file into the temp.sents/temp.cands files
+    list.add(new Benchmark("MertCore.produceTempFiles", "ms/op", "sents", "N", "feats") {
+      File dir;
+      MertCore mert;
+      String nbestFileName;
+      void setup(Map<String,Integer> p) throws Exception
+      {
+        useData(p.get("sents"), p.get("N"), p.get("feats"));
+        dir = createTempDir();
+        nbestFileName = new File(dir, "nbest.it1").getPath();
+        data.writeNbest(nbestFileName);
+        data.writeRefs(new File(dir, "ref.txt").getPath());
+        data.writeParams(new File(dir, "params.txt").getPath(), new File(dir, "dec.cfg").getPath());
+
+        String[] args = {
+          "-dir", dir.getPath(), "-r", "ref.txt", "-rps", "" + refsPerSen,
+          "-p", "params.txt", "-dcfg", "dec.cfg", "-decOut", "nbest.out",
+          "-fake", "nbest.it?", "-N", "" + data.nbestSize, "-txtNrm", "1",
+          "-m", "BLEU", "4", "closest", "-maxIt", "1", "-v", "0" };
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream())); // MertCore's setup messages
+        try {
+          mert = new MertCore(args);
+        } finally {
+          System.setOut(stdout);
+        }
+      }
+      Object op()
+      {
+        mert.produceTempFiles(nbestFileName, 1);
+        return mert;
+      }
+      void tearDown()
+      {
+        deleteDir(dir);
+      }
+    });
+
+    return list;
+  }
+
+  // an IntermediateOptimizer over the current data, with BLEU stats of all the
+  // candidates, and the model scores under the initial weights
+  private static class OptimizerState
+  {
+    IntermediateOptimizer optimizer;
+    ThresholdBuffer thresholds = new ThresholdBuffer();
+    double[] lambda;
+    double[] candScore;
+
+    OptimizerState(int maxGram)
+    {
+      int numSentences = data.numSentences;
+      int numFeats = data.numFeats;
+
+      BLEU bleu = new BLEU(maxGram, "closest");
+
+      int[] candCount = new int[numSentences];
+      Arrays.fill(candCount, data.nbestSize);
+      FeatureMatrix featMatrix = new FeatureMatrix(numSentences, numFeats, numSentences*data.nbestSize);
+      SuffStatsArena arena = new SuffStatsArena(candCount, bleu.get_suffStatsCount());
+      double[] featVal = new double[1+numFeats];
+      for (int i = 0; i < numSentences; ++i) {
+        for (int k = 0; k < data.nbestSize; ++k) {
+          System.arraycopy(data.feats, (i*data.nbestSize+k)*numFeats, featVal, 1, numFeats);
+          featMatrix.add(i, featVal);
+          arena.set(i, k, bleu.suffStats(data.cands[i][k], i));
+        }
+      }
+      featMatrix.finish();
+
+      boolean[] isOptimizable = new boolean[1+numFeats];
+      double[] minThValue = new double[1+numFeats];
+      double[] maxThValue = new double[1+numFeats];
+      lambda = new double[1+numFeats];
+      for (int c = 1; c <= numFeats; ++c) {
+        isOptimizable[c] = true;
+        minThValue[c] = Double.NEGATIVE_INFINITY;
+        maxThValue[c] = Double.POSITIVE_INFINITY;
+        lambda[c] = (c == 1) ? 1.0 : 0.1;
+      }
+
+      IntermediateOptimizer.set_MERTparams(
+        numSentences, 1, new int[numSentences], new int[] {0, 1, 1, 1, 0, 0, 0},
+        numFeats, new double[] {0, 0, 0}, isOptimizable, minThValue, maxThValue,
+        false, bleu, tmpDirPrefix(), 0, 2, 1);
+
+      int[][] best1Cand_suffStats = new int[numSentences][bleu.get_suffStatsCount()];
+      optimizer = new IntermediateOptimizer(
+        1, new Semaphore(0), new Vector<String>(), lambda.clone(), new double[1+numFeats],
+        best1Cand_suffStats, new double[1], candCount, featMatrix, arena);
+
+      candScore = new double[numSentences*data.nbestSize];
+      for (int i = 0; i < numSentences; ++i) {
+        for (int k = 0; k < data.nbestSize; ++k) {
+          candScore[featMatrix.firstCand(i)+k] = featMatrix.dot(i, k, lambda);
+        }
+      }
+    }
+  }
+
+  // makes the SyntheticData for this scale current (reusing it if it already is),
+  // and sets the EvaluationMetric statics for its references
+  private static void useData(int numSentences, int nbestSize, int numFeats)
+  {
+    if (data == null || data.numSentences != numSentences || data.nbestSize != nbestSize
+        || data.numFeats != numFeats) {
+      data = null; // (so the old data can be collected first)
+      data = new SyntheticData(numSentences, nbestSize, numFeats, refsPerSen, seed);
+    }
+
+    EvaluationMetric.set_knownMetrics();
+    EvaluationMetric.set_numSentences(numSentences);
+    EvaluationMetric.set_numDocuments(1);
+    EvaluationMetric.set_refsPerSen(refsPerSen);
+    EvaluationMetric.set_refSentences(data.refs);
+    EvaluationMetric.set_tmpDirPrefix(tmpDirPrefix());
+    EvaluationMetric.set_numThreads(1);
+  }
+
+  private static String tmpDirPrefix()
+  {
+    return System.getProperty("java.io.tmpdir") + File.separator + "ZMERTBench.";
+  }
+
+  private static File createTempDir() throws IOException
+  {
+    File dir = File.createTempFile("ZMERTBench", "");
+    if (!dir.delete() || !dir.mkdir()) throw new IOException("Could not create " + dir);
+    return dir;
+  }
+
+  private static void deleteDir(File dir)
+  {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) deleteDir(f); else f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  // all the combinations of the values of the named scale parameters
+  private static List<Map<String,Integer>> combinations(String[] names, Map<String,int[]> scales)
+  {
+    List<Map<String,Integer>> combos = new ArrayList<Map<String,Integer>>();
+    combos.add(new LinkedHashMap<String,Integer>());
+    for (String name : names) {
+      List<Map<String,Integer>> next = new ArrayList<Map<String,Integer>>();
+      for (Map<String,Integer> combo : combos) {
+        for (int v : scales.get(name)) {
+          Map<String,Integer> c = new LinkedHashMap<String,Integer>(combo);
+          c.put(name, v);
+          next.add(c);
+        }
+      }
+      combos = next;
+    }
+    return combos;
+  }
+
+  private static void appendResult(StringBuilder json, Benchmark b, Map<String,Integer> params, double[] raw)
+  {
+    double mean = 0;
+    for (double x : raw) mean += x;
+    mean /= raw.length;
+    double var = 0;
+    for (double x : raw) var += (x - mean) * (x - mean);
+    double stdev = (raw.length > 1) ? Math.sqrt(var / (raw.length - 1)) : 0;
+    double error = (raw.length > 1) ? tQuantile999(raw.length - 1) * stdev / Math.sqrt(raw.length) : Double.NaN;
+
+    json.append("  {\n");
+    json.append("    \"benchmark\" : \"").append(b.name).append("\",\n");
+    json.append("    \"mode\" : \"avgt\",\n");
+    json.append("    \"threads\" : 1,\n");
+    json.append("    \"forks\" : 0,\n");
+    json.append("    \"warmupIterations\" : ").append(warmupIts).append(",\n");
+    json.append("    \"warmupTime\" : \"").append(iterationSecs).append(" s\",\n");
+    json.append("    \"measurementIterations\" : ").append(measurementIts).append(",\n");
+    json.append("    \"measurementTime\" : \"").append(iterationSecs).append(" s\",\n");
+    json.append("    \"params\" : {\n");
+    int p = 0;
+    for (Map.Entry<String,Integer> e : params.entrySet()) {
+      json.append("      \"").append(e.getKey()).append("\" : \"").append(e.getValue()).append("\"");
+      json.append(++p < params.size() ? ",\n" : "\n");
+    }
+    json.append("    },\n");
+    json.append("    \"primaryMetric\" : {\n");
+    json.append("      \"score\" : ").append(num(mean)).append(",\n");
+    json.append("      \"scoreError\" : ").append(num(error)).append(",\n");
+    json.append("      \"scoreUnit\" : \"").append(b.unit).append("\",\n");
+    json.append("      \"rawData\" : [ [ ");
+    for (int r = 0; r < raw.length; ++r) {
+      if (r > 0) json.append(", ");
+      json.append(num(raw[r]));
+    }
+    json.append(" ] ]\n");
+    json.append("    }\n");
+    json.append("  }");
+  }
+
+  private static String num(double x)
+  {
+    return Double.isNaN(x) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6g", x);
+  }
+
+  // two-sided 99.9% quantile of Student's t distribution with df degrees of freedom
+  private static double tQuantile999(int df)
+  {
+    final double[] table = { 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+                             4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850 };
+    if (df <= table.length) return table[df-1];
+    if (df <= 30) return 3.646;
+    if (df <= 60) return 3.460;
+    return 3.291;
+  }
+
+  private static int[] parseList(String str)
+  {
+    String[] parts = str.split(",");
+    int[] values = new int[parts.length];
+    for (int p = 0; p < parts.length; ++p) values[p] = Integer.parseInt(parts[p].trim());
+    return values;
+  }
+
+  private static void usage(String msg)
+  {
+    System.err.println(msg);
+    System.err.println("Usage: java -cp build:bench/build ZMERTBench [-b regex] [-sents n,...] [-N n,...] [-feats n,...]"
+                     + " [-maxGram n,...] [-rps refsPerSen] [-wi warmupIts] [-i measurementIts] [-t iterationSecs]"
+                     + " [-seed seed] [-o results.json] [-l]");
+    System.exit(1);
+  }
+
+}
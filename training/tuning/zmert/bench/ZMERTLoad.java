@@ -0,0 +1,267 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+public class ZMERTLoad
+{
+  /*
+     Load test of complete Z-MERT runs: writes a SyntheticTuningSet (source,
+     references, and one n-best file per iteration), then tunes on it in this
+     JVM with the fake decoder, and reports, as one JSON object, the time it
+     took to generate the data and to tune, and the peak heap use while
+     tuning.
+
+     The peak heap is reported twice: peak_heap_mb is the sum of the peak use
+     of each heap memory pool (as tracked by the JVM, so no peak is missed,
+     but the pools need not all peak at the same time, so this can overstate
+     the true peak), and sampled_peak_heap_mb is the largest total heap use
+     seen by a thread that samples it every 10 ms.  Run with a fixed -Xmx
+     (and -Xms) to make runs comparable.
+
+     Usage: java -cp build:bench/build ZMERTLoad [options] [-- Z-MERT options]
+       -sents numSentences   dev set size                       [[default: 1000]]
+       -N nbestSize          candidates per sentence and iteration [[default: 100]]
+       -feats numFeats       number of features                 [[default: 10]]
+       -rps refsPerSen       references per sentence            [[default: 1]]
+       -its iterations       n-best files to write (-maxIt)     [[default: 5]]
+       -overlap p            probability that a candidate repeats one of an
+                             earlier iteration                  [[default: 0.5]]
+       -vocab vocabSize      target vocabulary size             [[default: 2000]]
+       -seed seed            seed of the synthetic data         [[default: 1]]
+       -dir dirName          where to write the data and config.txt (kept
+                             afterwards)                        [[default: a temp dir, deleted]]
+       -genOnly              only write the data and config.txt (e.g. to tune
+                             with ZMERT -maxMem, in separate JVMs)
+     Everything after -- is appended to config.txt, so that any Z-MERT option
+     (e.g. -m, -ipi, -thrCnt, -phaseLog) can be set; the defaults are
+     -m BLEU 4 closest, -ipi 5, -v 0.
+  */
+
+  public static void main(String[] args) throws Exception
+  {
+    int numSentences = 1000;
+    int nbestSize = 100;
+    int numFeats = 10;
+    int refsPerSen = 1;
+    int numIts = 5;
+    double overlap = 0.5;
+    int vocabSize = 2000;
+    long seed = 1;
+    String dirName = null;
+    boolean genOnly = false;
+    List<String> zmertOptions = new ArrayList<String>();
+
+    for (int a = 0; a < args.length; ++a) {
+      String opt = args[a];
+      if (opt.equals("--")) {
+        // the rest are Z-MERT options: "-name value ..." pairs, one pair per config line
+        StringBuilder line = new StringBuilder();
+        for (int b = a+1; b < args.length; ++b) {
+          if (args[b].startsWith("-") && line.length() > 0 && !isNumber(args[b])) {
+            zmertOptions.add(line.toString());
+            line.setLength(0);
+          }
+          if (line.length() > 0) line.append(' ');
+          line.append(args[b]);
+        }
+        if (line.length() > 0) zmertOptions.add(line.toString());
+        break;
+      }
+      if (opt.equals("-genOnly")) { genOnly = true; continue; }
+      if (a+1 >= args.length) usage("Missing value for " + opt);
+      String val = args[++a];
+      if (opt.equals("-sents")) numSentences = Integer.parseInt(val);
+      else if (opt.equals("-N")) nbestSize = Integer.parseInt(val);
+      else if (opt.equals("-feats")) numFeats = Integer.parseInt(val);
+      else if (opt.equals("-rps")) refsPerSen = Integer.parseInt(val);
+      else if (opt.equals("-its")) numIts = Integer.parseInt(val);
+      else if (opt.equals("-overlap")) overlap = Double.parseDouble(val);
+      else if (opt.equals("-vocab")) vocabSize = Integer.parseInt(val);
+      else if (opt.equals("-seed")) seed = Long.parseLong(val);
+      else if (opt.equals("-dir")) dirName = val;
+      else usage("Unknown option " + opt);
+    }
+    if (numSentences < 1 || nbestSize < 1 || numFeats < 1 || refsPerSen < 1 || numIts < 1
+        || overlap < 0 || overlap > 1 || vocabSize < 2) {
+      usage("Bad data settings");
+    }
+
+    File dir;
+    if (dirName != null) {
+      dir = new File(dirName).getAbsoluteFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+    } else {
+      dir = File.createTempFile("ZMERTLoad", "");
+      if (!dir.delete() || !dir.mkdir()) throw new IOException("Could not create " + dir);
+    }
+
+    // generate the data
+    long genStart = System.nanoTime();
+    SyntheticTuningSet data = new SyntheticTuningSet(
+      numSentences, nbestSize, numFeats, refsPerSen, vocabSize, overlap, seed);
+    data.writeSource(dir + File.separator + "source.txt");
+    data.writeRefs(dir + File.separator + "reference.txt");
+    data.writeParams(dir + File.separator + "params.txt", dir + File.separator + "dcfg.txt");
+    long nbestBytes = 0;
+    for (int it = 1; it <= numIts; ++it) {
+      File nbest = new File(dir, "nbest.it" + it);
+      data.writeNbest(nbest.getPath(), it);
+      nbestBytes += nbest.length();
+    }
+    double genSecs = (System.nanoTime() - genStart) / 1e9;
+
+    String configFileName = dir + File.separator + "config.txt";
+    PrintWriter config = new PrintWriter(configFileName);
+    config.println("-dir " + dir);
+    config.println("-s source.txt");
+    config.println("-r reference.txt");
+    config.println("-rps " + refsPerSen);
+    config.println("-p params.txt");
+    config.println("-dcfg dcfg.txt");
+    config.println("-decOut output.nbest");
+    config.println("-fake nbest.it?");
+    config.println("-N " + nbestSize);
+    config.println("-maxIt " + numIts);
+    config.println("-m BLEU 4 closest");
+    config.println("-ipi 5");
+    config.println("-seed " + seed);
+    config.println("-v 0");
+    for (String line : zmertOptions) config.println(line); // (later lines override earlier ones)
+    config.close();
+
+    System.err.println("# wrote " + numIts + " n-best files (" + (nbestBytes >> 20) + " MB) and "
+                     + configFileName + " in " + String.format(Locale.ROOT, "%.1f", genSecs) + " s");
+    if (genOnly) return;
+
+    // tune
+    HeapSampler sampler = new HeapSampler();
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+    sampler.start();
+
+    long tuneStart = System.nanoTime();
+    MertCore myMert = new MertCore(configFileName);
+    myMert.run_MERT();
+    myMert.finish();
+    double tuneSecs = (System.nanoTime() - tuneStart) / 1e9;
+
+    sampler.finish();
+    long poolPeaks = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) poolPeaks += pool.getPeakUsage().getUsed();
+    }
+
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"sentences\":").append(numSentences);
+    json.append(",\"N\":").append(nbestSize);
+    json.append(",\"feats\":").append(numFeats);
+    json.append(",\"rps\":").append(refsPerSen);
+    json.append(",\"its\":").append(numIts);
+    json.append(",\"overlap\":").append(overlap);
+    json.append(",\"vocab\":").append(vocabSize);
+    json.append(",\"seed\":").append(seed);
+    json.append(",\"nbest_mb\":").append(mb(nbestBytes));
+    json.append(",\"generate_s\":").append(String.format(Locale.ROOT, "%.3f", genSecs));
+    json.append(",\"tune_s\":").append(String.format(Locale.ROOT, "%.3f", tuneSecs));
+    json.append(",\"peak_heap_mb\":").append(mb(poolPeaks));
+    json.append(",\"sampled_peak_heap_mb\":").append(mb(sampler.peak));
+    json.append(",\"max_heap_mb\":").append(mb(Runtime.getRuntime().maxMemory()));
+    json.append("}");
+    System.out.println(json);
+
+    if (dirName == null) deleteDir(dir);
+    System.exit(0); // (MertCore may leave non-daemon pool threads behind)
+  }
+
+  // samples the total heap use every 10 ms, and keeps the largest
+  private static class HeapSampler extends Thread
+  {
+    volatile long peak = 0;
+    private volatile boolean done = false;
+
+    HeapSampler() { setDaemon(true); }
+
+    public void run()
+    {
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      while (!done) {
+        peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+        try { Thread.sleep(10); } catch (InterruptedException e) { return; }
+      }
+    }
+
+    void finish() throws InterruptedException
+    {
+      done = true;
+      join();
+      peak = Math.max(peak, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+  }
+
+  private static boolean isNumber(String str)
+  {
+    try {
+      Double.parseDouble(str);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static String mb(long bytes)
+  {
+    return String.format(Locale.ROOT, "%.1f", bytes / 1048576.0);
+  }
+
+  private static void deleteDir(File dir)
+  {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) deleteDir(f); else f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private static void usage(String msg)
+  {
+    System.err.println(msg);
+    System.err.println("Usage: java -cp build:bench/build ZMERTLoad [-sents n] [-N n] [-feats n] [-rps n]"
+                     + " [-its n] [-overlap p] [-vocab n] [-seed seed] [-dir dirName] [-genOnly]"
+                     + " [-- Z-MERT options]");
+    System.exit(1);
+  }
+
+}
@@ -0,0 +1,112 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.util.*;
+
+public class CandScoreCheck
+{
+  /*
+     Checks that the candidates' model scores, as maintained by
+     IntermediateOptimizer.changeLambda across many coordinate steps, stay
+     equal to the scores recalculated from lambda: within a small tolerance
+     (relative to SUM_c |lambda_c*h_c|, the size of the terms of the score)
+     after every step, and exactly right after each periodic recalculation.  The feature values are random, with the magnitudes of
+     typical decoder features (e.g. log-probabilities in the hundreds).
+
+     Usage: java -cp build:test/build CandScoreCheck
+  */
+
+  private final static int NUM_SENTENCES = 200;
+  private final static int NBEST_SIZE = 50;
+  private final static int NUM_FEATS = 15;
+  private final static int NUM_STEPS = 5000;
+  private final static double TOLERANCE = 1e-13;
+
+  public static void main(String[] args)
+  {
+    Random rand = new Random(1);
+
+    FeatureMatrix featMatrix = new FeatureMatrix(NUM_SENTENCES, NUM_FEATS, NUM_SENTENCES*NBEST_SIZE);
+    double[] featVal = new double[1+NUM_FEATS];
+    for (int i = 0; i < NUM_SENTENCES; ++i) {
+      for (int k = 0; k < NBEST_SIZE; ++k) {
+        for (int c = 1; c <= NUM_FEATS; ++c) {
+          featVal[c] = (c % 3 == 0) ? -300*rand.nextDouble() : rand.nextGaussian();
+        }
+        featMatrix.add(i, featVal);
+      }
+    }
+    featMatrix.finish();
+    int numCands = featMatrix.get_numCands();
+
+    double[] lambda = new double[1+NUM_FEATS];
+    for (int c = 1; c <= NUM_FEATS; ++c) { lambda[c] = rand.nextGaussian(); }
+
+    double[] candScore = new double[numCands];
+    double[] freshScore = new double[numCands];
+    featMatrix.scores(lambda, candScore);
+
+    double maxRelDiff = 0;
+    int failures = 0;
+    for (int step = 1; step <= NUM_STEPS; ++step) {
+      int c = 1 + rand.nextInt(NUM_FEATS);
+      double newVal = lambda[c] + rand.nextGaussian();
+      IntermediateOptimizer.changeLambda(featMatrix, candScore, lambda, c, newVal, step);
+      featMatrix.scores(lambda, freshScore);
+
+      double[] feats = featMatrix.get_data();
+      double stepMaxRelDiff = 0;
+      for (int k = 0; k < numCands; ++k) {
+        double termSize = 0;
+        for (int c2 = 1; c2 <= NUM_FEATS; ++c2) {
+          termSize += Math.abs(lambda[c2] * feats[k*NUM_FEATS + c2-1]);
+        }
+        double relDiff = Math.abs(candScore[k] - freshScore[k]) / Math.max(1.0, termSize);
+        stepMaxRelDiff = Math.max(stepMaxRelDiff, relDiff);
+      }
+      maxRelDiff = Math.max(maxRelDiff, stepMaxRelDiff);
+
+      if (step % IntermediateOptimizer.RESCORE_INTERVAL == 0 && stepMaxRelDiff != 0) {
+        System.out.println("Step " + step + ": scores differ from lambda's right after a recalculation.");
+        ++failures;
+      } else if (stepMaxRelDiff > TOLERANCE) {
+        System.out.println("Step " + step + ": scores drifted by " + stepMaxRelDiff + " (relative).");
+        ++failures;
+      }
+    }
+
+    if (failures > 0) {
+      System.out.println(failures + " failure(s).");
+      System.exit(1);
+    }
+    System.out.println("Candidate scores match lambda's over " + NUM_STEPS + " steps"
+                     + " (largest relative difference: " + maxRelDiff + ").");
+  }
+
+}
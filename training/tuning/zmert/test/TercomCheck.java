@@ -0,0 +1,178 @@
+/* This file is part of the Z-MERT Training Tool for MT systems.
+ *
+ * Z-MERT is an open-source tool, licensed under the terms of the
+ * GNU Lesser General Public License (LGPL). Therefore, it is free
+ * for personal and scientific use by individuals and/or research
+ * groups. It may not be modified or redistributed, publicly or
+ * privately, unless the licensing terms are observed. If in doubt,
+ * contact the author for clarification and/or an explicit
+ * permission.
+ *
+ * If you use Z-MERT in your work, please cite the following paper:
+ *
+ *       Omar F. Zaidan. 2009. Z-MERT: A Fully Configurable Open
+ *       Source Tool for Minimum Error Rate Training of Machine
+ *       Translation Systems. The Prague Bulletin of Mathematical
+ *       Linguistics, No. 91:79-88.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston,
+ * MA 02111-1307 USA
+ */
+
+
+import java.io.*;
+import java.util.*;
+
+public class TercomCheck
+{
+  /*
+     Checks that TercomEngine gives the same TER statistics as tercom-0.7.25,
+     sentence by sentence, on a small fixed set: dir/hyp.txt and dir/ref.txt,
+     in tercom's trans format (each line ending with its segment id in
+     parentheses; a segment can have several references).  The engine's statistics (number of edits and average
+     reference length) are compared with those in dir/expected.txt, and, if
+     the path of tercom's jar is given, with those of tercom itself, run with
+     the same options.
+
+     Usage: java -cp build:test/build TercomCheck dir [tercomJar]
+  */
+
+  private final static int BEAM_WIDTH = 20;       // tercom's defaults
+  private final static int MAX_SHIFT_DIST = 50;
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: java -cp build:test/build TercomCheck dir [tercomJar]");
+      System.exit(2);
+    }
+    File dir = new File(args[0]);
+
+    LinkedHashMap<String,String> hyps = readTrans(new File(dir, "hyp.txt"));
+    LinkedHashMap<String,List<String>> refs = new LinkedHashMap<String,List<String>>();
+    for (String[] seg : readTransLines(new File(dir, "ref.txt"))) {
+      if (!refs.containsKey(seg[0])) refs.put(seg[0], new ArrayList<String>());
+      refs.get(seg[0]).add(seg[1]);
+    }
+
+    TercomEngine engine = new TercomEngine(false, true, BEAM_WIDTH, MAX_SHIFT_DIST);
+    LinkedHashMap<String,int[]> engineStats = new LinkedHashMap<String,int[]>();
+    for (String id : hyps.keySet()) {
+      if (!refs.containsKey(id)) throw new IOException("No reference for segment " + id);
+      List<String> segRefs = refs.get(id);
+      engineStats.put(id, engine.suffStats(hyps.get(id), segRefs.toArray(new String[segRefs.size()])));
+    }
+
+    int mismatches = compare("expected.txt", engineStats, readExpected(new File(dir, "expected.txt")));
+    if (args.length == 2) {
+      mismatches += compare("tercom", engineStats, runTercom(args[1], dir));
+    }
+
+    if (mismatches > 0) {
+      System.out.println(mismatches + " mismatch(es).");
+      System.exit(1);
+    }
+    System.out.println("TercomEngine matches " + (args.length == 2 ? "tercom and " : "")
+                     + "expected.txt on all " + engineStats.size() + " segments.");
+  }
+
+  // compares the engine's stats with those of source, segment by segment
+  private static int compare(String source, Map<String,int[]> engineStats, Map<String,int[]> stats)
+  {
+    int mismatches = 0;
+    for (String id : engineStats.keySet()) {
+      int[] engine = engineStats.get(id);
+      int[] other = stats.get(id);
+      if (other == null) {
+        System.out.println(id + ": missing from " + source);
+        ++mismatches;
+      } else if (engine[0] != other[0] || engine[1] != other[1]) {
+        System.out.println(id + ": TercomEngine gives " + engine[0] + " edits, reference length " + engine[1]
+                         + "; " + source + " gives " + other[0] + " edits, reference length " + other[1]);
+        ++mismatches;
+      }
+    }
+    return mismatches;
+  }
+
+  // runs tercom on dir's hyp.txt and ref.txt, and returns its stats by segment
+  private static Map<String,int[]> runTercom(String jarFileName, File dir) throws Exception
+  {
+    File outPrefix = File.createTempFile("TercomCheck", "");
+    ProcessBuilder pb = new ProcessBuilder("java", "-Dfile.encoding=utf8", "-jar", jarFileName,
+                          "-r", new File(dir, "ref.txt").getPath(), "-h", new File(dir, "hyp.txt").getPath(),
+                          "-o", "ter", "-n", outPrefix.getPath(),
+                          "-b", "" + BEAM_WIDTH, "-d", "" + MAX_SHIFT_DIST);
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+    BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    while (out.readLine() != null) { } // (tercom's progress messages)
+    int status = p.waitFor();
+    if (status != 0) throw new IOException("tercom returned " + status);
+
+    // as read by TER.suffStats: two header lines, then "id numberOfEdits averageReferenceLength TER"
+    File terFile = new File(outPrefix.getPath() + ".ter");
+    Map<String,int[]> stats = new HashMap<String,int[]>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(terFile), "utf8"));
+    in.readLine();
+    in.readLine();
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length < 3) continue;
+      stats.put(fields[0], new int[] {(int)Double.parseDouble(fields[1]), (int)Double.parseDouble(fields[2])});
+    }
+    in.close();
+    terFile.delete();
+    outPrefix.delete();
+    return stats;
+  }
+
+  private static Map<String,int[]> readExpected(File file) throws IOException
+  {
+    Map<String,int[]> stats = new HashMap<String,int[]>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf8"));
+    String line;
+    while ((line = in.readLine()) != null) {
+      int comment = line.indexOf('#');
+      if (comment >= 0) line = line.substring(0, comment);
+      line = line.trim();
+      if (line.equals("")) continue;
+      String[] fields = line.split("\\s+");
+      stats.put(fields[0], new int[] {Integer.parseInt(fields[1]), Integer.parseInt(fields[2])});
+    }
+    in.close();
+    return stats;
+  }
+
+  private static LinkedHashMap<String,String> readTrans(File file) throws IOException
+  {
+    LinkedHashMap<String,String> segs = new LinkedHashMap<String,String>();
+    for (String[] seg : readTransLines(file)) segs.put(seg[0], seg[1]);
+    return segs;
+  }
+
+  // the lines of a trans format file, as {id, sentence} pairs
+  private static List<String[]> readTransLines(File file) throws IOException
+  {
+    List<String[]> segs = new ArrayList<String[]>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf8"));
+    String line;
+    while ((line = in.readLine()) != null) {
+      int open = line.lastIndexOf('(');
+      if (open < 0 || !line.trim().endsWith(")")) throw new IOException("No segment id in: " + line);
+      String id = line.substring(open+1, line.lastIndexOf(')')).trim();
+      segs.add(new String[] {id, line.substring(0, open).trim()});
+    }
+    in.close();
+    return segs;
+  }
+
+}
@@ -0,0 +1,138 @@
+#!/bin/bash
+# Runs Z-MERT on the small dev set in this directory (source.txt,
+# reference.txt, params.txt and dcfg.txt), with stub_decoder.sh as the
+# decoder, launched and read in each of the ways Z-MERT supports (including
+# as a decoder session, kept alive across iterations, and as parallel
+# decoder shards).  All of them should give the same final lambda[] (and
+# sharded decoding the same merged n-best list), and a decoder, or decoder
+# shard, that produces no output should be reported as a decoder failure (in
+# the case of a shard, without waiting for the other shards, which should be
+# stopped).
+#
+# Usage: run_stub_tests.sh [classDir]
+#   classDir: directory of the compiled Z-MERT classes (if not given, they
+#   are compiled into a temporary directory)
+
+testDir=$(cd "$(dirname "$0")" && pwd)
+tmp=$(mktemp -d)
+trap 'rm -rf "$tmp"' EXIT
+
+if [ -n "$1" ]; then
+  classDir=$(cd "$1" && pwd)
+else
+  classDir=$tmp/classes
+  mkdir -p "$classDir"
+  javac -nowarn -d "$classDir" "$testDir"/../*.java || exit 1
+fi
+
+failures=0
+
+# run_zmert name decoderArgs [option...]: runs Z-MERT in $tmp/name, with
+# "stub_decoder.sh decoderArgs iteration" as the decoder command, and any
+# extra options added to the config file; sets status and log
+run_zmert()
+{
+  name=$1; decoderArgs=$2; shift 2
+  work=$tmp/$name
+  mkdir -p "$work"
+  cp "$testDir"/source.txt "$testDir"/reference.txt "$testDir"/params.txt "$testDir"/dcfg.txt "$work"
+  printf '#!/bin/sh\nexec "%s" %s "$@"\n' "$testDir/stub_decoder.sh" "$decoderArgs" > "$work"/decoder.sh
+  chmod +x "$work"/decoder.sh
+  {
+    echo "-dir $work"
+    echo "-r reference.txt"
+    echo "-p params.txt"
+    echo "-dcfg dcfg.txt"
+    echo "-decOut output.nbest"
+    echo "-cmd decoder.sh"
+    echo "-passIt 1"
+    echo "-N 10"
+    echo "-m BLEU 4 closest"
+    echo "-maxIt 4"
+    echo "-ipi 5"
+    echo "-seed 1"
+    echo "-v 1"
+    for opt in "$@"; do echo "$opt"; done
+  } > "$work"/config.txt
+  (cd "$work" && java -cp "$classDir" ZMERT "$work"/config.txt > log.txt 2>&1)
+  status=$?
+  log=$work/log.txt
+}
+
+pass() { echo "PASS: $1"; }
+fail() { echo "FAIL: $1"; failures=$((failures+1)); [ -f "$log" ] && tail -5 "$log" | sed 's/^/    /'; }
+
+# check_lambda name: the last run should have succeeded, with the reference lambda[]
+check_lambda()
+{
+  if [ $status -ne 0 ]; then
+    fail "$1 (Z-MERT returned $status)"
+  elif [ "$(grep '^FINAL lambda' "$log")" != "$refLambda" ]; then
+    fail "$1 (got $(grep '^FINAL lambda' "$log"), was expecting $refLambda)"
+  else
+    pass "$1"
+  fi
+}
+
+# check_failure name message: the last run should have failed with exit value 30,
+# printing message
+check_failure()
+{
+  if [ $status -ne 30 ]; then
+    fail "$1 (Z-MERT returned $status; was expecting 30)"
+  elif ! grep -q "$2" "$log"; then
+    fail "$1 (no \"$2\" in the output)"
+  else
+    pass "$1"
+  fi
+}
+
+run_zmert stream0 "file $tmp/stream0/source.txt 10 $tmp/stream0/output.nbest" "-decStream 0"
+refLambda=$(grep '^FINAL lambda' "$log")
+if [ $status -ne 0 ] || [ -z "$refLambda" ]; then
+  fail "-decStream 0 (Z-MERT returned $status)"
+  exit 1
+fi
+pass "-decStream 0"
+
+run_zmert stream1 "file $tmp/stream1/source.txt 10 $tmp/stream1/output.nbest" "-decStream 1"
+check_lambda "-decStream 1 (same lambda[] as -decStream 0)"
+
+run_zmert stream2 "stdout $tmp/stream2/source.txt 10" "-decStream 2"
+check_lambda "-decStream 2 (same lambda[] as -decStream 0)"
+
+run_zmert session "session $tmp/session/source.txt 10" "-decSession 1" "-decV 1"
+check_lambda "-decSession 1 (same lambda[] as -decStream 0)"
+if [ "$(grep -c 'stub decoder session started' "$log")" -ne 1 ]; then
+  fail "-decSession 1 (the decoder was not launched exactly once)"
+fi
+
+run_zmert shards "shard $tmp/shards/source.txt 10 -1 0" "-shards 3" "-s source.txt"
+check_lambda "-shards 3 (same lambda[] as -decStream 0)"
+for f in "$tmp"/stream0/output.nbest.ZMERT.it*; do
+  if ! cmp -s "$f" "$tmp/shards/${f##*/}"; then
+    fail "-shards 3 (the merged n-best list ${f##*/} differs from the unsharded one)"
+  fi
+done
+
+run_zmert noOutput "none 0" "-decStream 1"
+check_failure "-decStream 1, decoder exits without output" "did not produce"
+
+run_zmert badExit "none 1" "-decStream 1"
+check_failure "-decStream 1, decoder fails without output" "Call to decoder returned 1"
+
+SECONDS=0
+run_zmert shardFail "shard $tmp/shardFail/source.txt 10 15 30" "-shards 3" "-s source.txt"
+check_failure "-shards 3, a shard fails without output" "Call to decoder (shard 1) returned 1"
+if [ $SECONDS -ge 20 ]; then
+  fail "-shards 3 (the failing shard was not noticed until the others finished)"
+fi
+if pgrep -f "stub_decoder.sh shard $tmp/shardFail" > /dev/null; then
+  fail "-shards 3 (the other shards were left running after a shard failed)"
+fi
+
+if [ $failures -gt 0 ]; then
+  echo "$failures test(s) failed."
+  exit 1
+fi
+echo "All tests passed."
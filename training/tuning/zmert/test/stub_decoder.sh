@@ -0,0 +1,116 @@
+#!/bin/sh
+# A stand-in for a real decoder, used by run_stub_tests.sh to check how Z-MERT
+# launches decoders and reads their output.  It "translates" each source
+# sentence into N candidates by dropping and replacing some of its words, and
+# gives each candidate 4 feature values:
+#
+#   F0: -(number of words dropped) + noise
+#   F1: -(number of words replaced) + noise
+#   F2: length of the candidate
+#   F3: noise
+#
+# The n-best list of an iteration only depends on the source and the
+# iteration number: half of it is shared with the previous iteration, and
+# some of the shared candidates get new feature values (as when a decoder
+# finds another derivation of the same string).  Usage:
+#
+#   stub_decoder.sh file sourceFile N nbestFile iteration
+#     writes the n-best list to nbestFile, a few sentences at a time
+#   stub_decoder.sh stdout sourceFile N iteration
+#     writes the n-best list to the standard output, a few sentences at a time
+#   stub_decoder.sh shard sourceFile N failAt delay iteration shardFile nbestFile
+#     (as run by Z-MERT -shards) writes the n-best list of the sentences in
+#     shardFile, a contiguous range of sourceFile, to nbestFile, numbering
+#     them from 0; the candidates are those the whole source would get.  If
+#     the range includes sentence failAt (0-based), it writes nothing, and
+#     exits with 1; otherwise it waits delay seconds before decoding
+#   stub_decoder.sh session sourceFile N
+#     a decoder session (see DecoderSession.java): for each DECODE request
+#     read from the standard input, writes the n-best list of that iteration
+#     to the standard output, followed by END, until QUIT
+#   stub_decoder.sh none exitValue
+#     writes nothing, and exits with exitValue
+
+# nbest sourceFile N iteration [offset]: the n-best list of sourceFile, whose
+# first sentence is sentence offset (default 0) of the whole source
+nbest()
+{
+  awk -v N="$2" -v it="$3" -v offset="${4:-0}" '
+    function rnd() { x = (x * 16807) % 2147483647; return x / 2147483647 }
+    {
+      nw = split($0, w, " ")
+      for (k = 0; k < N; ++k) {
+        id = k + int((it - 1) * N / 2)
+        x = 1 + ((NR + offset) * 7919 + id * 104729) % 2147483646
+        cand = ""; drops = 0; reps = 0; len = 0
+        for (p = 1; p <= nw; ++p) {
+          r = rnd()
+          if (r < 0.15) { ++drops; continue }
+          word = w[p]
+          if (r < 0.3) { word = "w" int(rnd() * 30); ++reps }
+          cand = (len == 0) ? word : cand " " word
+          ++len
+        }
+        if (rnd() < 0.2) x = (x + it) % 2147483647
+        printf "%d ||| %s ||| %.4f %.4f %d %.4f\n", NR-1, cand, -drops + rnd(), -reps + rnd(), len, 2 * rnd() - 1
+      }
+      if (NR % 5 == 0) { fflush(); system("sleep 0.02") }
+    }' "$1"
+}
+
+# shard_offset sourceFile shardFile: the position of shardFile's lines in sourceFile
+shard_offset()
+{
+  awk '
+    NR == FNR { src[NR-1] = $0; numSrc = NR; next }
+    { shard[FNR-1] = $0; numShard = FNR }
+    END {
+      for (o = 0; o + numShard <= numSrc; ++o) {
+        for (k = 0; k < numShard && src[o+k] == shard[k]; ++k) {}
+        if (k == numShard) { print o; exit }
+      }
+      print -1
+    }' "$1" "$2"
+}
+
+mode=$1
+case $mode in
+  file)
+    : > "$4"
+    nbest "$2" "$3" "$5" >> "$4"
+    ;;
+  stdout)
+    nbest "$2" "$3" "$4"
+    ;;
+  shard)
+    offset=$(shard_offset "$2" "$7")
+    if [ "$offset" -lt 0 ]; then
+      echo "stub_decoder.sh: $7 is not a range of $2" >&2
+      exit 2
+    fi
+    if [ "$4" -ge "$offset" ] && [ "$4" -lt $((offset + $(wc -l < "$7"))) ]; then
+      exit 1
+    fi
+    sleep "$5"
+    : > "$8"
+    nbest "$7" "$3" "$6" "$offset" >> "$8"
+    ;;
+  session)
+    echo "stub decoder session started" >&2
+    while read request it lambda; do
+      case $request in
+        DECODE) nbest "$2" "$3" "$it"; echo END ;;
+        QUIT) exit 0 ;;
+      esac
+    done
+    exit 1 # (standard input closed without a QUIT)
+    ;;
+  none)
+    exit "$2"
+    ;;
+  *)
+    echo "stub_decoder.sh: unknown mode $mode" >&2
+    exit 2
+    ;;
+esac
+exit 0